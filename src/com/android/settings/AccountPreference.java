@@ -82,6 +82,9 @@ public class AccountPreference extends Preference {
     }
 
     public void setSyncStatus(int status) {
+        if (status == mStatus) {
+            return;
+        }
         mStatus = status;
         if (mSyncStatusIcon != null) {
             mSyncStatusIcon.setImageResource(getSyncStatusIcon(status));
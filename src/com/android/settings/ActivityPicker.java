@@ -26,6 +26,8 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Intent.ShortcutIconResource;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageItemInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -47,6 +49,8 @@ import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import android.widget.TextView;
 
+import com.android.settings.LauncherActivityCatalog.ActivityEntry;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -67,6 +71,33 @@ public class ActivityPicker extends AlertActivity implements
      * Base {@link Intent} used when building list.
      */
     private Intent mBaseIntent;
+
+    /**
+     * Catalog list answering {@link #mBaseIntent} that is still loading, and
+     * the items to append it to once it is ready.
+     */
+    private int mPendingList = -1;
+    private List<PickAdapter.Item> mPendingItems;
+
+    private final LauncherActivityCatalog.Callback mCatalogCallback =
+            new LauncherActivityCatalog.Callback() {
+        public void onCatalogChanged() {
+            if (mPendingList < 0) {
+                return;
+            }
+            final List<ActivityEntry> entries =
+                    LauncherActivityCatalog.getInstance(ActivityPicker.this)
+                            .getActivities(mPendingList);
+            if (entries != null) {
+                putCatalogItems(entries, mPendingItems);
+                mPendingList = -1;
+                mPendingItems = null;
+                LauncherActivityCatalog.getInstance(ActivityPicker.this)
+                        .unregisterCallback(this);
+                mAdapter.notifyDataSetChanged();
+            }
+        }
+    };
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -102,6 +133,12 @@ public class ActivityPicker extends AlertActivity implements
 
         setupAlert();
     }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        LauncherActivityCatalog.getInstance(this).unregisterCallback(mCatalogCallback);
+    }
     
     /**
      * Handle clicking of dialog item by passing back
@@ -178,8 +215,25 @@ public class ActivityPicker extends AlertActivity implements
 
     /**
      * Fill the given list with any activities matching the base {@link Intent}. 
+     * Launcher and shortcut queries are answered by the shared
+     * {@link LauncherActivityCatalog}; if it is still loading, its
+     * activities are appended when ready.
      */
     protected void putIntentItems(Intent baseIntent, List<PickAdapter.Item> items) {
+        final int list = LauncherActivityCatalog.findList(baseIntent);
+        if (list >= 0) {
+            final LauncherActivityCatalog catalog = LauncherActivityCatalog.getInstance(this);
+            final List<ActivityEntry> entries = catalog.getActivities(list);
+            if (entries != null) {
+                putCatalogItems(entries, items);
+            } else {
+                mPendingList = list;
+                mPendingItems = items;
+                catalog.registerCallback(mCatalogCallback);
+            }
+            return;
+        }
+
         PackageManager packageManager = getPackageManager();
         List<ResolveInfo> list = packageManager.queryIntentActivities(baseIntent,
                 0 /* no flags */);
@@ -192,11 +246,18 @@ public class ActivityPicker extends AlertActivity implements
         }
     }
     
+    private void putCatalogItems(List<ActivityEntry> entries, List<PickAdapter.Item> items) {
+        final int entriesSize = entries.size();
+        for (int i = 0; i < entriesSize; i++) {
+            items.add(new PickAdapter.Item(entries.get(i)));
+        }
+    }
+
     /**
      * Adapter which shows the set of activities that can be performed for a
      * given {@link Intent}.
      */
-    protected static class PickAdapter extends BaseAdapter {
+    protected static class PickAdapter extends BaseAdapter implements AppIconCache.Callback {
         
         /**
          * Item that appears in a {@link PickAdapter} list.
@@ -218,6 +279,8 @@ public class ActivityPicker extends AlertActivity implements
             String packageName;
             String className;
             Bundle extras;
+            /** Activity whose icon is loaded when first shown, if icon is null. */
+            ActivityInfo iconInfo;
             
             /**
              * Create a list item from given label and icon.
@@ -242,6 +305,17 @@ public class ActivityPicker extends AlertActivity implements
                 className = resolveInfo.activityInfo.name;
             }
 
+            /**
+             * Create a list item from a catalog entry. The icon is loaded
+             * through {@link AppIconCache} when the item is first shown.
+             */
+            Item(ActivityEntry entry) {
+                label = entry.label;
+                iconInfo = entry.resolveInfo.activityInfo;
+                packageName = iconInfo.applicationInfo.packageName;
+                className = iconInfo.name;
+            }
+
             /**
              * Build the {@link Intent} described by this item. If this item
              * can't create a valid {@link android.content.ComponentName}, it will return
@@ -266,6 +340,8 @@ public class ActivityPicker extends AlertActivity implements
         
         private final LayoutInflater mInflater;
         private final List<Item> mItems;
+        private final AppIconCache mIconCache;
+        private final Drawable mPlaceholderIcon;
         
         /**
          * Create an adapter for the given items.
@@ -273,6 +349,17 @@ public class ActivityPicker extends AlertActivity implements
         public PickAdapter(Context context, List<Item> items) {
             mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
             mItems = items;
+            mIconCache = AppIconCache.getInstance(context);
+            final int size = (int) context.getResources().getDimension(
+                    android.R.dimen.app_icon_size);
+            mPlaceholderIcon = new EmptyDrawable(size, size);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void onIconLoaded(PackageItemInfo info, Drawable icon) {
+            notifyDataSetChanged();
         }
 
         /**
@@ -305,9 +392,13 @@ public class ActivityPicker extends AlertActivity implements
             }
             
             Item item = (Item) getItem(position);
+            if (item.icon == null && item.iconInfo != null) {
+                item.icon = mIconCache.getIconAsync(item.iconInfo, true, this);
+            }
             TextView textView = (TextView) convertView;
             textView.setText(item.label);
-            textView.setCompoundDrawablesWithIntrinsicBounds(item.icon, null, null, null);
+            textView.setCompoundDrawablesWithIntrinsicBounds(
+                    item.icon != null ? item.icon : mPlaceholderIcon, null, null, null);
             
             return convertView;
         }
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageItemInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Process-wide cache of application and component icons, scaled down to
+ * list row size and bounded by a memory budget with LRU eviction.  Icons can
+ * be loaded synchronously, or asynchronously on a shared background thread
+ * where requests for rows that are on screen go first.
+ */
+public class AppIconCache {
+    private static final String TAG = "AppIconCache";
+    private static final boolean DEBUG = false;
+
+    // Fraction of the memory class that may be spent on cached icons.
+    private static final int MEMORY_CLASS_DIVISOR = 16;
+
+    /**
+     * Receives icons loaded by {@link #getIconAsync}, on the main thread.
+     */
+    public interface Callback {
+        public void onIconLoaded(PackageItemInfo info, Drawable icon);
+    }
+
+    private static final Object sLock = new Object();
+    private static AppIconCache sInstance;
+
+    public static AppIconCache getInstance(Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new AppIconCache(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private final Context mContext;
+    private final PackageManager mPm;
+    private final int mIconSize;
+    private final LruCache<String, Drawable> mCache;
+
+    // Cached keys by package name, kept in step with mCache so membership
+    // checks and package invalidation need not copy it; synchronize on it
+    // around every change to mCache.
+    private final HashMap<String, HashSet<String>> mKeysByPackage
+            = new HashMap<String, HashSet<String>>();
+
+    // Pending asynchronous loads by cache key; synchronize on mPending.
+    private final HashMap<String, ArrayList<Callback>> mPending
+            = new HashMap<String, ArrayList<Callback>>();
+
+    private final Handler mMainHandler;
+    private final HandlerThread mThread;
+    private final LoaderHandler mLoaderHandler;
+
+    private AppIconCache(Context context) {
+        mContext = context;
+        mPm = context.getPackageManager();
+        mIconSize = context.getResources().getDimensionPixelSize(android.R.dimen.app_icon_size);
+
+        final ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        final int budget = am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVISOR;
+        mCache = new LruCache<String, Drawable>(budget) {
+            @Override
+            protected int sizeOf(String key, Drawable value) {
+                return byteSizeOf(value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Drawable oldValue,
+                    Drawable newValue) {
+                if (newValue == null) {
+                    removeKey(key);
+                }
+            }
+        };
+
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mThread = new HandlerThread("AppIconCache.Loader", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mLoaderHandler = new LoaderHandler(mThread.getLooper());
+    }
+
+    /**
+     * Returns the icon for the given application or component, loading and
+     * caching it if needed.  May block on the package manager.
+     */
+    public Drawable getIcon(PackageItemInfo info) {
+        final String key = keyFor(info);
+        Drawable icon = mCache.get(key);
+        if (icon == null) {
+            icon = loadIcon(info);
+            synchronized (mKeysByPackage) {
+                // Indexed first, so that the entry is dropped again if the
+                // put evicts it straight away.
+                HashSet<String> keys = mKeysByPackage.get(info.packageName);
+                if (keys == null) {
+                    keys = new HashSet<String>();
+                    mKeysByPackage.put(info.packageName, keys);
+                }
+                keys.add(key);
+                mCache.put(key, icon);
+            }
+        }
+        return newInstance(icon);
+    }
+
+    /**
+     * Returns the cached icon without loading it, or null.
+     */
+    public Drawable peekIcon(PackageItemInfo info) {
+        return newInstance(mCache.get(keyFor(info)));
+    }
+
+    /**
+     * Whether the icon is cached.  Unlike {@link #peekIcon} this does not
+     * count as a use of the icon.
+     */
+    public boolean isCached(PackageItemInfo info) {
+        synchronized (mKeysByPackage) {
+            final HashSet<String> keys = mKeysByPackage.get(info.packageName);
+            return keys != null && keys.contains(keyFor(info));
+        }
+    }
+
+    /**
+     * Returns the cached icon, or null after queueing a background load whose
+     * result goes to the callback.  Pass onScreen for rows that are visible
+     * right now so they are loaded before anything else.
+     */
+    public Drawable getIconAsync(PackageItemInfo info, boolean onScreen, Callback callback) {
+        final String key = keyFor(info);
+        Drawable icon = mCache.get(key);
+        if (icon != null) {
+            return newInstance(icon);
+        }
+        synchronized (mPending) {
+            ArrayList<Callback> callbacks = mPending.get(key);
+            if (callbacks == null) {
+                callbacks = new ArrayList<Callback>();
+                mPending.put(key, callbacks);
+                Message msg = mLoaderHandler.obtainMessage(LoaderHandler.MSG_LOAD, info);
+                if (onScreen) {
+                    mLoaderHandler.sendMessageAtFrontOfQueue(msg);
+                } else {
+                    mLoaderHandler.sendMessage(msg);
+                }
+            }
+            if (callback != null && !callbacks.contains(callback)) {
+                callbacks.add(callback);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops all cached icons of the given package, for example after it
+     * was updated.
+     */
+    public void invalidatePackage(String packageName) {
+        synchronized (mKeysByPackage) {
+            final HashSet<String> keys = mKeysByPackage.remove(packageName);
+            if (keys != null) {
+                for (String key : keys) {
+                    mCache.remove(key);
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (mKeysByPackage) {
+            mCache.evictAll();
+            mKeysByPackage.clear();
+        }
+    }
+
+    /** Bytes used by cached icons. */
+    public int size() {
+        return mCache.size();
+    }
+
+    /** Byte budget of the cache. */
+    public int maxSize() {
+        return mCache.maxSize();
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    public int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    @Override
+    public String toString() {
+        return "AppIconCache{size=" + mCache.size() + "/" + mCache.maxSize()
+                + " hits=" + mCache.hitCount() + " misses=" + mCache.missCount()
+                + " evictions=" + mCache.evictionCount() + "}";
+    }
+
+    private static String keyFor(PackageItemInfo info) {
+        if (info instanceof ApplicationInfo) {
+            return info.packageName;
+        }
+        return info.packageName + "/" + info.name;
+    }
+
+    private void removeKey(String key) {
+        final int slash = key.indexOf('/');
+        final String packageName = slash >= 0 ? key.substring(0, slash) : key;
+        synchronized (mKeysByPackage) {
+            final HashSet<String> keys = mKeysByPackage.get(packageName);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                mKeysByPackage.remove(packageName);
+            }
+        }
+    }
+
+    private Drawable loadIcon(PackageItemInfo info) {
+        final Drawable icon = info.loadIcon(mPm);
+        return icon != null ? scaleToRowSize(icon) : mPm.getDefaultActivityIcon();
+    }
+
+    private Drawable scaleToRowSize(Drawable icon) {
+        final Resources res = mContext.getResources();
+        int width = icon.getIntrinsicWidth();
+        int height = icon.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            width = height = mIconSize;
+        }
+        if (width <= mIconSize && height <= mIconSize && icon instanceof BitmapDrawable) {
+            return icon;
+        }
+        final float scale = Math.min(1f, Math.min((float) mIconSize / width,
+                (float) mIconSize / height));
+        final int scaledWidth = Math.max(1, (int) (width * scale));
+        final int scaledHeight = Math.max(1, (int) (height * scale));
+        if (icon instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+            if (bitmap != null) {
+                return new BitmapDrawable(res,
+                        Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, true));
+            }
+        }
+        final Bitmap bitmap = Bitmap.createBitmap(scaledWidth, scaledHeight,
+                Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        icon.setBounds(0, 0, scaledWidth, scaledHeight);
+        icon.draw(canvas);
+        return new BitmapDrawable(res, bitmap);
+    }
+
+    private int byteSizeOf(Drawable icon) {
+        if (icon instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+            if (bitmap != null) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        }
+        return mIconSize * mIconSize * 4;
+    }
+
+    // A drawable can only be attached to one view at a time, so every
+    // caller gets its own instance sharing the cached bitmap.
+    private Drawable newInstance(Drawable icon) {
+        if (icon == null) {
+            return null;
+        }
+        final Drawable.ConstantState state = icon.getConstantState();
+        return state != null ? state.newDrawable(mContext.getResources()) : icon;
+    }
+
+    private class LoaderHandler extends Handler {
+        static final int MSG_LOAD = 1;
+
+        LoaderHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_LOAD: {
+                    final PackageItemInfo info = (PackageItemInfo) msg.obj;
+                    final String key = keyFor(info);
+                    final Drawable icon = getIcon(info);
+                    final ArrayList<Callback> callbacks;
+                    synchronized (mPending) {
+                        callbacks = mPending.remove(key);
+                    }
+                    if (DEBUG) Log.v(TAG, "Loaded " + key + ": " + AppIconCache.this);
+                    if (callbacks != null && !callbacks.isEmpty()) {
+                        mMainHandler.post(new Runnable() {
+                            public void run() {
+                                for (int i = 0; i < callbacks.size(); i++) {
+                                    callbacks.get(i).onIconLoaded(info, icon);
+                                }
+                            }
+                        });
+                    }
+                } break;
+            }
+        }
+    }
+}
@@ -86,6 +86,8 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -125,6 +127,8 @@ import com.android.settings.net.NetworkPolicyEditor;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
 import com.android.settings.net.UidDetailProvider;
+import com.android.settings.net.UidUsageIndex;
+import com.android.settings.net.UidUsageIndexLoader;
 import com.android.settings.widget.ChartDataUsageView;
 import com.android.settings.widget.ChartDataUsageView.DataUsageChartListener;
 import com.android.settings.widget.ChartNetworkSeriesView;
@@ -171,6 +175,10 @@ public class DataUsageSummary extends Fragment {
 
     private static final int LOADER_CHART_DATA = 2;
     private static final int LOADER_SUMMARY = 3;
+    private static final int LOADER_USAGE_INDEX = 4;
+
+    /** Age after which the usage index of a cycle still in progress is loaded again. */
+    private static final long USAGE_INDEX_MAX_AGE = 30 * DateUtils.SECOND_IN_MILLIS;
 
     private static final long KB_IN_BYTES = 1024;
     private static final long MB_IN_BYTES = KB_IN_BYTES * 1024;
@@ -234,6 +242,14 @@ public class DataUsageSummary extends Fragment {
     private NetworkTemplate mTemplate;
     private ChartData mChartData;
 
+    /** Per-UID usage of the selected cycle, answering inspection ranges locally. */
+    private UidUsageIndex mUsageIndex;
+    /** Template and cycle that {@link #mUsageIndex} was last requested for. */
+    private NetworkTemplate mUsageIndexTemplate;
+    private long mUsageIndexStart;
+    private long mUsageIndexEnd;
+    private long mUsageIndexRequestedAt;
+
     private int[] mAppDetailUids = null;
 
     private Intent mAppSettingsIntent;
@@ -408,6 +424,8 @@ public class DataUsageSummary extends Fragment {
                     // wait a few seconds before kicking off
                     Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
                     mStatsService.forceUpdate();
+                    // histories cached before the update are now out of date
+                    ChartDataLoader.invalidateCache();
                 } catch (InterruptedException e) {
                 } catch (RemoteException e) {
                 }
@@ -417,6 +435,8 @@ public class DataUsageSummary extends Fragment {
             @Override
             protected void onPostExecute(Void result) {
                 if (isAdded()) {
+                    // usage index was built from stats before the update
+                    mUsageIndexTemplate = null;
                     updateBody();
                 }
             }
@@ -535,7 +555,7 @@ public class DataUsageSummary extends Fragment {
         mDataEnabledView = null;
         mDisableAtLimitView = null;
 
-        mUidDetailProvider.clearCache();
+        mUidDetailProvider.release();
         mUidDetailProvider = null;
     }
 
@@ -1166,9 +1186,18 @@ public class DataUsageSummary extends Fragment {
                 entry = mChartData.network.getValues(start, end, now, null);
             }
 
-            // kick off loader for detailed stats
-            getLoaderManager().restartLoader(LOADER_SUMMARY,
-                    SummaryForAllUidLoader.buildArgs(mTemplate, start, end), mSummaryCallbacks);
+            updateUsageIndex();
+            if (mUsageIndex != null && mUsageIndex.covers(mTemplate, start, end)) {
+                // rank applications locally while the range moves
+                getLoaderManager().destroyLoader(LOADER_SUMMARY);
+                mAdapter.bindStats(mUsageIndex.getSummary(start, end, now));
+                updateEmptyVisible();
+            } else {
+                // kick off loader for detailed stats
+                getLoaderManager().restartLoader(LOADER_SUMMARY,
+                        SummaryForAllUidLoader.buildArgs(mTemplate, start, end),
+                        mSummaryCallbacks);
+            }
         }
 
         final long totalBytes = entry != null ? entry.rxBytes + entry.txBytes : 0;
@@ -1179,6 +1208,43 @@ public class DataUsageSummary extends Fragment {
                 getString(R.string.data_usage_total_during_range, totalPhrase, rangePhrase));
     }
 
+    /**
+     * Kick off loading {@link #mUsageIndex} for the selected cycle, unless
+     * already loaded or loading.  The index of a cycle that was still in
+     * progress when it was requested is loaded again once it gets old, and
+     * kept in use until the new one arrives.
+     */
+    private void updateUsageIndex() {
+        final Object selected = mCycleSpinner.getSelectedItem();
+        if (!(selected instanceof CycleItem) || selected instanceof CycleChangeItem) {
+            return;
+        }
+        final CycleItem cycle = (CycleItem) selected;
+        final long now = System.currentTimeMillis();
+        if (Objects.equal(mUsageIndexTemplate, mTemplate) && mUsageIndexStart == cycle.start
+                && mUsageIndexEnd == cycle.end) {
+            if (cycle.end <= mUsageIndexRequestedAt
+                    || now - mUsageIndexRequestedAt < USAGE_INDEX_MAX_AGE) {
+                return;
+            }
+        } else {
+            mUsageIndex = null;
+        }
+
+        mUsageIndexRequestedAt = now;
+        mUsageIndexTemplate = mTemplate;
+        mUsageIndexStart = cycle.start;
+        mUsageIndexEnd = cycle.end;
+        getLoaderManager().restartLoader(LOADER_USAGE_INDEX,
+                UidUsageIndexLoader.buildArgs(mTemplate, cycle.start, cycle.end),
+                mUsageIndexCallbacks);
+    }
+
+    private void updateEmptyVisible() {
+        final boolean isEmpty = mAdapter.isEmpty() && !isAppDetailMode();
+        mEmpty.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
+    }
+
     private final LoaderCallbacks<ChartData> mChartDataCallbacks = new LoaderCallbacks<
             ChartData>() {
         /** {@inheritDoc} */
@@ -1188,6 +1254,10 @@ public class DataUsageSummary extends Fragment {
 
         /** {@inheritDoc} */
         public void onLoadFinished(Loader<ChartData> loader, ChartData data) {
+            if (data == null) {
+                // load was abandoned; keep showing what we have
+                return;
+            }
             mChartData = data;
             mChart.bindNetworkStats(mChartData.network);
             mChart.bindDetailNetworkStats(mChartData.detail);
@@ -1228,10 +1298,23 @@ public class DataUsageSummary extends Fragment {
             mAdapter.bindStats(null);
             updateEmptyVisible();
         }
+    };
 
-        private void updateEmptyVisible() {
-            final boolean isEmpty = mAdapter.isEmpty() && !isAppDetailMode();
-            mEmpty.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
+    private final LoaderCallbacks<UidUsageIndex> mUsageIndexCallbacks = new LoaderCallbacks<
+            UidUsageIndex>() {
+        /** {@inheritDoc} */
+        public Loader<UidUsageIndex> onCreateLoader(int id, Bundle args) {
+            return new UidUsageIndexLoader(getActivity(), mStatsService, args);
+        }
+
+        /** {@inheritDoc} */
+        public void onLoadFinished(Loader<UidUsageIndex> loader, UidUsageIndex data) {
+            mUsageIndex = data;
+        }
+
+        /** {@inheritDoc} */
+        public void onLoaderReset(Loader<UidUsageIndex> loader) {
+            mUsageIndex = null;
         }
     };
 
@@ -1396,7 +1479,7 @@ public class DataUsageSummary extends Fragment {
         }
     }
 
-    private static class AppUsageItem implements Comparable<AppUsageItem> {
+    static class AppUsageItem implements Comparable<AppUsageItem> {
         public int[] uids;
         public long total;
 
@@ -1404,13 +1487,6 @@ public class DataUsageSummary extends Fragment {
             uids = new int[] { uid };
         }
 
-        public void addUid(int uid) {
-            if (contains(uids, uid)) return;
-            final int length = uids.length;
-            uids = Arrays.copyOf(uids, length + 1);
-            uids[length] = uid;
-        }
-
         /** {@inheritDoc} */
         public int compareTo(AppUsageItem another) {
             return Long.compare(another.total, total);
@@ -1421,12 +1497,30 @@ public class DataUsageSummary extends Fragment {
      * Adapter of applications, sorted by total usage descending.
      */
     public static class DataUsageAdapter extends BaseAdapter {
+        /**
+         * Number of leading items sorted when binding, enough to fill the
+         * screen; the rest is sorted once scrolled to.
+         */
+        private static final int SORTED_WINDOW = 16;
+
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
 
         private ArrayList<AppUsageItem> mItems = Lists.newArrayList();
+        private int mSortedCount;
         private long mLargest;
 
+        /** Items of the last bind by UID, reused when the UID shows up again. */
+        private SparseArray<AppUsageItem> mKnownItems = new SparseArray<AppUsageItem>();
+        private SparseArray<AppUsageItem> mSpareItems = new SparseArray<AppUsageItem>();
+        private AppUsageItem mSystemItem;
+
+        // scratch space for aggregating stats rows
+        private final SparseIntArray mUidSlots = new SparseIntArray();
+        private final SparseBooleanArray mSystemUids = new SparseBooleanArray();
+        private int[] mSlotUids = new int[32];
+        private long[] mSlotTotals = new long[32];
+
         public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
             mProvider = checkNotNull(provider);
             mInsetSide = insetSide;
@@ -1437,9 +1531,12 @@ public class DataUsageSummary extends Fragment {
          */
         public void bindStats(NetworkStats stats) {
             mItems.clear();
+            mUidSlots.clear();
+            mSystemUids.clear();
 
-            final AppUsageItem systemItem = new AppUsageItem(android.os.Process.SYSTEM_UID);
-            final SparseArray<AppUsageItem> knownUids = new SparseArray<AppUsageItem>();
+            // sum bytes per UID into primitive slots before touching items
+            int slotCount = 0;
+            long systemTotal = 0;
 
             NetworkStats.Entry entry = null;
             final int size = stats != null ? stats.size() : 0;
@@ -1450,29 +1547,133 @@ public class DataUsageSummary extends Fragment {
                 final boolean isApp = uid >= android.os.Process.FIRST_APPLICATION_UID
                         && uid <= android.os.Process.LAST_APPLICATION_UID;
                 if (isApp || uid == UID_REMOVED || uid == UID_TETHERING) {
-                    AppUsageItem item = knownUids.get(uid);
-                    if (item == null) {
-                        item = new AppUsageItem(uid);
-                        knownUids.put(uid, item);
-                        mItems.add(item);
+                    int slot = mUidSlots.get(uid, -1);
+                    if (slot < 0) {
+                        if (slotCount == mSlotUids.length) {
+                            mSlotUids = Arrays.copyOf(mSlotUids, slotCount * 2);
+                            mSlotTotals = Arrays.copyOf(mSlotTotals, slotCount * 2);
+                        }
+                        slot = slotCount++;
+                        mUidSlots.put(uid, slot);
+                        mSlotUids[slot] = uid;
+                        mSlotTotals[slot] = 0;
                     }
-
-                    item.total += entry.rxBytes + entry.txBytes;
+                    mSlotTotals[slot] += entry.rxBytes + entry.txBytes;
                 } else {
-                    systemItem.total += entry.rxBytes + entry.txBytes;
-                    systemItem.addUid(uid);
+                    systemTotal += entry.rxBytes + entry.txBytes;
+                    mSystemUids.put(uid, true);
                 }
             }
 
-            if (systemItem.total > 0) {
-                mItems.add(systemItem);
+            final SparseArray<AppUsageItem> known = mSpareItems;
+            known.clear();
+            for (int slot = 0; slot < slotCount; slot++) {
+                final int uid = mSlotUids[slot];
+                AppUsageItem item = mKnownItems.get(uid);
+                if (item == null) {
+                    item = new AppUsageItem(uid);
+                }
+                item.total = mSlotTotals[slot];
+                known.put(uid, item);
+                mItems.add(item);
             }
+            mSpareItems = mKnownItems;
+            mKnownItems = known;
 
-            Collections.sort(mItems);
+            if (systemTotal > 0) {
+                if (mSystemItem == null) {
+                    mSystemItem = new AppUsageItem(android.os.Process.SYSTEM_UID);
+                }
+                final int systemCount = mSystemUids.size();
+                final boolean hasSystemUid = mSystemUids.get(android.os.Process.SYSTEM_UID);
+                final int[] uids = new int[hasSystemUid ? systemCount : systemCount + 1];
+                uids[0] = android.os.Process.SYSTEM_UID;
+                int next = 1;
+                for (int i = 0; i < systemCount; i++) {
+                    final int uid = mSystemUids.keyAt(i);
+                    if (uid != android.os.Process.SYSTEM_UID) {
+                        uids[next++] = uid;
+                    }
+                }
+                mSystemItem.uids = uids;
+                mSystemItem.total = systemTotal;
+                mItems.add(mSystemItem);
+            }
+
+            // only order what is visible; the tail is sorted when reached
+            final int window = Math.min(SORTED_WINDOW, mItems.size());
+            if (window < mItems.size()) {
+                selectLargest(mItems, window);
+            }
+            Collections.sort(mItems.subList(0, window));
+            mSortedCount = window;
             mLargest = (mItems.size() > 0) ? mItems.get(0).total : 0;
+
+            // resolve labels and icons of the visible rows in parallel
+            prefetch(0, window);
+
             notifyDataSetChanged();
         }
 
+        /**
+         * Start resolving details of the items in the given range, which
+         * must already be sorted.
+         */
+        private void prefetch(int start, int end) {
+            if (start >= end) {
+                return;
+            }
+            final int[] uids = new int[end - start];
+            for (int i = start; i < end; i++) {
+                uids[i - start] = mItems.get(i).uids[0];
+            }
+            mProvider.prefetch(uids);
+        }
+
+        /**
+         * Reorder items so the first {@code count} hold the largest totals,
+         * in no particular order, with a quickselect.
+         */
+        private static void selectLargest(ArrayList<AppUsageItem> items, int count) {
+            final int target = count - 1;
+            int left = 0;
+            int right = items.size() - 1;
+            while (left < right) {
+                final long pivot = items.get((left + right) >>> 1).total;
+                int i = left;
+                int j = right;
+                while (i <= j) {
+                    while (items.get(i).total > pivot) i++;
+                    while (items.get(j).total < pivot) j--;
+                    if (i <= j) {
+                        Collections.swap(items, i, j);
+                        i++;
+                        j--;
+                    }
+                }
+                if (target <= j) {
+                    right = j;
+                } else if (target >= i) {
+                    left = i;
+                } else {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Sort remaining items when a position past the sorted window is
+         * requested.
+         */
+        private void ensureSorted(int position) {
+            if (position >= mSortedCount) {
+                final int start = mSortedCount;
+                Collections.sort(mItems.subList(start, mItems.size()));
+                mSortedCount = mItems.size();
+                prefetch(start, mSortedCount);
+            }
+        }
+
         @Override
         public int getCount() {
             return mItems.size();
@@ -1480,11 +1681,13 @@ public class DataUsageSummary extends Fragment {
 
         @Override
         public Object getItem(int position) {
+            ensureSorted(position);
             return mItems.get(position);
         }
 
         @Override
         public long getItemId(int position) {
+            ensureSorted(position);
             return mItems.get(position).uids[0];
         }
 
@@ -1506,6 +1709,7 @@ public class DataUsageSummary extends Fragment {
                     android.R.id.progress);
 
             // kick off async load of app details
+            ensureSorted(position);
             final AppUsageItem item = mItems.get(position);
             UidDetailTask.bindView(mProvider, item, convertView);
 
@@ -2221,13 +2425,4 @@ public class DataUsageSummary extends Fragment {
         summary.setVisibility(View.VISIBLE);
         summary.setText(string);
     }
-
-    private static boolean contains(int[] haystack, int needle) {
-        for (int value : haystack) {
-            if (value == needle) {
-                return true;
-            }
-        }
-        return false;
-    }
 }
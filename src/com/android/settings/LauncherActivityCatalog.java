@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Process-wide catalog of launcher activities, shortcut activities and
+ * installed packages with their activities, sorted by label. Lists are
+ * built on a background thread the first time they are asked for, and kept
+ * up to date by reloading only the packages named in package broadcasts, so
+ * pickers showing them open without querying the package manager.
+ *
+ * Icons are not part of the catalog; load them through {@link AppIconCache}.
+ */
+public class LauncherActivityCatalog {
+    private static final String TAG = "LauncherActivityCatalog";
+    private static final boolean DEBUG = false;
+
+    /** Activities matching {@link Intent#ACTION_MAIN} in {@link Intent#CATEGORY_LAUNCHER}. */
+    public static final int LIST_LAUNCHER = 0;
+    /** Activities matching {@link Intent#ACTION_CREATE_SHORTCUT}. */
+    public static final int LIST_SHORTCUTS = 1;
+    private static final int LIST_COUNT = 2;
+
+    /**
+     * Notified on the main thread whenever a list was loaded or changed.
+     */
+    public interface Callback {
+        public void onCatalogChanged();
+    }
+
+    /** Activity in one of the activity lists. */
+    public static class ActivityEntry {
+        public final ResolveInfo resolveInfo;
+        public final String label;
+        final CollationKey collationKey;
+
+        ActivityEntry(ResolveInfo resolveInfo, String label, Collator collator) {
+            this.resolveInfo = resolveInfo;
+            this.label = label;
+            this.collationKey = collator.getCollationKey(label);
+        }
+    }
+
+    /** Installed package, with all of its activities. */
+    public static class PackageEntry {
+        public final PackageInfo packageInfo;
+        public final String label;
+        final CollationKey collationKey;
+
+        PackageEntry(PackageInfo packageInfo, String label, Collator collator) {
+            this.packageInfo = packageInfo;
+            this.label = label;
+            this.collationKey = collator.getCollationKey(label);
+        }
+    }
+
+    private static final Comparator<ActivityEntry> ACTIVITY_COMPARATOR =
+            new Comparator<ActivityEntry>() {
+        public int compare(ActivityEntry lhs, ActivityEntry rhs) {
+            return lhs.collationKey.compareTo(rhs.collationKey);
+        }
+    };
+
+    private static final Comparator<PackageEntry> PACKAGE_COMPARATOR =
+            new Comparator<PackageEntry>() {
+        public int compare(PackageEntry lhs, PackageEntry rhs) {
+            return lhs.collationKey.compareTo(rhs.collationKey);
+        }
+    };
+
+    private static final Object sLock = new Object();
+    private static LauncherActivityCatalog sInstance;
+
+    public static LauncherActivityCatalog getInstance(Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new LauncherActivityCatalog(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    /** Returns a new copy of the query intent of the given list. */
+    public static Intent getListIntent(int list) {
+        switch (list) {
+            case LIST_LAUNCHER:
+                return new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER);
+            case LIST_SHORTCUTS:
+                return new Intent(Intent.ACTION_CREATE_SHORTCUT);
+            default:
+                throw new IllegalArgumentException("Unknown list " + list);
+        }
+    }
+
+    /**
+     * Returns the list whose query intent matches the given intent, or -1
+     * if the catalog cannot answer it.
+     */
+    public static int findList(Intent intent) {
+        for (int list = 0; list < LIST_COUNT; list++) {
+            if (getListIntent(list).filterEquals(intent)) {
+                return list;
+            }
+        }
+        return -1;
+    }
+
+    private final Context mContext;
+    private final PackageManager mPm;
+
+    // All state below is guarded by this.
+    private Collator mCollator;
+    private final ArrayList<HashMap<String, ArrayList<ActivityEntry>>> mActivitiesByPackage =
+            new ArrayList<HashMap<String, ArrayList<ActivityEntry>>>(LIST_COUNT);
+    private final ArrayList<List<ActivityEntry>> mActivities =
+            new ArrayList<List<ActivityEntry>>(LIST_COUNT);
+    private final boolean[] mActivitiesRequested = new boolean[LIST_COUNT];
+    private HashMap<String, PackageEntry> mPackagesByName;
+    private List<PackageEntry> mPackages;
+    private boolean mPackagesRequested;
+
+    private final ArrayList<Callback> mCallbacks = new ArrayList<Callback>();
+
+    private final Handler mMainHandler;
+    private final HandlerThread mThread;
+    private final WorkerHandler mWorkerHandler;
+
+    private final Runnable mDispatchChanged = new Runnable() {
+        public void run() {
+            final Callback[] callbacks;
+            synchronized (LauncherActivityCatalog.this) {
+                callbacks = mCallbacks.toArray(new Callback[mCallbacks.size()]);
+            }
+            for (Callback callback : callbacks) {
+                callback.onCatalogChanged();
+            }
+        }
+    };
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                mWorkerHandler.sendEmptyMessage(WorkerHandler.MSG_RELOAD);
+            } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                final String[] packageNames = intent.getStringArrayExtra(
+                        Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                if (packageNames != null) {
+                    mWorkerHandler.obtainMessage(WorkerHandler.MSG_UPDATE_PACKAGES,
+                            packageNames).sendToTarget();
+                }
+            } else if (intent.getData() != null) {
+                final String packageName = intent.getData().getSchemeSpecificPart();
+                mWorkerHandler.obtainMessage(WorkerHandler.MSG_UPDATE_PACKAGES,
+                        new String[] { packageName }).sendToTarget();
+            }
+        }
+    };
+
+    private LauncherActivityCatalog(Context context) {
+        mContext = context;
+        mPm = context.getPackageManager();
+        mCollator = Collator.getInstance();
+        for (int list = 0; list < LIST_COUNT; list++) {
+            mActivitiesByPackage.add(null);
+            mActivities.add(null);
+        }
+
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mWorkerHandler = new WorkerHandler(mThread.getLooper());
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, filter);
+        filter = new IntentFilter(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        mContext.registerReceiver(mPackageReceiver, filter);
+    }
+
+    public synchronized void registerCallback(Callback callback) {
+        if (!mCallbacks.contains(callback)) {
+            mCallbacks.add(callback);
+        }
+    }
+
+    public synchronized void unregisterCallback(Callback callback) {
+        mCallbacks.remove(callback);
+    }
+
+    /**
+     * Returns the sorted, unmodifiable activities of the given list, or null
+     * if the list is still loading; registered callbacks are notified when
+     * it is ready.
+     */
+    public synchronized List<ActivityEntry> getActivities(int list) {
+        if (!mActivitiesRequested[list]) {
+            mActivitiesRequested[list] = true;
+            mWorkerHandler.obtainMessage(WorkerHandler.MSG_LOAD_ACTIVITIES, list, 0)
+                    .sendToTarget();
+        }
+        return mActivities.get(list);
+    }
+
+    /**
+     * Returns the sorted, unmodifiable installed packages, or null if they are
+     * still loading; registered callbacks are notified when they are ready.
+     */
+    public synchronized List<PackageEntry> getPackages() {
+        if (!mPackagesRequested) {
+            mPackagesRequested = true;
+            mWorkerHandler.sendEmptyMessage(WorkerHandler.MSG_LOAD_PACKAGES);
+        }
+        return mPackages;
+    }
+
+    private String loadLabel(ResolveInfo info) {
+        CharSequence label = info.loadLabel(mPm);
+        if (label == null) label = info.activityInfo.name;
+        return label != null ? label.toString() : "";
+    }
+
+    private String loadLabel(PackageInfo info) {
+        final CharSequence label = info.applicationInfo != null
+                ? info.applicationInfo.loadLabel(mPm) : null;
+        return label != null ? label.toString() : info.packageName;
+    }
+
+    /** Query the activities of a list, optionally limited to one package, grouped by package. */
+    private HashMap<String, ArrayList<ActivityEntry>> queryActivities(int list,
+            String packageName, Collator collator) {
+        final Intent intent = getListIntent(list);
+        if (packageName != null) {
+            intent.setPackage(packageName);
+        }
+        final HashMap<String, ArrayList<ActivityEntry>> byPackage =
+                new HashMap<String, ArrayList<ActivityEntry>>();
+        for (ResolveInfo info : mPm.queryIntentActivities(intent, 0)) {
+            final String name = info.activityInfo.packageName;
+            ArrayList<ActivityEntry> entries = byPackage.get(name);
+            if (entries == null) {
+                entries = new ArrayList<ActivityEntry>(1);
+                byPackage.put(name, entries);
+            }
+            entries.add(new ActivityEntry(info, loadLabel(info), collator));
+        }
+        return byPackage;
+    }
+
+    private PackageEntry queryPackage(String packageName, Collator collator) {
+        try {
+            final PackageInfo info = mPm.getPackageInfo(packageName,
+                    PackageManager.GET_ACTIVITIES);
+            return new PackageEntry(info, loadLabel(info), collator);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static List<ActivityEntry> sortActivities(
+            HashMap<String, ArrayList<ActivityEntry>> byPackage) {
+        final ArrayList<ActivityEntry> entries = new ArrayList<ActivityEntry>();
+        for (ArrayList<ActivityEntry> packageEntries : byPackage.values()) {
+            entries.addAll(packageEntries);
+        }
+        Collections.sort(entries, ACTIVITY_COMPARATOR);
+        return Collections.unmodifiableList(entries);
+    }
+
+    private static List<PackageEntry> sortPackages(HashMap<String, PackageEntry> byName) {
+        final ArrayList<PackageEntry> entries = new ArrayList<PackageEntry>(byName.values());
+        Collections.sort(entries, PACKAGE_COMPARATOR);
+        return Collections.unmodifiableList(entries);
+    }
+
+    private void loadActivities(int list) {
+        final Collator collator;
+        synchronized (this) {
+            collator = mCollator;
+        }
+        final HashMap<String, ArrayList<ActivityEntry>> byPackage =
+                queryActivities(list, null, collator);
+        final List<ActivityEntry> sorted = sortActivities(byPackage);
+        synchronized (this) {
+            mActivitiesByPackage.set(list, byPackage);
+            mActivities.set(list, sorted);
+        }
+        if (DEBUG) Log.d(TAG, "Loaded " + sorted.size() + " activities of list " + list);
+    }
+
+    private void loadPackages() {
+        final Collator collator;
+        synchronized (this) {
+            collator = mCollator;
+        }
+        final HashMap<String, PackageEntry> byName = new HashMap<String, PackageEntry>();
+        for (PackageInfo info : mPm.getInstalledPackages(PackageManager.GET_ACTIVITIES)) {
+            byName.put(info.packageName, new PackageEntry(info, loadLabel(info), collator));
+        }
+        final List<PackageEntry> sorted = sortPackages(byName);
+        synchronized (this) {
+            mPackagesByName = byName;
+            mPackages = sorted;
+        }
+        if (DEBUG) Log.d(TAG, "Loaded " + sorted.size() + " packages");
+    }
+
+    /** Reload only the given packages in every loaded list. */
+    private void updatePackages(String[] packageNames) {
+        final Collator collator;
+        synchronized (this) {
+            collator = mCollator;
+        }
+        for (int list = 0; list < LIST_COUNT; list++) {
+            final HashMap<String, ArrayList<ActivityEntry>> current;
+            synchronized (this) {
+                current = mActivitiesByPackage.get(list);
+            }
+            if (current == null) continue;
+
+            final HashMap<String, ArrayList<ActivityEntry>> updated =
+                    new HashMap<String, ArrayList<ActivityEntry>>(current);
+            for (String packageName : packageNames) {
+                updated.remove(packageName);
+                updated.putAll(queryActivities(list, packageName, collator));
+            }
+            final List<ActivityEntry> sorted = sortActivities(updated);
+            synchronized (this) {
+                mActivitiesByPackage.set(list, updated);
+                mActivities.set(list, sorted);
+            }
+        }
+
+        final HashMap<String, PackageEntry> current;
+        synchronized (this) {
+            current = mPackagesByName;
+        }
+        if (current != null) {
+            final HashMap<String, PackageEntry> updated =
+                    new HashMap<String, PackageEntry>(current);
+            for (String packageName : packageNames) {
+                final PackageEntry entry = queryPackage(packageName, collator);
+                if (entry != null) {
+                    updated.put(packageName, entry);
+                } else {
+                    updated.remove(packageName);
+                }
+            }
+            final List<PackageEntry> sorted = sortPackages(updated);
+            synchronized (this) {
+                mPackagesByName = updated;
+                mPackages = sorted;
+            }
+        }
+
+        final AppIconCache iconCache = AppIconCache.getInstance(mContext);
+        for (String packageName : packageNames) {
+            iconCache.invalidatePackage(packageName);
+        }
+    }
+
+    /** Reload everything that was loaded, for example with a new collation. */
+    private void reload() {
+        final boolean[] activitiesLoaded = new boolean[LIST_COUNT];
+        final boolean packagesLoaded;
+        synchronized (this) {
+            mCollator = Collator.getInstance();
+            for (int list = 0; list < LIST_COUNT; list++) {
+                activitiesLoaded[list] = mActivitiesByPackage.get(list) != null;
+            }
+            packagesLoaded = mPackagesByName != null;
+        }
+        for (int list = 0; list < LIST_COUNT; list++) {
+            if (activitiesLoaded[list]) {
+                loadActivities(list);
+            }
+        }
+        if (packagesLoaded) {
+            loadPackages();
+        }
+    }
+
+    private class WorkerHandler extends Handler {
+        static final int MSG_LOAD_ACTIVITIES = 1;
+        static final int MSG_LOAD_PACKAGES = 2;
+        static final int MSG_UPDATE_PACKAGES = 3;
+        static final int MSG_RELOAD = 4;
+
+        WorkerHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_LOAD_ACTIVITIES:
+                    loadActivities(msg.arg1);
+                    break;
+                case MSG_LOAD_PACKAGES:
+                    loadPackages();
+                    break;
+                case MSG_UPDATE_PACKAGES:
+                    updatePackages((String[]) msg.obj);
+                    break;
+                case MSG_RELOAD:
+                    reload();
+                    break;
+            }
+            mMainHandler.removeCallbacks(mDispatchChanged);
+            mMainHandler.post(mDispatchChanged);
+        }
+    }
+}
@@ -30,12 +30,10 @@ import android.accounts.OnAccountsUpdateListener;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SyncAdapterType;
-import android.content.SyncStatusObserver;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
-import android.os.Handler;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceScreen;
 import android.util.Log;
@@ -49,8 +47,7 @@ class AccountPreferenceBase extends SettingsPreferenceFragment
     private Map<String, AuthenticatorDescription> mTypeToAuthDescription
             = new HashMap<String, AuthenticatorDescription>();
     protected AuthenticatorDescription[] mAuthDescs;
-    private final Handler mHandler = new Handler();
-    private Object mStatusChangeListenerHandle;
+    private SyncStatusTracker mSyncStatusTracker;
     private HashMap<String, ArrayList<String>> mAccountTypeToAuthorities = null;
 
     /**
@@ -77,31 +74,54 @@ class AccountPreferenceBase extends SettingsPreferenceFragment
     @Override
     public void onResume() {
         super.onResume();
-        mStatusChangeListenerHandle = ContentResolver.addStatusChangeListener(
-                ContentResolver.SYNC_OBSERVER_TYPE_ACTIVE
-                | ContentResolver.SYNC_OBSERVER_TYPE_STATUS
-                | ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS,
-                mSyncStatusObserver);
+        if (mSyncStatusTracker == null) {
+            mSyncStatusTracker = new SyncStatusTracker(getActivity(), mSyncStatusListener);
+        }
+        mSyncStatusTracker.start();
+        // Show the state from the last snapshot until the new one has loaded
         onSyncStateUpdated();
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        ContentResolver.removeStatusChangeListener(mStatusChangeListenerHandle);
+        mSyncStatusTracker.stop();
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mSyncStatusTracker != null) {
+            mSyncStatusTracker.quit();
+        }
+    }
 
-    private SyncStatusObserver mSyncStatusObserver = new SyncStatusObserver() {
-        public void onStatusChanged(int which) {
-            mHandler.post(new Runnable() {
-                public void run() {
-                    onSyncStateUpdated();
-                }
-            });
+    private final SyncStatusTracker.Listener mSyncStatusListener =
+            new SyncStatusTracker.Listener() {
+        public void onSyncStatusUpdated(SyncStatusSnapshot snapshot) {
+            onSyncStateUpdated();
         }
     };
 
+    /**
+     * Returns the sync state of all accounts as last loaded in the background,
+     * or null if it has not loaded yet. {@link #onSyncStateUpdated()} is
+     * called whenever a new snapshot is available.
+     */
+    protected SyncStatusSnapshot getSyncStatusSnapshot() {
+        return mSyncStatusTracker != null ? mSyncStatusTracker.getSnapshot() : null;
+    }
+
+    /**
+     * Reload the sync state soon, for changes that do not notify sync
+     * status observers, such as accounts being added.
+     */
+    protected void requestSyncStateRefresh() {
+        if (mSyncStatusTracker != null) {
+            mSyncStatusTracker.requestRefresh();
+        }
+    }
+
     public ArrayList<String> getAuthoritiesForAccountType(String type) {
         if (mAccountTypeToAuthorities == null) {
             mAccountTypeToAuthorities = Maps.newHashMap();
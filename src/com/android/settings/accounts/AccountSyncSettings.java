@@ -30,16 +30,16 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SyncAdapterType;
-import android.content.SyncInfo;
-import android.content.SyncStatusInfo;
 import android.content.pm.ProviderInfo;
 import android.net.ConnectivityManager;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.Preference;
 import android.preference.PreferenceScreen;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.util.Log;
+import android.util.Pair;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -58,7 +58,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
 
 public class AccountSyncSettings extends AccountPreferenceBase {
 
@@ -82,6 +81,11 @@ public class AccountSyncSettings extends AccountPreferenceBase {
     private ArrayList<SyncStateCheckBoxPreference> mCheckBoxes =
                 new ArrayList<SyncStateCheckBoxPreference>();
     private ArrayList<String> mInvisibleAdapters = Lists.newArrayList();
+    // Whether a sync was running at the last update, which decides the menu items
+    private boolean mSyncActive;
+    // Uptime at which the user last toggled sync of an account and authority.
+    // Snapshots that started loading before then do not reflect the toggle.
+    private final HashMap<Pair<Account, String>, Long> mLocalWriteTimes = Maps.newHashMap();
 
     @Override
     public Dialog onCreateDialog(final int id) {
@@ -203,7 +207,8 @@ public class AccountSyncSettings extends AccountPreferenceBase {
         AccountManager.get(getActivity()).removeOnAccountsUpdatedListener(this);
     }
 
-    private void addSyncStateCheckBox(Account account, String authority) {
+    private SyncStateCheckBoxPreference createSyncStateCheckBox(Account account,
+            String authority) {
         SyncStateCheckBoxPreference item =
                 new SyncStateCheckBoxPreference(getActivity(), account, authority);
         item.setPersistent(false);
@@ -217,7 +222,18 @@ public class AccountSyncSettings extends AccountPreferenceBase {
         String title = getString(R.string.sync_item_title, providerLabel);
         item.setTitle(title);
         item.setKey(authority);
-        mCheckBoxes.add(item);
+        return item;
+    }
+
+    private SyncStateCheckBoxPreference findSyncStateCheckBox(Account account,
+            String authority) {
+        for (int i = 0, n = mCheckBoxes.size(); i < n; i++) {
+            final SyncStateCheckBoxPreference item = mCheckBoxes.get(i);
+            if (item.getAccount().equals(account) && item.getAuthority().equals(authority)) {
+                return item;
+            }
+        }
+        return null;
     }
 
     @Override
@@ -245,9 +261,8 @@ public class AccountSyncSettings extends AccountPreferenceBase {
     @Override
     public void onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
-        boolean syncActive = ContentResolver.getCurrentSync() != null;
-        menu.findItem(MENU_SYNC_NOW_ID).setVisible(!syncActive);
-        menu.findItem(MENU_SYNC_CANCEL_ID).setVisible(syncActive);
+        menu.findItem(MENU_SYNC_NOW_ID).setVisible(!mSyncActive);
+        menu.findItem(MENU_SYNC_CANCEL_ID).setVisible(mSyncActive);
     }
 
     @Override
@@ -281,6 +296,9 @@ public class AccountSyncSettings extends AccountPreferenceBase {
                 if (syncOn != oldSyncState) {
                     // if we're enabling sync, this will request a sync as well
                     ContentResolver.setSyncAutomatically(account, authority, syncOn);
+                    mLocalWriteTimes.put(Pair.create(account, authority),
+                            SystemClock.uptimeMillis());
+                    requestSyncStateRefresh();
                     // if the master sync switch is off, the request above will
                     // get dropped.  when the user clicks on this toggle,
                     // we want to force the sync, however.
@@ -337,15 +355,6 @@ public class AccountSyncSettings extends AccountPreferenceBase {
         }
     }
 
-    private boolean isSyncing(List<SyncInfo> currentSyncs, Account account, String authority) {
-        for (SyncInfo syncInfo : currentSyncs) {
-            if (syncInfo.account.equals(account) && syncInfo.authority.equals(authority)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     @Override
     protected void onSyncStateUpdated() {
         if (!isResumed()) return;
@@ -353,14 +362,25 @@ public class AccountSyncSettings extends AccountPreferenceBase {
     }
 
     private void setFeedsState() {
+        final SyncStatusSnapshot snapshot = getSyncStatusSnapshot();
+        if (snapshot == null) {
+            // Still loading; called again when it is ready
+            return;
+        }
+
         // iterate over all the preferences, setting the state properly for each
         Date date = new Date();
-        List<SyncInfo> currentSyncs = ContentResolver.getCurrentSyncs();
         boolean syncIsFailing = false;
 
         // Refresh the sync status checkboxes - some syncs may have become active.
         updateAccountCheckboxes(mAccounts);
 
+        ConnectivityManager connManager =
+            (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        final boolean backgroundDataEnabled = connManager.getBackgroundDataSetting();
+        final boolean oneTimeSyncMode =
+                !snapshot.masterSyncAutomatically || !backgroundDataEnabled;
+
         for (int i = 0, count = getPreferenceScreen().getPreferenceCount(); i < count; i++) {
             Preference pref = getPreferenceScreen().getPreference(i);
             if (! (pref instanceof SyncStateCheckBoxPreference)) {
@@ -371,16 +391,17 @@ public class AccountSyncSettings extends AccountPreferenceBase {
             String authority = syncPref.getAuthority();
             Account account = syncPref.getAccount();
 
-            SyncStatusInfo status = ContentResolver.getSyncStatus(account, authority);
-            boolean syncEnabled = ContentResolver.getSyncAutomatically(account, authority);
-            boolean authorityIsPending = status == null ? false : status.pending;
-            boolean initialSync = status == null ? false : status.initialize;
+            SyncStatusSnapshot.AuthorityStatus status = snapshot.getStatus(account, authority);
+            if (status == null) {
+                // Not in the snapshot yet; a newer one is on its way
+                continue;
+            }
+            boolean syncEnabled = status.syncAutomatically;
+            boolean authorityIsPending = status.pending;
+            boolean initialSync = status.initialize;
 
-            boolean activelySyncing = isSyncing(currentSyncs, account, authority);
-            boolean lastSyncFailed = status != null
-                    && status.lastFailureTime != 0
-                    && status.getLastFailureMesgAsInt(0)
-                       != ContentResolver.SYNC_ERROR_SYNC_ALREADY_IN_PROGRESS;
+            boolean activelySyncing = status.active;
+            boolean lastSyncFailed = status.lastSyncFailed;
             if (!syncEnabled) lastSyncFailed = false;
             if (lastSyncFailed && !activelySyncing && !authorityIsPending) {
                 syncIsFailing = true;
@@ -390,7 +411,7 @@ public class AccountSyncSettings extends AccountPreferenceBase {
                         " active = " + activelySyncing + " pend =" +  authorityIsPending);
             }
 
-            final long successEndTime = (status == null) ? 0 : status.lastSuccessTime;
+            final long successEndTime = status.lastSuccessTime;
             if (successEndTime != 0) {
                 date.setTime(successEndTime);
                 final String timeString = mDateFormat.format(date) + " "
@@ -399,7 +420,7 @@ public class AccountSyncSettings extends AccountPreferenceBase {
             } else {
                 syncPref.setSummary("");
             }
-            int syncState = ContentResolver.getIsSyncable(account, authority);
+            int syncState = status.isSyncable;
 
             syncPref.setActive(activelySyncing && (syncState >= 0) &&
                     !initialSync);
@@ -407,30 +428,42 @@ public class AccountSyncSettings extends AccountPreferenceBase {
                     !initialSync);
 
             syncPref.setFailed(lastSyncFailed);
-            ConnectivityManager connManager =
-                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-            final boolean masterSyncAutomatically = ContentResolver.getMasterSyncAutomatically();
-            final boolean backgroundDataEnabled = connManager.getBackgroundDataSetting();
-            final boolean oneTimeSyncMode = !masterSyncAutomatically || !backgroundDataEnabled;
             syncPref.setOneTimeSyncMode(oneTimeSyncMode);
-            syncPref.setChecked(oneTimeSyncMode || syncEnabled);
+            final Long writeTime = mLocalWriteTimes.get(Pair.create(account, authority));
+            if (writeTime != null && snapshot.loadStartTime <= writeTime) {
+                // Loaded before the user toggled it; keep the toggle until a
+                // newer snapshot arrives
+                continue;
+            }
+            final boolean checked = oneTimeSyncMode || syncEnabled;
+            if (syncPref.isChecked() != checked) {
+                syncPref.setChecked(checked);
+            }
         }
         mErrorInfoView.setVisibility(syncIsFailing ? View.VISIBLE : View.GONE);
-        getActivity().invalidateOptionsMenu();
+        if (mSyncActive != snapshot.isSyncActive()) {
+            mSyncActive = snapshot.isSyncActive();
+            getActivity().invalidateOptionsMenu();
+        }
     }
 
     @Override
     public void onAccountsUpdated(Account[] accounts) {
         super.onAccountsUpdated(accounts);
         mAccounts = accounts;
+        requestSyncStateRefresh();
         updateAccountCheckboxes(accounts);
         onSyncStateUpdated();
     }
 
     private void updateAccountCheckboxes(Account[] accounts) {
+        final SyncStatusSnapshot snapshot = getSyncStatusSnapshot();
+        if (accounts == null || snapshot == null) {
+            return;
+        }
         mInvisibleAdapters.clear();
 
-        SyncAdapterType[] syncAdapters = ContentResolver.getSyncAdapterTypes();
+        SyncAdapterType[] syncAdapters = snapshot.syncAdapters;
         HashMap<String, ArrayList<String>> accountTypeToAuthorities =
             Maps.newHashMap();
         for (int i = 0, n = syncAdapters.length; i < n; i++) {
@@ -453,11 +486,10 @@ public class AccountSyncSettings extends AccountPreferenceBase {
             }
         }
 
-        for (int i = 0, n = mCheckBoxes.size(); i < n; i++) {
-            getPreferenceScreen().removePreference(mCheckBoxes.get(i));
-        }
-        mCheckBoxes.clear();
-
+        // Keep the existing checkboxes, so only those whose state changes get rebound
+        ArrayList<SyncStateCheckBoxPreference> checkBoxes =
+                new ArrayList<SyncStateCheckBoxPreference>();
+        boolean changed = false;
         for (int i = 0, n = accounts.length; i < n; i++) {
             final Account account = accounts[i];
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
@@ -468,16 +500,34 @@ public class AccountSyncSettings extends AccountPreferenceBase {
                 for (int j = 0, m = authorities.size(); j < m; j++) {
                     final String authority = authorities.get(j);
                     // We could check services here....
-                    int syncState = ContentResolver.getIsSyncable(account, authority);
+                    SyncStatusSnapshot.AuthorityStatus status =
+                            snapshot.getStatus(account, authority);
+                    int syncState = status != null ? status.isSyncable : 0;
                     if (Log.isLoggable(TAG, Log.VERBOSE)) {
                         Log.d(TAG, "  found authority " + authority + " " + syncState);
                     }
                     if (syncState > 0) {
-                        addSyncStateCheckBox(account, authority);
+                        SyncStateCheckBoxPreference item =
+                                findSyncStateCheckBox(account, authority);
+                        if (item == null) {
+                            item = createSyncStateCheckBox(account, authority);
+                            changed = true;
+                        }
+                        checkBoxes.add(item);
                     }
                 }
             }
         }
+        if (!changed && checkBoxes.size() == mCheckBoxes.size()) {
+            // Same checkboxes as before
+            return;
+        }
+
+        for (int i = 0, n = mCheckBoxes.size(); i < n; i++) {
+            getPreferenceScreen().removePreference(mCheckBoxes.get(i));
+        }
+        mCheckBoxes.clear();
+        mCheckBoxes.addAll(checkBoxes);
 
         Collections.sort(mCheckBoxes);
         for (int i = 0, n = mCheckBoxes.size(); i < n; i++) {
@@ -492,6 +542,8 @@ public class AccountSyncSettings extends AccountPreferenceBase {
     protected void onAuthDescriptionsUpdated() {
         super.onAuthDescriptionsUpdated();
         getPreferenceScreen().removeAll();
+        // The checkboxes went with the rest of the screen; add them back
+        mCheckBoxes.clear();
         if (mAccount != null) {
             mProviderIcon.setImageDrawable(getDrawableForType(mAccount.type));
             mProviderId.setText(getLabelForType(mAccount.type));
@@ -501,6 +553,7 @@ public class AccountSyncSettings extends AccountPreferenceBase {
             }
         }
         addPreferencesFromResource(R.xml.account_sync_settings);
+        updateAccountCheckboxes(mAccounts);
     }
 
     private void updatePreferenceIntents(PreferenceScreen prefs) {
@@ -23,9 +23,6 @@ import android.app.ActionBar;
 import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.Intent;
-import android.content.SyncAdapterType;
-import android.content.SyncInfo;
-import android.content.SyncStatusInfo;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.preference.Preference;
@@ -48,7 +45,6 @@ import com.android.settings.DialogCreatable;
 import com.android.settings.R;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 
 public class ManageAccountsSettings extends AccountPreferenceBase
         implements OnAccountsUpdateListener, DialogCreatable {
@@ -180,25 +176,22 @@ public class ManageAccountsSettings extends AccountPreferenceBase
     protected void onSyncStateUpdated() {
         // Catch any delayed delivery of update messages
         if (getActivity() == null) return;
+        // Read directly rather than from the snapshot, as the switch writes it
+        final boolean masterSyncAutomatically = ContentResolver.getMasterSyncAutomatically();
         // Set background connection state
         if (mAutoSyncSwitch != null) {
-            mAutoSyncSwitch.setChecked(ContentResolver.getMasterSyncAutomatically());
+            mAutoSyncSwitch.setChecked(masterSyncAutomatically);
         }
 
-        // iterate over all the preferences, setting the state properly for each
-        SyncInfo currentSync = ContentResolver.getCurrentSync();
+        final SyncStatusSnapshot snapshot = getSyncStatusSnapshot();
+        if (snapshot == null) {
+            // Still loading; called again when it is ready
+            return;
+        }
 
+        // iterate over all the preferences, setting the state properly for each
         boolean anySyncFailed = false; // true if sync on any account failed
 
-        // only track userfacing sync adapters when deciding if account is synced or not
-        final SyncAdapterType[] syncAdapters = ContentResolver.getSyncAdapterTypes();
-        HashSet<String> userFacing = new HashSet<String>();
-        for (int k = 0, n = syncAdapters.length; k < n; k++) {
-            final SyncAdapterType sa = syncAdapters[k];
-            if (sa.isUserVisible()) {
-                userFacing.add(sa.authority);
-            }
-        }
         for (int i = 0, count = getPreferenceScreen().getPreferenceCount(); i < count; i++) {
             Preference pref = getPreferenceScreen().getPreference(i);
             if (! (pref instanceof AccountPreference)) {
@@ -212,25 +205,24 @@ public class ManageAccountsSettings extends AccountPreferenceBase
             final ArrayList<String> authorities = accountPref.getAuthorities();
             if (authorities != null) {
                 for (String authority : authorities) {
-                    SyncStatusInfo status = ContentResolver.getSyncStatus(account, authority);
-                    boolean syncEnabled = ContentResolver.getSyncAutomatically(account, authority)
-                            && ContentResolver.getMasterSyncAutomatically()
-                            && (ContentResolver.getIsSyncable(account, authority) > 0);
-                    boolean authorityIsPending = ContentResolver.isSyncPending(account, authority);
-                    boolean activelySyncing = currentSync != null
-                            && currentSync.authority.equals(authority)
-                            && new Account(currentSync.account.name, currentSync.account.type)
-                                    .equals(account);
-                    boolean lastSyncFailed = status != null
-                            && syncEnabled
-                            && status.lastFailureTime != 0
-                            && status.getLastFailureMesgAsInt(0)
-                               != ContentResolver.SYNC_ERROR_SYNC_ALREADY_IN_PROGRESS;
+                    SyncStatusSnapshot.AuthorityStatus status =
+                            snapshot.getStatus(account, authority);
+                    if (status == null) {
+                        // Not in the snapshot yet; a newer one is on its way
+                        continue;
+                    }
+                    boolean syncEnabled = status.syncAutomatically
+                            && masterSyncAutomatically
+                            && (status.isSyncable > 0);
+                    boolean authorityIsPending = status.pending;
+                    boolean activelySyncing = status.active;
+                    boolean lastSyncFailed = syncEnabled && status.lastSyncFailed;
                     if (lastSyncFailed && !activelySyncing && !authorityIsPending) {
                         syncIsFailing = true;
                         anySyncFailed = true;
                     }
-                    syncCount += syncEnabled && userFacing.contains(authority) ? 1 : 0;
+                    // only track userfacing sync adapters when deciding if account is synced or not
+                    syncCount += syncEnabled && snapshot.isUserVisible(authority) ? 1 : 0;
                 }
             } else {
                 if (Log.isLoggable(TAG, Log.VERBOSE)) {
@@ -277,6 +269,7 @@ public class ManageAccountsSettings extends AccountPreferenceBase
                 getPreferenceScreen().addPreference(preference);
             }
         }
+        requestSyncStateRefresh();
         onSyncStateUpdated();
     }
 
@@ -89,8 +89,10 @@ public class SyncStateCheckBoxPreference extends CheckBoxPreference {
      * @param isActive whether or not the sync is active
      */
     public void setActive(boolean isActive) {
-        mIsActive = isActive;
-        notifyChanged();
+        if (mIsActive != isActive) {
+            mIsActive = isActive;
+            notifyChanged();
+        }
     }
 
     /**
@@ -98,8 +100,10 @@ public class SyncStateCheckBoxPreference extends CheckBoxPreference {
      * @param isPending whether or not the sync is pending
      */
     public void setPending(boolean isPending) {
-        mIsPending = isPending;
-        notifyChanged();
+        if (mIsPending != isPending) {
+            mIsPending = isPending;
+            notifyChanged();
+        }
     }
 
     /**
@@ -107,16 +111,20 @@ public class SyncStateCheckBoxPreference extends CheckBoxPreference {
      * @param failed whether or not the sync failed
      */
     public void setFailed(boolean failed) {
-        mFailed = failed;
-        notifyChanged();
+        if (mFailed != failed) {
+            mFailed = failed;
+            notifyChanged();
+        }
     }
 
     /**
      * Sets whether the preference is in one-time sync mode.
      */
     public void setOneTimeSyncMode(boolean oneTimeSyncMode) {
-        mOneTimeSyncMode = oneTimeSyncMode;
-        notifyChanged();
+        if (mOneTimeSyncMode != oneTimeSyncMode) {
+            mOneTimeSyncMode = oneTimeSyncMode;
+            notifyChanged();
+        }
     }
 
     /**
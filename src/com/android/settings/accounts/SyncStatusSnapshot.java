@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.accounts;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SyncAdapterType;
+import android.content.SyncInfo;
+import android.content.SyncStatusInfo;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Sync state of every account and sync adapter authority at one point in
+ * time. Loading one takes a few binder calls per account and authority, so
+ * it is done off the UI thread by {@link SyncStatusTracker}; screens then
+ * read their state from the snapshot without any further calls.
+ */
+final class SyncStatusSnapshot {
+
+    /** Sync state of one account and authority. */
+    static final class AuthorityStatus {
+        /** Result of {@link ContentResolver#getIsSyncable(Account, String)}. */
+        final int isSyncable;
+        final boolean syncAutomatically;
+        final boolean pending;
+        final boolean initialize;
+        final boolean active;
+        final long lastSuccessTime;
+        /** Whether the last sync failed for a reason other than a sync in progress. */
+        final boolean lastSyncFailed;
+
+        AuthorityStatus(int isSyncable, boolean syncAutomatically, SyncStatusInfo status,
+                boolean active) {
+            this.isSyncable = isSyncable;
+            this.syncAutomatically = syncAutomatically;
+            this.active = active;
+            if (status != null) {
+                pending = status.pending;
+                initialize = status.initialize;
+                lastSuccessTime = status.lastSuccessTime;
+                lastSyncFailed = status.lastFailureTime != 0
+                        && status.getLastFailureMesgAsInt(0)
+                           != ContentResolver.SYNC_ERROR_SYNC_ALREADY_IN_PROGRESS;
+            } else {
+                pending = false;
+                initialize = false;
+                lastSuccessTime = 0;
+                lastSyncFailed = false;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof AuthorityStatus)) {
+                return false;
+            }
+            AuthorityStatus other = (AuthorityStatus) o;
+            return isSyncable == other.isSyncable
+                    && syncAutomatically == other.syncAutomatically
+                    && pending == other.pending
+                    && initialize == other.initialize
+                    && active == other.active
+                    && lastSuccessTime == other.lastSuccessTime
+                    && lastSyncFailed == other.lastSyncFailed;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (lastSuccessTime ^ (lastSuccessTime >>> 32)) * 31 + isSyncable;
+        }
+    }
+
+    /** Uptime at which loading started; later changes may not be reflected. */
+    final long loadStartTime;
+    final boolean masterSyncAutomatically;
+    final SyncAdapterType[] syncAdapters;
+    private final boolean mSyncActive;
+    private final HashSet<String> mUserVisibleAuthorities = new HashSet<String>();
+    private final HashMap<Account, HashMap<String, AuthorityStatus>> mStatuses =
+            new HashMap<Account, HashMap<String, AuthorityStatus>>();
+
+    private SyncStatusSnapshot(Context context) {
+        loadStartTime = SystemClock.uptimeMillis();
+        masterSyncAutomatically = ContentResolver.getMasterSyncAutomatically();
+        syncAdapters = ContentResolver.getSyncAdapterTypes();
+        final List<SyncInfo> currentSyncs = ContentResolver.getCurrentSyncs();
+        mSyncActive = !currentSyncs.isEmpty();
+
+        for (SyncAdapterType sa : syncAdapters) {
+            if (sa.isUserVisible()) {
+                mUserVisibleAuthorities.add(sa.authority);
+            }
+        }
+
+        for (Account account : AccountManager.get(context).getAccounts()) {
+            HashMap<String, AuthorityStatus> statuses = new HashMap<String, AuthorityStatus>();
+            for (SyncAdapterType sa : syncAdapters) {
+                if (!sa.accountType.equals(account.type)) {
+                    continue;
+                }
+                final String authority = sa.authority;
+                statuses.put(authority, new AuthorityStatus(
+                        ContentResolver.getIsSyncable(account, authority),
+                        ContentResolver.getSyncAutomatically(account, authority),
+                        ContentResolver.getSyncStatus(account, authority),
+                        isSyncing(currentSyncs, account, authority)));
+            }
+            mStatuses.put(account, statuses);
+        }
+    }
+
+    /** Load a snapshot. This makes binder calls, so do not call it on the UI thread. */
+    static SyncStatusSnapshot load(Context context) {
+        return new SyncStatusSnapshot(context);
+    }
+
+    private static boolean isSyncing(List<SyncInfo> currentSyncs, Account account,
+            String authority) {
+        for (SyncInfo syncInfo : currentSyncs) {
+            if (syncInfo.account.equals(account) && syncInfo.authority.equals(authority)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Whether any sync was running. */
+    boolean isSyncActive() {
+        return mSyncActive;
+    }
+
+    boolean isUserVisible(String authority) {
+        return mUserVisibleAuthorities.contains(authority);
+    }
+
+    /**
+     * Returns the state of the account and authority, or null if the account
+     * was added after the snapshot or has no sync adapter for the authority.
+     */
+    AuthorityStatus getStatus(Account account, String authority) {
+        HashMap<String, AuthorityStatus> statuses = mStatuses.get(account);
+        return statuses != null ? statuses.get(authority) : null;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.accounts;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SyncStatusObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Keeps a {@link SyncStatusSnapshot} up to date while started. Sync status
+ * changes reload the snapshot on a background thread, at most once every
+ * {@link #MIN_REFRESH_INTERVAL} milliseconds, so a burst of sync activity
+ * results in a few reloads rather than one per status change.
+ *
+ * Must be started, stopped and read from the UI thread; the listener is
+ * called there too.
+ */
+final class SyncStatusTracker {
+
+    interface Listener {
+        void onSyncStatusUpdated(SyncStatusSnapshot snapshot);
+    }
+
+    /** Minimum time between two snapshot loads, in milliseconds. */
+    private static final long MIN_REFRESH_INTERVAL = 500;
+
+    private static final int MSG_REFRESH = 1;
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler();
+    private final HandlerThread mThread;
+    private final Handler mWorkerHandler;
+
+    private Object mStatusChangeListenerHandle;
+    private boolean mStarted;
+    private SyncStatusSnapshot mSnapshot;
+    /** Uptime at which the last load started; written on the worker thread. */
+    private volatile long mLastRefreshTime;
+
+    private final SyncStatusObserver mSyncStatusObserver = new SyncStatusObserver() {
+        public void onStatusChanged(int which) {
+            requestRefresh();
+        }
+    };
+
+    SyncStatusTracker(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+        mThread = new HandlerThread("SyncStatusTracker", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mWorkerHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_REFRESH) {
+                    mLastRefreshTime = SystemClock.uptimeMillis();
+                    publish(SyncStatusSnapshot.load(mContext));
+                }
+            }
+        };
+    }
+
+    /** Start listening for sync status changes, and load a new snapshot. */
+    void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mStatusChangeListenerHandle = ContentResolver.addStatusChangeListener(
+                ContentResolver.SYNC_OBSERVER_TYPE_ACTIVE
+                | ContentResolver.SYNC_OBSERVER_TYPE_STATUS
+                | ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS,
+                mSyncStatusObserver);
+        requestRefresh();
+    }
+
+    /** Stop listening. The last snapshot stays available. */
+    void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        ContentResolver.removeStatusChangeListener(mStatusChangeListenerHandle);
+        mStatusChangeListenerHandle = null;
+        mWorkerHandler.removeMessages(MSG_REFRESH);
+    }
+
+    /** Stop and release the background thread. The tracker cannot be restarted. */
+    void quit() {
+        stop();
+        mThread.quit();
+    }
+
+    /**
+     * Returns the last loaded snapshot, which may be a little out of date,
+     * or null if none has loaded yet.
+     */
+    SyncStatusSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Load a new snapshot soon. Requests made while one is waiting are
+     * folded into it. May be called from any thread.
+     */
+    void requestRefresh() {
+        if (mWorkerHandler.hasMessages(MSG_REFRESH)) {
+            return;
+        }
+        final long delay = mLastRefreshTime + MIN_REFRESH_INTERVAL - SystemClock.uptimeMillis();
+        mWorkerHandler.sendEmptyMessageDelayed(MSG_REFRESH, Math.max(0, delay));
+    }
+
+    private void publish(final SyncStatusSnapshot snapshot) {
+        mMainHandler.post(new Runnable() {
+            public void run() {
+                mSnapshot = snapshot;
+                if (mStarted) {
+                    mListener.onSyncStatusUpdated(snapshot);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * On-disk snapshot of the last computed package sizes, keyed by package
+ * name and the modification time of the package's apk.  Used to show sizes
+ * right away when the application list is opened again; the real sizes
+ * are still recomputed in the background and any difference is reported
+ * through the usual size callbacks.
+ */
+class AppSizeSnapshot {
+    static final String TAG = "AppSizeSnapshot";
+
+    private static final int VERSION = 1;
+
+    static final class Entry {
+        final long stamp;
+        final long size;
+        final long cacheSize;
+        final long codeSize;
+        final long dataSize;
+        final long externalCodeSize;
+        final long externalDataSize;
+        final long internalSize;
+        final long externalSize;
+
+        Entry(long stamp, long size, long cacheSize, long codeSize, long dataSize,
+                long externalCodeSize, long externalDataSize, long internalSize,
+                long externalSize) {
+            this.stamp = stamp;
+            this.size = size;
+            this.cacheSize = cacheSize;
+            this.codeSize = codeSize;
+            this.dataSize = dataSize;
+            this.externalCodeSize = externalCodeSize;
+            this.externalDataSize = externalDataSize;
+            this.internalSize = internalSize;
+            this.externalSize = externalSize;
+        }
+    }
+
+    private final File mFile;
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    AppSizeSnapshot(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the snapshot from disk if that has not happened yet.  Must not
+     * be called from the UI thread.
+     */
+    void ensureLoaded() {
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+            mLoaded = true;
+        }
+        HashMap<String, Entry> entries = new HashMap<String, Entry>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i=0; i<count; i++) {
+                String pkg = in.readUTF();
+                entries.put(pkg, new Entry(in.readLong(), in.readLong(), in.readLong(),
+                        in.readLong(), in.readLong(), in.readLong(), in.readLong(),
+                        in.readLong(), in.readLong()));
+            }
+        } catch (FileNotFoundException e) {
+            // No snapshot yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read size snapshot", e);
+            entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        synchronized (this) {
+            // Anything recorded while we were reading is newer.
+            entries.putAll(mEntries);
+            mEntries.clear();
+            mEntries.putAll(entries);
+        }
+    }
+
+    /**
+     * Returns the snapshot for the given package, or null if there is none
+     * or it was taken for a different version of the package.
+     */
+    synchronized Entry get(String pkg, long stamp) {
+        Entry entry = mEntries.get(pkg);
+        if (entry != null && entry.stamp == stamp) {
+            return entry;
+        }
+        return null;
+    }
+
+    synchronized void put(String pkg, Entry entry) {
+        mEntries.put(pkg, entry);
+        mDirty = true;
+    }
+
+    synchronized void remove(String pkg) {
+        if (mEntries.remove(pkg) != null) {
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Writes the snapshot back to disk if it changed since it was last
+     * written.  Must not be called from the UI thread.
+     */
+    void writeIfDirty() {
+        HashMap<String, Entry> entries;
+        synchronized (this) {
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+            entries = new HashMap<String, Entry>(mEntries);
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.stamp);
+                out.writeLong(entry.size);
+                out.writeLong(entry.cacheSize);
+                out.writeLong(entry.codeSize);
+                out.writeLong(entry.dataSize);
+                out.writeLong(entry.externalCodeSize);
+                out.writeLong(entry.externalDataSize);
+                out.writeLong(entry.internalSize);
+                out.writeLong(entry.externalSize);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "Unable to rename " + tmp + " to " + mFile);
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write size snapshot", e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -10,6 +10,7 @@ import android.content.pm.IPackageStatsObserver;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageStats;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.PackageItemInfo;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Handler;
@@ -21,7 +22,10 @@ import android.os.SystemClock;
 import android.text.format.Formatter;
 import android.util.Log;
 
+import com.android.settings.AppIconCache;
+
 import java.io.File;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
@@ -29,7 +33,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.regex.Pattern;
 
 /**
@@ -50,6 +56,15 @@ public class ApplicationsState {
         public void onAllSizesComputed();
     }
 
+    /**
+     * Callbacks that can also receive the changes made to the last app list
+     * they were given, as requested through
+     * {@link ApplicationsState#requestIncrementalRebuild}.
+     */
+    public static interface IncrementalCallbacks extends Callbacks {
+        public void onRebuildChanges(RebuildChanges changes);
+    }
+
     public static interface AppFilter {
         public void init();
         public boolean filterApp(ApplicationInfo info);
@@ -58,6 +73,15 @@ public class ApplicationsState {
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    // Default number of package size requests that may be outstanding at
+    // the same time.
+    static final int DEFAULT_MAX_SIZE_REQUESTS = 4;
+
+    // Time after which an unanswered size request is issued again.
+    static final long SIZE_REQUEST_TIMEOUT = 20*1000;
+
+    static final String SIZE_SNAPSHOT_FILE = "app_sizes.snapshot";
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -67,6 +91,36 @@ public class ApplicationsState {
                 .replaceAll("").toLowerCase();
     }
 
+    // Collator used for all label comparisons, replaced when the default
+    // locale changes.  Collation keys are only comparable if they were made
+    // with the same collator, tracked by sCollatorGeneration.
+    static final Object sCollatorLock = new Object();
+    static Collator sCollator;
+    static Locale sCollatorLocale;
+    static int sCollatorGeneration;
+
+    static Collator getLabelCollatorLocked() {
+        Locale locale = Locale.getDefault();
+        if (sCollator == null || !locale.equals(sCollatorLocale)) {
+            sCollator = Collator.getInstance(locale);
+            sCollatorLocale = locale;
+            sCollatorGeneration++;
+        }
+        return sCollator;
+    }
+
+    static int compareLabels(AppEntry object1, AppEntry object2) {
+        final CollationKey key1 = object1.labelKey;
+        final CollationKey key2 = object2.labelKey;
+        if (key1 != null && key2 != null
+                && object1.labelKeyGeneration == object2.labelKeyGeneration) {
+            return key1.compareTo(key2);
+        }
+        synchronized (sCollatorLock) {
+            return getLabelCollatorLocked().compare(object1.label, object2.label);
+        }
+    }
+
     public static class SizeInfo {
         long cacheSize;
         long codeSize;
@@ -101,9 +155,17 @@ public class ApplicationsState {
         String externalSizeStr;
         boolean sizeStale;
         long sizeLoadStart;
+        // Modification time of the apk, read on the background thread when
+        // the size snapshot was checked; the snapshot is keyed by it.
+        long apkLastModified;
+        boolean sizeSnapshotChecked;
 
         String normalizedLabel;
 
+        // Collation key of the label, used for sorting.
+        CollationKey labelKey;
+        int labelKeyGeneration;
+
         AppEntry(Context context, ApplicationInfo info, long id) {
             apkFile = new File(info.sourceDir);
             this.id = id;
@@ -123,13 +185,27 @@ public class ApplicationsState {
                     CharSequence label = info.loadLabel(context.getPackageManager());
                     this.label = label != null ? label.toString() : info.packageName;
                 }
+                this.labelKey = null;
+                // Normalize now, so searching doesn't have to on the UI thread.
+                this.normalizedLabel = normalize(this.label);
+            }
+            ensureLabelKey();
+        }
+
+        void ensureLabelKey() {
+            synchronized (sCollatorLock) {
+                Collator collator = getLabelCollatorLocked();
+                if (this.labelKey == null || this.labelKeyGeneration != sCollatorGeneration) {
+                    this.labelKey = collator.getCollationKey(this.label);
+                    this.labelKeyGeneration = sCollatorGeneration;
+                }
             }
         }
         
-        boolean ensureIconLocked(Context context, PackageManager pm) {
+        boolean ensureIconLocked(Context context, AppIconCache iconCache) {
             if (this.icon == null) {
                 if (this.apkFile.exists()) {
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = iconCache.getIcon(this.info);
                     return true;
                 } else {
                     this.mounted = false;
@@ -141,7 +217,7 @@ public class ApplicationsState {
                 // its icon.
                 if (this.apkFile.exists()) {
                     this.mounted = true;
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = iconCache.getIcon(this.info);
                     return true;
                 }
             }
@@ -149,47 +225,138 @@ public class ApplicationsState {
         }
     }
 
+    /**
+     * The changes to apply, in order, to the app list previously delivered
+     * for the same filter and comparator to bring it up to date.
+     */
+    public static class RebuildChanges {
+        public static final int OP_REMOVE = 0;
+        public static final int OP_INSERT = 1;
+        public static final int OP_MOVE = 2;
+
+        final SortedView mView;
+        final int mBaseGeneration;
+        int mGeneration;
+
+        private int[] mOps = new int[12];
+        private final ArrayList<AppEntry> mInserted = new ArrayList<AppEntry>();
+        private int mCount;
+
+        RebuildChanges(SortedView view, int baseGeneration) {
+            mView = view;
+            mBaseGeneration = baseGeneration;
+            mGeneration = baseGeneration;
+        }
+
+        public int size() {
+            return mCount;
+        }
+
+        public boolean isEmpty() {
+            return mCount == 0;
+        }
+
+        public int getOp(int index) {
+            return mOps[index*3];
+        }
+
+        /** Position removed or moved from; -1 for inserts. */
+        public int getFrom(int index) {
+            return mOps[index*3+1];
+        }
+
+        /** Position inserted or moved to; -1 for removals. */
+        public int getTo(int index) {
+            return mOps[index*3+2];
+        }
+
+        /** The inserted entry; null for removals and moves. */
+        public AppEntry getEntry(int index) {
+            return mInserted.get(index);
+        }
+
+        /**
+         * Applies all changes to a copy of the previously delivered list.
+         */
+        public void applyTo(ArrayList<AppEntry> apps) {
+            for (int i=0; i<mCount; i++) {
+                switch (getOp(i)) {
+                    case OP_REMOVE:
+                        apps.remove(getFrom(i));
+                        break;
+                    case OP_INSERT:
+                        apps.add(getTo(i), getEntry(i));
+                        break;
+                    case OP_MOVE:
+                        apps.add(getTo(i), apps.remove(getFrom(i)));
+                        break;
+                }
+            }
+        }
+
+        void add(int op, int from, int to, AppEntry entry) {
+            if ((mCount+1)*3 > mOps.length) {
+                int[] ops = new int[mOps.length*2];
+                System.arraycopy(mOps, 0, ops, 0, mOps.length);
+                mOps = ops;
+            }
+            mOps[mCount*3] = op;
+            mOps[mCount*3+1] = from;
+            mOps[mCount*3+2] = to;
+            mInserted.add(entry);
+            mCount++;
+        }
+    }
+
+    static class RebuildResult {
+        final SortedView view;
+        final int generation;
+        final ArrayList<AppEntry> apps;
+
+        RebuildResult(SortedView view, int generation, ArrayList<AppEntry> apps) {
+            this.view = view;
+            this.generation = generation;
+            this.apps = apps;
+        }
+    }
+
     public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.info.enabled != object2.info.enabled) {
                 return object1.info.enabled ? -1 : 1;
             }
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.size < object2.size) return 1;
             if (object1.size > object2.size) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> INTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.internalSize < object2.internalSize) return 1;
             if (object1.internalSize > object2.internalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> EXTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.externalSize < object2.externalSize) return 1;
             if (object1.externalSize > object2.externalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
@@ -224,6 +391,7 @@ public class ApplicationsState {
 
     final Context mContext;
     final PackageManager mPm;
+    final AppIconCache mIconCache;
     PackageIntentReceiver mPackageIntentReceiver;
 
     boolean mResumed;
@@ -236,15 +404,181 @@ public class ApplicationsState {
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
     long mCurId = 1;
-    String mCurComputingSizePkg;
+    final HashSet<String> mComputingSizePkgs = new HashSet<String>();
+    int mMaxSizeRequests = DEFAULT_MAX_SIZE_REQUESTS;
+    final AppSizeSnapshot mSizeSnapshot;
 
     // Rebuilding of app list.  Synchronized on mRebuildSync.
     final Object mRebuildSync = new Object();
     boolean mRebuildRequested;
     boolean mRebuildAsync;
+    boolean mRebuildIncremental;
     AppFilter mRebuildFilter;
     Comparator<AppEntry> mRebuildComparator;
     ArrayList<AppEntry> mRebuildResult;
+    SortedView mRebuildResultView;
+    int mRebuildResultGeneration;
+    // The view whose list was last handed to the main thread; only
+    // touched by the background thread.
+    SortedView mLastSentView;
+
+    // The view and generation of the list the callbacks currently hold;
+    // only touched by the main thread.
+    SortedView mDeliveredView;
+    int mDeliveredGeneration;
+
+    // Sorted views of the app list, one per filter and comparator pair,
+    // that are kept up to date by applying changes to individual packages.
+    // Synchronize on mSortedViews to access the list and the views'
+    // dirty sets; everything else in a view is only touched by the
+    // background thread.
+    final ArrayList<SortedView> mSortedViews = new ArrayList<SortedView>();
+
+    class SortedView {
+        final AppFilter mFilter;
+        final Comparator<AppEntry> mComparator;
+        final ArrayList<AppEntry> mEntries = new ArrayList<AppEntry>();
+        final HashMap<String, AppEntry> mMembers = new HashMap<String, AppEntry>();
+        final HashSet<String> mDirty = new HashSet<String>();
+        boolean mValid;
+        int mGeneration;
+
+        SortedView(AppFilter filter, Comparator<AppEntry> comparator) {
+            mFilter = filter;
+            mComparator = comparator;
+        }
+
+        void rebuildAll() {
+            synchronized (mSortedViews) {
+                mDirty.clear();
+                mValid = true;
+            }
+
+            List<ApplicationInfo> apps;
+            synchronized (mEntriesMap) {
+                apps = new ArrayList<ApplicationInfo>(mApplications);
+            }
+
+            mEntries.clear();
+            mMembers.clear();
+            if (DEBUG) Log.i(TAG, "Rebuilding...");
+            for (int i=0; i<apps.size(); i++) {
+                ApplicationInfo info = apps.get(i);
+                if (mFilter == null || mFilter.filterApp(info)) {
+                    synchronized (mEntriesMap) {
+                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
+                        AppEntry entry = getEntryLocked(info);
+                        entry.ensureLabel(mContext);
+                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                        mEntries.add(entry);
+                        mMembers.put(info.packageName, entry);
+                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+                    }
+                }
+            }
+
+            // Sizes are only written under mEntriesMap, so holding it keeps
+            // the sort keys still while comparing them.
+            synchronized (mEntriesMap) {
+                Collections.sort(mEntries, mComparator);
+            }
+            mGeneration++;
+        }
+
+        RebuildChanges updateDirty() {
+            // Sort keys only change under mEntriesMap, and every entry whose
+            // keys changed is marked dirty before the lock is released.  So
+            // while it is held, the entries that are not dirty are in order
+            // and binary search over them is exact.
+            synchronized (mEntriesMap) {
+                return updateDirtyLocked();
+            }
+        }
+
+        private RebuildChanges updateDirtyLocked() {
+            String[] pkgs;
+            synchronized (mSortedViews) {
+                pkgs = mDirty.toArray(new String[mDirty.size()]);
+                mDirty.clear();
+            }
+
+            RebuildChanges changes = new RebuildChanges(this, mGeneration);
+            // Take every dirty entry out before putting any back: the others'
+            // sort keys may have changed too, and binary search needs the
+            // remaining list to be sorted.
+            AppEntry[] oldEntries = new AppEntry[pkgs.length];
+            AppEntry[] newEntries = new AppEntry[pkgs.length];
+            int[] froms = new int[pkgs.length];
+            for (int p=0; p<pkgs.length; p++) {
+                String pkgName = pkgs[p];
+                ApplicationInfo info = null;
+                int idx = indexOfApplicationInfoLocked(pkgName);
+                if (idx >= 0) {
+                    info = mApplications.get(idx);
+                }
+                if (info != null && (mFilter == null || mFilter.filterApp(info))) {
+                    newEntries[p] = getEntryLocked(info);
+                    newEntries[p].ensureLabel(mContext);
+                }
+
+                AppEntry oldEntry = mMembers.remove(pkgName);
+                int from = -1;
+                if (oldEntry != null) {
+                    // The entry's sort key may have changed, so it can't be
+                    // looked up by binary search.
+                    for (int i=mEntries.size()-1; i>=0; i--) {
+                        if (mEntries.get(i) == oldEntry) {
+                            from = i;
+                            break;
+                        }
+                    }
+                    if (from >= 0) {
+                        mEntries.remove(from);
+                    }
+                }
+                oldEntries[p] = oldEntry;
+                froms[p] = from;
+            }
+
+            if (pkgs.length == 1 && froms[0] >= 0 && oldEntries[0] == newEntries[0]) {
+                // A single entry that may have moved
+                int to = insertSorted(pkgs[0], newEntries[0]);
+                if (froms[0] != to) {
+                    changes.add(RebuildChanges.OP_MOVE, froms[0], to, null);
+                }
+            } else {
+                // Removal positions are relative to the list as each entry
+                // was taken out, insert positions to the list as each is
+                // put back, so applying them in this order is exact.
+                for (int p=0; p<pkgs.length; p++) {
+                    if (froms[p] >= 0) {
+                        changes.add(RebuildChanges.OP_REMOVE, froms[p], -1, null);
+                    }
+                }
+                for (int p=0; p<pkgs.length; p++) {
+                    if (newEntries[p] != null) {
+                        int to = insertSorted(pkgs[p], newEntries[p]);
+                        changes.add(RebuildChanges.OP_INSERT, -1, to, newEntries[p]);
+                    }
+                }
+            }
+            if (!changes.isEmpty()) {
+                mGeneration++;
+                changes.mGeneration = mGeneration;
+            }
+            return changes;
+        }
+
+        private int insertSorted(String pkgName, AppEntry entry) {
+            int to = Collections.binarySearch(mEntries, entry, mComparator);
+            if (to < 0) {
+                to = -to - 1;
+            }
+            mEntries.add(to, entry);
+            mMembers.put(pkgName, entry);
+            return to;
+        }
+    }
 
     /**
      * Receives notifications when applications are added/removed.
@@ -307,13 +641,29 @@ public class ApplicationsState {
         static final int MSG_PACKAGE_SIZE_CHANGED = 4;
         static final int MSG_ALL_SIZES_COMPUTED = 5;
         static final int MSG_RUNNING_STATE_CHANGED = 6;
+        static final int MSG_REBUILD_CHANGES = 7;
 
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_REBUILD_COMPLETE: {
+                    RebuildResult result = (RebuildResult)msg.obj;
+                    mDeliveredView = result.view;
+                    mDeliveredGeneration = result.generation;
                     if (mCurCallbacks != null) {
-                        mCurCallbacks.onRebuildComplete((ArrayList<AppEntry>)msg.obj);
+                        mCurCallbacks.onRebuildComplete(result.apps);
+                    }
+                } break;
+                case MSG_REBUILD_CHANGES: {
+                    RebuildChanges changes = (RebuildChanges)msg.obj;
+                    // Changes made against a list the callbacks no longer
+                    // hold are already part of the list they got since.
+                    if (changes.mView == mDeliveredView
+                            && changes.mBaseGeneration == mDeliveredGeneration) {
+                        mDeliveredGeneration = changes.mGeneration;
+                        if (mCurCallbacks instanceof IncrementalCallbacks) {
+                            ((IncrementalCallbacks)mCurCallbacks).onRebuildChanges(changes);
+                        }
                     }
                 } break;
                 case MSG_PACKAGE_LIST_CHANGED: {
@@ -364,6 +714,9 @@ public class ApplicationsState {
     private ApplicationsState(Application app) {
         mContext = app;
         mPm = mContext.getPackageManager();
+        mIconCache = AppIconCache.getInstance(mContext);
+        mSizeSnapshot = new AppSizeSnapshot(new File(mContext.getCacheDir(),
+                SIZE_SNAPSHOT_FILE));
         mThread = new HandlerThread("ApplicationsState.Loader",
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
@@ -417,6 +770,9 @@ public class ApplicationsState {
                     mAppEntries.get(i).sizeStale = true;
                 }
             }
+            // The application list was reloaded from scratch, so every
+            // sorted view needs a full rebuild.
+            invalidateSortedViews();
 
             for (int i=0; i<mApplications.size(); i++) {
                 final ApplicationInfo info = mApplications.get(i);
@@ -430,10 +786,10 @@ public class ApplicationsState {
                 }
                 final AppEntry entry = mEntriesMap.get(info.packageName);
                 if (entry != null) {
-                    entry.info = info;
+                    setEntryInfoLocked(entry, info);
                 }
             }
-            mCurComputingSizePkg = null;
+            mComputingSizePkgs.clear();
             if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                 mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
             }
@@ -441,6 +797,15 @@ public class ApplicationsState {
         }
     }
 
+    /**
+     * Sets how many package size requests may be outstanding at once.
+     */
+    void setMaxSizeRequests(int max) {
+        synchronized (mEntriesMap) {
+            mMaxSizeRequests = max > 0 ? max : 1;
+        }
+    }
+
     void pause() {
         if (DEBUG_LOCKING) Log.v(TAG, "pause about to acquire lock...");
         synchronized (mEntriesMap) {
@@ -455,6 +820,7 @@ public class ApplicationsState {
         synchronized (mRebuildSync) {
             mRebuildRequested = true;
             mRebuildAsync = false;
+            mRebuildIncremental = false;
             mRebuildFilter = filter;
             mRebuildComparator = comparator;
             mRebuildResult = null;
@@ -478,13 +844,72 @@ public class ApplicationsState {
 
             mRebuildAsync = true;
 
+            if (mRebuildResult != null) {
+                mDeliveredView = mRebuildResultView;
+                mDeliveredGeneration = mRebuildResultGeneration;
+            }
             return mRebuildResult;
         }
     }
 
+    /**
+     * Asynchronously brings the list for the given filter and comparator up
+     * to date.  If the callbacks already hold that list and implement
+     * {@link IncrementalCallbacks}, only the changes are delivered through
+     * {@link IncrementalCallbacks#onRebuildChanges}; otherwise the whole
+     * list is delivered through {@link Callbacks#onRebuildComplete}.
+     */
+    void requestIncrementalRebuild(AppFilter filter, Comparator<AppEntry> comparator) {
+        synchronized (mRebuildSync) {
+            mRebuildRequested = true;
+            mRebuildAsync = true;
+            mRebuildIncremental = true;
+            mRebuildFilter = filter;
+            mRebuildComparator = comparator;
+            mRebuildResult = null;
+            if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_REBUILD_LIST)) {
+                mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_REBUILD_LIST);
+            }
+        }
+    }
+
+    SortedView getSortedView(AppFilter filter, Comparator<AppEntry> comparator) {
+        synchronized (mSortedViews) {
+            for (int i=0; i<mSortedViews.size(); i++) {
+                SortedView view = mSortedViews.get(i);
+                if (view.mFilter == filter && view.mComparator == comparator) {
+                    return view;
+                }
+            }
+            SortedView view = new SortedView(filter, comparator);
+            mSortedViews.add(view);
+            return view;
+        }
+    }
+
+    void markPackageDirty(String pkgName) {
+        synchronized (mSortedViews) {
+            for (int i=0; i<mSortedViews.size(); i++) {
+                SortedView view = mSortedViews.get(i);
+                if (view.mValid) {
+                    view.mDirty.add(pkgName);
+                }
+            }
+        }
+    }
+
+    void invalidateSortedViews() {
+        synchronized (mSortedViews) {
+            for (int i=0; i<mSortedViews.size(); i++) {
+                mSortedViews.get(i).mValid = false;
+            }
+        }
+    }
+
     void handleRebuildList() {
         AppFilter filter;
         Comparator<AppEntry> comparator;
+        boolean incremental;
         synchronized (mRebuildSync) {
             if (!mRebuildRequested) {
                 return;
@@ -492,7 +917,9 @@ public class ApplicationsState {
 
             filter = mRebuildFilter;
             comparator = mRebuildComparator;
+            incremental = mRebuildIncremental;
             mRebuildRequested = false;
+            mRebuildIncremental = false;
             mRebuildFilter = null;
             mRebuildComparator = null;
         }
@@ -502,42 +929,45 @@ public class ApplicationsState {
         if (filter != null) {
             filter.init();
         }
-        
-        List<ApplicationInfo> apps;
-        synchronized (mEntriesMap) {
-            apps = new ArrayList<ApplicationInfo>(mApplications);
-        }
 
-        ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
-        if (DEBUG) Log.i(TAG, "Rebuilding...");
-        for (int i=0; i<apps.size(); i++) {
-            ApplicationInfo info = apps.get(i);
-            if (filter == null || filter.filterApp(info)) {
-                synchronized (mEntriesMap) {
-                    if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                    AppEntry entry = getEntryLocked(info);
-                    entry.ensureLabel(mContext);
-                    if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
-                    filteredApps.add(entry);
-                    if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
-                }
-            }
+        SortedView view = getSortedView(filter, comparator);
+        RebuildChanges changes = null;
+        if (!view.mValid) {
+            view.rebuildAll();
+        } else {
+            changes = view.updateDirty();
         }
 
-        Collections.sort(filteredApps, comparator);
+        boolean sendChanges = incremental && changes != null && view == mLastSentView;
+        ArrayList<AppEntry> filteredApps = sendChanges
+                ? null : new ArrayList<AppEntry>(view.mEntries);
 
         synchronized (mRebuildSync) {
             if (!mRebuildRequested) {
-                if (!mRebuildAsync) {
-                    mRebuildResult = filteredApps;
-                    mRebuildSync.notifyAll();
-                } else {
-                    if (!mMainHandler.hasMessages(MainHandler.MSG_REBUILD_COMPLETE)) {
+                if (sendChanges) {
+                    if (!changes.isEmpty()) {
                         Message msg = mMainHandler.obtainMessage(
-                                MainHandler.MSG_REBUILD_COMPLETE, filteredApps);
+                                MainHandler.MSG_REBUILD_CHANGES, changes);
                         mMainHandler.sendMessage(msg);
                     }
+                } else if (!mRebuildAsync) {
+                    mRebuildResult = filteredApps;
+                    mRebuildResultView = view;
+                    mRebuildResultGeneration = view.mGeneration;
+                    mRebuildSync.notifyAll();
+                } else {
+                    // Only the most recent list is worth delivering.
+                    mMainHandler.removeMessages(MainHandler.MSG_REBUILD_COMPLETE);
+                    Message msg = mMainHandler.obtainMessage(
+                            MainHandler.MSG_REBUILD_COMPLETE,
+                            new RebuildResult(view, view.mGeneration, filteredApps));
+                    mMainHandler.sendMessage(msg);
                 }
+                mLastSentView = view;
+            } else {
+                // Nothing went out for this pass; the next one has to send
+                // a full list so the main thread doesn't miss these changes.
+                mLastSentView = null;
             }
         }
 
@@ -567,9 +997,34 @@ public class ApplicationsState {
             return;
         }
         synchronized (entry) {
-            entry.ensureIconLocked(mContext, mPm);
+            entry.ensureIconLocked(mContext, mIconCache);
         }
     }
+
+    final AppIconCache.Callback mIconLoadedCallback = new AppIconCache.Callback() {
+        @Override
+        public void onIconLoaded(PackageItemInfo info, Drawable icon) {
+            if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
+                mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
+            }
+        }
+    };
+
+    /**
+     * Returns the icon to show in a list row without keeping it in the entry,
+     * so only the shared icon cache holds on to it.  Returns null if the
+     * icon is still being loaded; onPackageIconChanged() follows once it is.
+     */
+    Drawable getRowIcon(AppEntry entry) {
+        if (entry.icon != null) {
+            return entry.icon;
+        }
+        if (!entry.mounted) {
+            return mContext.getResources().getDrawable(
+                    com.android.internal.R.drawable.sym_app_on_sd_unavailable_icon);
+        }
+        return mIconCache.getIconAsync(entry.info, true, mIconLoadedCallback);
+    }
     
     void requestSize(String packageName) {
         if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
@@ -625,6 +1080,7 @@ public class ApplicationsState {
                         PackageManager.GET_UNINSTALLED_PACKAGES |
                         PackageManager.GET_DISABLED_COMPONENTS);
                 mApplications.add(info);
+                markPackageDirty(pkgName);
                 if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                     mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
                 }
@@ -648,8 +1104,11 @@ public class ApplicationsState {
                 if (entry != null) {
                     mEntriesMap.remove(pkgName);
                     mAppEntries.remove(entry);
+                    mSizeSnapshot.remove(pkgName);
+                    mIconCache.invalidatePackage(pkgName);
                 }
                 mApplications.remove(idx);
+                markPackageDirty(pkgName);
                 if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
                     mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
                 }
@@ -672,11 +1131,90 @@ public class ApplicationsState {
             mEntriesMap.put(info.packageName, entry);
             mAppEntries.add(entry);
         } else if (entry.info != info) {
-            entry.info = info;
+            setEntryInfoLocked(entry, info);
         }
         return entry;
     }
 
+    private void setEntryInfoLocked(AppEntry entry, ApplicationInfo info) {
+        if (entry.info != info) {
+            entry.info = info;
+            // The package may have been updated, so the apk's modification
+            // time has to be read again before sizes are recorded under it.
+            entry.sizeSnapshotChecked = false;
+        }
+    }
+
+    // Fills in the sizes recorded the last time this version of each new
+    // package was measured, so they can be shown until the new measurement
+    // arrives.  The entries stay stale so they are still measured.  Reading
+    // the apk's modification time touches the disk, so this runs on the
+    // background thread and outside the entries lock.
+    private void applySizeSnapshots() {
+        ArrayList<AppEntry> unchecked = new ArrayList<AppEntry>();
+        ArrayList<ApplicationInfo> infos = new ArrayList<ApplicationInfo>();
+        synchronized (mEntriesMap) {
+            for (int i=0; i<mAppEntries.size(); i++) {
+                AppEntry entry = mAppEntries.get(i);
+                if (!entry.sizeSnapshotChecked) {
+                    unchecked.add(entry);
+                    infos.add(entry.info);
+                }
+            }
+        }
+        if (unchecked.isEmpty()) {
+            return;
+        }
+
+        final int N = unchecked.size();
+        long[] modified = new long[N];
+        AppSizeSnapshot.Entry[] snaps = new AppSizeSnapshot.Entry[N];
+        for (int i=0; i<N; i++) {
+            // An update may have moved the apk, so go by the current info
+            // rather than the entry's apkFile.
+            ApplicationInfo info = infos.get(i);
+            modified[i] = new File(info.sourceDir).lastModified();
+            snaps[i] = mSizeSnapshot.get(info.packageName, modified[i]);
+        }
+
+        ArrayList<String> applied = new ArrayList<String>();
+        synchronized (mEntriesMap) {
+            for (int i=0; i<N; i++) {
+                AppEntry entry = unchecked.get(i);
+                if (entry.info != infos.get(i)) {
+                    // Replaced in the meantime; checked again next time
+                    continue;
+                }
+                entry.apkLastModified = modified[i];
+                entry.sizeSnapshotChecked = true;
+                AppSizeSnapshot.Entry snap = snaps[i];
+                if (snap == null || entry.size != SIZE_UNKNOWN) {
+                    // Nothing recorded, or measured in the meantime
+                    continue;
+                }
+                entry.size = snap.size;
+                entry.cacheSize = snap.cacheSize;
+                entry.codeSize = snap.codeSize;
+                entry.dataSize = snap.dataSize;
+                entry.externalCodeSize = snap.externalCodeSize;
+                entry.externalDataSize = snap.externalDataSize;
+                entry.internalSize = snap.internalSize;
+                entry.externalSize = snap.externalSize;
+                entry.sizeStr = getSizeStr(entry.size);
+                entry.internalSizeStr = getSizeStr(entry.internalSize);
+                entry.externalSizeStr = getSizeStr(entry.externalSize);
+                markPackageDirty(entry.info.packageName);
+                applied.add(entry.info.packageName);
+            }
+        }
+
+        for (int i=0; i<applied.size(); i++) {
+            String pkgName = applied.get(i);
+            mMainHandler.sendMessage(mMainHandler.obtainMessage(
+                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, pkgName));
+        }
+    }
+
     // --------------------------------------------------------------
 
     private long getTotalInternalSize(PackageStats ps) {
@@ -748,16 +1286,28 @@ public class ApplicationsState {
                                         + ": " + entry.sizeStr);
                                 sizeChanged = true;
                             }
+                            // Only recorded once the apk's modification time is
+                            // known, as reading it here would hit the disk
+                            // while holding the lock.
+                            if (entry.sizeSnapshotChecked && (sizeChanged
+                                    || mSizeSnapshot.get(stats.packageName,
+                                            entry.apkLastModified) == null)) {
+                                mSizeSnapshot.put(stats.packageName, new AppSizeSnapshot.Entry(
+                                        entry.apkLastModified, entry.size,
+                                        entry.cacheSize, entry.codeSize, entry.dataSize,
+                                        entry.externalCodeSize, entry.externalDataSize,
+                                        entry.internalSize, entry.externalSize));
+                            }
                         }
                         if (sizeChanged) {
+                            markPackageDirty(stats.packageName);
                             Message msg = mMainHandler.obtainMessage(
                                     MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
                             mMainHandler.sendMessage(msg);
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
+                    if (mComputingSizePkgs.remove(stats.packageName)
+                            || mComputingSizePkgs.isEmpty()) {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
@@ -778,6 +1328,9 @@ public class ApplicationsState {
                 case MSG_REBUILD_LIST: {
                 } break;
                 case MSG_LOAD_ENTRIES: {
+                    // Make sure the last known sizes are available before
+                    // the entries are created.
+                    mSizeSnapshot.ensureLoaded();
                     int numDone = 0;
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
@@ -804,23 +1357,23 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_LOAD_ICONS: {
+                    // Warm up the shared icon cache, but leave room for the
+                    // rows that actually get shown rather than evicting them.
                     int numDone = 0;
+                    boolean cacheFull = mIconCache.size() >= mIconCache.maxSize() / 2;
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
+                        for (int i=0; i<mAppEntries.size() && numDone<2 && !cacheFull; i++) {
                             AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
-                                    }
+                            if (entry.mounted && !mIconCache.isCached(entry.info)) {
+                                if (!mRunning) {
+                                    mRunning = true;
+                                    Message m = mMainHandler.obtainMessage(
+                                            MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                    mMainHandler.sendMessage(m);
                                 }
+                                mIconCache.getIcon(entry.info);
+                                numDone++;
                             }
                         }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
@@ -837,32 +1390,41 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_LOAD_SIZES: {
+                    applySizeSnapshots();
+                    boolean allComputed = false;
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
-                        }
-
+                        boolean pending = false;
                         long now = SystemClock.uptimeMillis();
                         for (int i=0; i<mAppEntries.size(); i++) {
                             AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
-                                }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
+                            if (entry.size != SIZE_UNKNOWN && !entry.sizeStale) {
+                                continue;
+                            }
+                            pending = true;
+                            final String pkgName = entry.info.packageName;
+                            if (entry.sizeLoadStart != 0
+                                    && entry.sizeLoadStart >= (now-SIZE_REQUEST_TIMEOUT)) {
+                                // Already being computed.
+                                continue;
+                            }
+                            if (!mComputingSizePkgs.contains(pkgName)
+                                    && mComputingSizePkgs.size() >= mMaxSizeRequests) {
+                                break;
+                            }
+                            if (!mRunning) {
+                                mRunning = true;
+                                Message m = mMainHandler.obtainMessage(
+                                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                mMainHandler.sendMessage(m);
                             }
+                            entry.sizeLoadStart = now;
+                            mComputingSizePkgs.add(pkgName);
+                            mPm.getPackageSizeInfo(pkgName, mStatsObserver);
+                        }
+                        if (pending || !mComputingSizePkgs.isEmpty()) {
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
+                            return;
                         }
                         if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
@@ -870,9 +1432,13 @@ public class ApplicationsState {
                             Message m = mMainHandler.obtainMessage(
                                     MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
                             mMainHandler.sendMessage(m);
+                            allComputed = true;
                         }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
                     }
+                    if (allComputed) {
+                        mSizeSnapshot.writeIfDirty();
+                    }
                 } break;
             }
         }
@@ -245,7 +245,7 @@ public class ManageApplications extends Fragment implements
      * The order of applications in the list is mirrored in mAppLocalList
      */
     class ApplicationsAdapter extends BaseAdapter implements Filterable,
-            ApplicationsState.Callbacks, AbsListView.RecyclerListener {
+            ApplicationsState.IncrementalCallbacks, AbsListView.RecyclerListener {
         private final ApplicationsState mState;
         private final ArrayList<View> mActive = new ArrayList<View>();
         private ArrayList<ApplicationsState.AppEntry> mBaseEntries;
@@ -254,6 +254,8 @@ public class ManageApplications extends Fragment implements
         private int mLastFilterMode=-1, mLastSortMode=-1;
         private boolean mWaitingForData;
         private int mWhichSize = SIZE_TOTAL;
+        private ApplicationsState.AppFilter mFilterObj;
+        private Comparator<AppEntry> mComparatorObj;
         CharSequence mCurFilterPrefix;
 
         private Filter mFilter = new Filter() {
@@ -309,8 +311,7 @@ public class ManageApplications extends Fragment implements
             rebuild(true);
         }
         
-        public void rebuild(boolean eraseold) {
-            if (DEBUG) Log.i(TAG, "Rebuilding app list...");
+        private void updateFilterAndComparator() {
             ApplicationsState.AppFilter filterObj;
             Comparator<AppEntry> comparatorObj;
             boolean emulated = Environment.isExternalStorageEmulated();
@@ -351,8 +352,15 @@ public class ManageApplications extends Fragment implements
                     comparatorObj = ApplicationsState.ALPHA_COMPARATOR;
                     break;
             }
+            mFilterObj = filterObj;
+            mComparatorObj = comparatorObj;
+        }
+
+        public void rebuild(boolean eraseold) {
+            if (DEBUG) Log.i(TAG, "Rebuilding app list...");
+            updateFilterAndComparator();
             ArrayList<ApplicationsState.AppEntry> entries
-                    = mState.rebuild(filterObj, comparatorObj);
+                    = mState.rebuild(mFilterObj, mComparatorObj);
             if (entries == null && !eraseold) {
                 // Don't have new list yet, but can continue using the old one.
                 return;
@@ -376,6 +384,19 @@ public class ManageApplications extends Fragment implements
             }
         }
 
+        /**
+         * Brings the current list up to date without re-sorting it; the
+         * changes arrive through {@link #onRebuildChanges}.
+         */
+        public void rebuildIncremental() {
+            if (mBaseEntries == null) {
+                rebuild(false);
+                return;
+            }
+            updateFilterAndComparator();
+            mState.requestIncrementalRebuild(mFilterObj, mComparatorObj);
+        }
+
         ArrayList<ApplicationsState.AppEntry> applyPrefixFilter(CharSequence prefix,
                 ArrayList<ApplicationsState.AppEntry> origEntries) {
             if (prefix == null || prefix.length() == 0) {
@@ -418,15 +439,36 @@ public class ManageApplications extends Fragment implements
             updateStorageUsage();
         }
 
+        @Override
+        public void onRebuildChanges(ApplicationsState.RebuildChanges changes) {
+            if (mBaseEntries == null) {
+                return;
+            }
+            // The filter may be reading the current list on another thread.
+            ArrayList<ApplicationsState.AppEntry> entries
+                    = new ArrayList<ApplicationsState.AppEntry>(mBaseEntries);
+            changes.applyTo(entries);
+            mBaseEntries = entries;
+            mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
+            notifyDataSetChanged();
+            updateStorageUsage();
+        }
+
         @Override
         public void onPackageListChanged() {
-            rebuild(false);
+            rebuildIncremental();
         }
 
         @Override
         public void onPackageIconChanged() {
-            // We ensure icons are loaded when their item is displayed, so
-            // don't care about icons loaded in the background.
+            // Icons are loaded asynchronously for the rows on screen, so
+            // fill in any that were still missing.
+            for (int i=0; i<mActive.size(); i++) {
+                AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
+                if (holder.appIcon.getDrawable() == null) {
+                    holder.appIcon.setImageDrawable(mState.getRowIcon(holder.entry));
+                }
+            }
         }
 
         @Override
@@ -443,7 +485,7 @@ public class ManageApplications extends Fragment implements
                         // user viewed, and are sorting by size...  they may
                         // have cleared data, so we immediately want to resort
                         // the list with the new size to reflect it to the user.
-                        rebuild(false);
+                        rebuildIncremental();
                     }
                     updateStorageUsage();
                     return;
@@ -454,7 +496,7 @@ public class ManageApplications extends Fragment implements
         @Override
         public void onAllSizesComputed() {
             if (mLastSortMode == SORT_ORDER_SIZE) {
-                rebuild(false);
+                rebuildIncremental();
             }
         }
         
@@ -510,10 +552,7 @@ public class ManageApplications extends Fragment implements
                             entry.info.enabled ? android.R.color.primary_text_dark
                                     : android.R.color.secondary_text_dark));
                 }
-                mState.ensureIcon(entry);
-                if (entry.icon != null) {
-                    holder.appIcon.setImageDrawable(entry.icon);
-                }
+                holder.appIcon.setImageDrawable(mState.getRowIcon(entry));
                 holder.updateSizeText(ManageApplications.this, mWhichSize);
                 if (InstalledAppDetails.SUPPORT_DISABLE_APPS) {
                     holder.disabled.setVisibility(entry.info.enabled ? View.GONE : View.VISIBLE);
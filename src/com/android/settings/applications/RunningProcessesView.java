@@ -17,17 +17,21 @@
 package com.android.settings.applications;
 
 import com.android.internal.util.MemInfoReader;
+import com.android.settings.AppIconCache;
 import com.android.settings.R;
 
 import android.app.ActivityManager;
 import android.app.Dialog;
 import android.app.Fragment;
 import android.content.Context;
+import android.content.pm.PackageItemInfo;
 import android.content.pm.PackageManager;
+import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.SystemClock;
 import android.preference.PreferenceActivity;
 import android.text.format.DateUtils;
+import android.text.TextUtils;
 import android.text.format.Formatter;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
@@ -44,6 +48,7 @@ import android.widget.AbsListView.RecyclerListener;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 public class RunningProcessesView extends FrameLayout
         implements AdapterView.OnItemClickListener, RecyclerListener,
@@ -142,13 +147,17 @@ public class RunningProcessesView extends FrameLayout
         }
     }
     
-    public static class ViewHolder {
+    public static class ViewHolder implements AppIconCache.Callback {
         public View rootView;
         public ImageView icon;
         public TextView name;
         public TextView description;
         public TextView size;
         public TextView uptime;
+
+        // The item last bound to this view and its change stamp at the time.
+        RunningState.BaseItem mBoundItem;
+        int mBoundSeq;
         
         public ViewHolder(View v) {
             rootView = v;
@@ -172,6 +181,8 @@ public class RunningProcessesView extends FrameLayout
                     item.mDisplayLabel = ((RunningState.MergedItem)item).mProcess.mDisplayLabel;
                 }
                 name.setText(item.mDisplayLabel);
+                mBoundItem = item;
+                mBoundSeq = item.mChangeSeq;
                 ActiveItem ai = new ActiveItem();
                 ai.mRootView = rootView;
                 ai.mItem = item;
@@ -184,13 +195,29 @@ public class RunningProcessesView extends FrameLayout
                 }
                 item.mCurSizeStr = null;
                 if (item.mPackageInfo != null) {
-                    icon.setImageDrawable(item.mPackageInfo.loadIcon(pm));
+                    // Left empty until onIconLoaded() if the icon is not
+                    // cached yet, rather than decoding it here.
+                    icon.setImageDrawable(AppIconCache.getInstance(rootView.getContext())
+                            .getIconAsync(item.mPackageInfo, true, this));
                 }
                 icon.setVisibility(View.VISIBLE);
                 ai.updateTime(rootView.getContext(), builder);
                 return ai;
             }
         }
+
+        @Override
+        public void onIconLoaded(PackageItemInfo info, Drawable loaded) {
+            final PackageItemInfo bound = mBoundItem != null ? mBoundItem.mPackageInfo : null;
+            if (bound == null || !bound.packageName.equals(info.packageName)
+                    || !TextUtils.equals(bound.name, info.name)) {
+                // The view has been bound to another item since.
+                return;
+            }
+            // The loaded drawable is shared by all callbacks; take our own.
+            icon.setImageDrawable(AppIconCache.getInstance(rootView.getContext())
+                    .peekIcon(bound));
+        }
     }
     
     static class TimeTicker extends TextView {
@@ -294,17 +321,39 @@ public class RunningProcessesView extends FrameLayout
                 }
                 ViewHolder vh = (ViewHolder) view.getTag();
                 RunningState.MergedItem item = mItems.get(position);
+                if (vh.mBoundItem == item && vh.mBoundSeq == item.mChangeSeq
+                        && mActiveItems.containsKey(view)) {
+                    // Nothing shown in this row changed since it was bound.
+                    return;
+                }
                 ActiveItem ai = vh.bind(mState, item, mBuilder);
                 mActiveItems.put(view, ai);
             }
         }
+
+        /**
+         * Re-binds only the visible rows whose item changed since they were
+         * last bound.
+         */
+        void rebindChangedItems() {
+            synchronized (mState.mLock) {
+                for (Map.Entry<View, ActiveItem> entry : mActiveItems.entrySet()) {
+                    ActiveItem ai = entry.getValue();
+                    if (ai.mHolder.mBoundSeq != ai.mItem.mChangeSeq) {
+                        entry.setValue(ai.mHolder.bind(mState, ai.mItem, mBuilder));
+                    }
+                }
+            }
+        }
     }
 
     void refreshUi(boolean dataChanged) {
+        ServiceListAdapter adapter = (ServiceListAdapter)(mListView.getAdapter());
         if (dataChanged) {
-            ServiceListAdapter adapter = (ServiceListAdapter)(mListView.getAdapter());
             adapter.refreshItems();
             adapter.notifyDataSetChanged();
+        } else {
+            adapter.rebindChangedItems();
         }
         
         if (mDataAvail != null) {
@@ -33,6 +33,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.format.Formatter;
 import android.util.Log;
 import android.util.SparseArray;
@@ -60,6 +61,21 @@ public class RunningState {
     static final long TIME_UPDATE_DELAY = 1000;
     static final long CONTENTS_UPDATE_DELAY = 2000;
 
+    // Longest delay between updates once successive snapshots of the
+    // running services and processes stop changing.  This bounds how stale
+    // the displayed data can get.
+    static final long MAX_CONTENTS_UPDATE_DELAY = 16000;
+
+    // Number of processes whose PSS is refreshed per update in addition to
+    // those that are new or whose pid or importance changed.
+    static final int PSS_BATCH_SIZE = 8;
+
+    // Time in milliseconds after which a process' PSS is refreshed
+    // regardless of the rotating batch.  As updates back off while idle, the
+    // age is measured in time rather than updates, so a displayed size is at
+    // most this plus one update delay old.
+    static final long MAX_PSS_AGE = 8000;
+
     static final int MAX_SERVICES = 100;
 
     final Context mApplicationContext;
@@ -101,19 +117,30 @@ public class RunningState {
     final ArrayList<ProcessItem> mAllProcessItems = new ArrayList<ProcessItem>();
 
     static class AppProcessInfo {
-        final ActivityManager.RunningAppProcessInfo info;
+        ActivityManager.RunningAppProcessInfo info;
         boolean hasServices;
         boolean hasForegroundServices;
 
-        AppProcessInfo(ActivityManager.RunningAppProcessInfo _info) {
+        void set(ActivityManager.RunningAppProcessInfo _info) {
             info = _info;
+            hasServices = false;
+            hasForegroundServices = false;
         }
     }
 
     // Temporary structure used when updating above information.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
+    // Recycled entries for mTmpAppProcesses, so an update doesn't allocate
+    // one per running process.
+    final ArrayList<AppProcessInfo> mTmpAppProcessPool = new ArrayList<AppProcessInfo>();
 
     int mSequence = 0;
+
+    // Adaptive scheduling state, only touched by the background thread.
+    long mLastSnapshotSignature;
+    boolean mSnapshotUnchanged;
+    int mIdleUpdates;
+    int mPssCursor;
     
     // ----- following protected by mLock -----
     
@@ -156,12 +183,26 @@ public class RunningState {
                             return;
                         }
                     }
+                    if (msg.arg1 != 0) {
+                        // Explicitly requested update, go back to full speed.
+                        mIdleUpdates = 0;
+                    }
                     Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
+                    boolean changed = update(mApplicationContext, mAm);
+                    cmd.arg1 = changed ? 1 : 0;
                     mHandler.sendMessage(cmd);
+                    // Back off while nothing is happening.
+                    if (changed || !mSnapshotUnchanged) {
+                        mIdleUpdates = 0;
+                    } else if ((CONTENTS_UPDATE_DELAY << mIdleUpdates)
+                            < MAX_CONTENTS_UPDATE_DELAY) {
+                        mIdleUpdates++;
+                    }
+                    long delay = Math.min(CONTENTS_UPDATE_DELAY << mIdleUpdates,
+                            MAX_CONTENTS_UPDATE_DELAY);
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    sendMessageDelayed(msg, delay);
                     break;
             }
         }
@@ -220,9 +261,14 @@ public class RunningState {
         String mDescription;
         
         int mCurSeq;
+
+        // Sequence of the update in which anything shown for this item last
+        // changed, so views can skip re-binding items that are unchanged.
+        int mChangeSeq;
         
         long mActiveSince;
         long mSize;
+        long mFormattedSize = -1;
         String mSizeStr;
         String mCurSizeStr;
         boolean mNeedDivider;
@@ -231,6 +277,22 @@ public class RunningState {
         public BaseItem(boolean isProcess) {
             mIsProcess = isProcess;
         }
+
+        // Reformats mSizeStr if mSize changed; returns true if the
+        // displayed string is different.
+        boolean updateSizeStr(Context context, int curSeq) {
+            if (mSizeStr != null && mFormattedSize == mSize) {
+                return false;
+            }
+            mFormattedSize = mSize;
+            String sizeStr = Formatter.formatShortFileSize(context, mSize);
+            if (!sizeStr.equals(mSizeStr)) {
+                mSizeStr = sizeStr;
+                mChangeSeq = curSeq;
+                return true;
+            }
+            return false;
+        }
     }
 
     static class ServiceItem extends BaseItem {
@@ -260,6 +322,12 @@ public class RunningState {
         
         int mRunningSeq;
         ActivityManager.RunningAppProcessInfo mRunningProcessInfo;
+
+        // The pid and importance at the time mSize was last collected,
+        // and the uptime it was collected at.
+        int mPssPid;
+        int mPssImportance;
+        long mPssTime;
         
         MergedItem mMergedItem;
 
@@ -369,12 +437,14 @@ public class RunningState {
                 mLabel = mDisplayLabel != null ? mDisplayLabel.toString() : null;
                 si.mPackageInfo = si.mServiceInfo.applicationInfo;
                 mServices.put(service.service, si);
+                si.mChangeSeq = mCurSeq;
             }
             si.mCurSeq = mCurSeq;
             si.mRunningService = service;
             long activeSince = service.restarting == 0 ? service.activeSince : -1;
             if (si.mActiveSince != activeSince) {
                 si.mActiveSince = activeSince;
+                si.mChangeSeq = mCurSeq;
                 changed = true;
             }
             if (service.clientPackage != null && service.clientLabel != 0) {
@@ -405,15 +475,10 @@ public class RunningState {
         boolean updateSize(Context context, long pss, int curSeq) {
             mSize = pss * 1024;
             if (mCurSeq == curSeq) {
-                String sizeStr = Formatter.formatShortFileSize(
-                        context, mSize);
-                if (!sizeStr.equals(mSizeStr)){
-                    mSizeStr = sizeStr;
-                    // We update this on the second tick where we update just
-                    // the text in the current items, so no need to say we
-                    // changed here.
-                    return false;
-                }
+                // We update this on the second tick where we update just
+                // the text in the current items, so no need to say we
+                // changed here.
+                updateSizeStr(context, curSeq);
             }
             return false;
         }
@@ -465,7 +530,11 @@ public class RunningState {
             super(false);
         }
         
-        boolean update(Context context, boolean background) {
+        boolean update(Context context, boolean background, int curSeq) {
+            if (mPackageInfo != mProcess.mPackageInfo || mLabel != mProcess.mLabel
+                    || mBackground != background) {
+                mChangeSeq = curSeq;
+            }
             mPackageInfo = mProcess.mPackageInfo;
             mDisplayLabel = mProcess.mDisplayLabel;
             mLabel = mProcess.mLabel;
@@ -487,35 +556,35 @@ public class RunningState {
                     }
                     mDescription = context.getResources().getString(resid, numProcesses,
                             numServices);
+                    mChangeSeq = curSeq;
                 }
             }
             
-            mActiveSince = -1;
+            long activeSince = -1;
             for (int i=0; i<mServices.size(); i++) {
                 ServiceItem si = mServices.get(i);
-                if (si.mActiveSince >= 0 && mActiveSince < si.mActiveSince) {
-                    mActiveSince = si.mActiveSince;
+                if (si.mActiveSince >= 0 && activeSince < si.mActiveSince) {
+                    activeSince = si.mActiveSince;
                 }
             }
+            if (mActiveSince != activeSince) {
+                mActiveSince = activeSince;
+                mChangeSeq = curSeq;
+            }
             
             return false;
         }
         
-        boolean updateSize(Context context) {
+        boolean updateSize(Context context, int curSeq) {
             mSize = mProcess.mSize;
             for (int i=0; i<mOtherProcesses.size(); i++) {
                 mSize += mOtherProcesses.get(i).mSize;
             }
             
-            String sizeStr = Formatter.formatShortFileSize(
-                    context, mSize);
-            if (!sizeStr.equals(mSizeStr)){
-                mSizeStr = sizeStr;
-                // We update this on the second tick where we update just
-                // the text in the current items, so no need to say we
-                // changed here.
-                return false;
-            }
+            // We update this on the second tick where we update just
+            // the text in the current items, so no need to say we
+            // changed here.
+            updateSizeStr(context, curSeq);
             return false;
         }
     }
@@ -586,9 +655,9 @@ public class RunningState {
                 mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
                 mBackgroundHandler.sendEmptyMessage(MSG_RESET_CONTENTS);
             }
-            if (!mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)) {
-                mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
-            }
+            mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
+            mBackgroundHandler.sendMessage(mBackgroundHandler.obtainMessage(
+                    MSG_UPDATE_CONTENTS, 1, 0));
             mHandler.sendEmptyMessage(MSG_UPDATE_TIME);
         }
     }
@@ -596,7 +665,8 @@ public class RunningState {
     void updateNow() {
         synchronized (mLock) {
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
-            mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
+            mBackgroundHandler.sendMessage(mBackgroundHandler.obtainMessage(
+                    MSG_UPDATE_CONTENTS, 1, 0));
         }
     }
 
@@ -639,6 +709,84 @@ public class RunningState {
         return false;
     }
 
+    // Cheap fingerprint of everything update() looks at apart from memory
+    // use, so it can tell when nothing is happening.
+    private static long computeSnapshotSignature(
+            List<ActivityManager.RunningServiceInfo> services,
+            List<ActivityManager.RunningAppProcessInfo> processes) {
+        long sig = 17;
+        final int NS = services != null ? services.size() : 0;
+        for (int i=0; i<NS; i++) {
+            ActivityManager.RunningServiceInfo si = services.get(i);
+            sig = sig*31 + si.service.hashCode();
+            sig = sig*31 + si.pid;
+            sig = sig*31 + si.restarting;
+            sig = sig*31 + si.activeSince;
+            sig = sig*31 + si.clientCount;
+            sig = sig*31 + (si.foreground ? 1 : 0);
+        }
+        final int NP = processes != null ? processes.size() : 0;
+        for (int i=0; i<NP; i++) {
+            ActivityManager.RunningAppProcessInfo pi = processes.get(i);
+            sig = sig*31 + pi.pid;
+            sig = sig*31 + pi.importance;
+            sig = sig*31 + pi.importanceReasonPid;
+            sig = sig*31 + pi.flags;
+        }
+        return sig;
+    }
+
+    private static int importanceOf(ProcessItem proc) {
+        return proc.mRunningProcessInfo != null ? proc.mRunningProcessInfo.importance : 0;
+    }
+
+    // Collects PSS only for processes that are new, changed pid or
+    // importance, are part of the rotating batch, or have not been measured
+    // for MAX_PSS_AGE milliseconds.  Everything else keeps its previous size.
+    private void collectPss(Context context) throws RemoteException {
+        final int numProc = mAllProcessItems.size();
+        if (numProc == 0) {
+            return;
+        }
+        int[] pids = new int[numProc];
+        ProcessItem[] procs = new ProcessItem[numProc];
+        int count = 0;
+        final long now = SystemClock.uptimeMillis();
+        final int start = mPssCursor % numProc;
+        int batch = 0;
+        for (int j=0; j<numProc; j++) {
+            final int i = (start + j) % numProc;
+            ProcessItem proc = mAllProcessItems.get(i);
+            boolean need = proc.mPssPid != proc.mPid
+                    || proc.mPssImportance != importanceOf(proc)
+                    || (now - proc.mPssTime) >= MAX_PSS_AGE
+                    || (proc.mCurSeq == mSequence && proc.mSizeStr == null);
+            if (!need && batch < PSS_BATCH_SIZE) {
+                need = true;
+                batch++;
+            }
+            if (need) {
+                pids[count] = proc.mPid;
+                procs[count] = proc;
+                count++;
+            }
+        }
+        mPssCursor = start + PSS_BATCH_SIZE;
+        if (count < numProc) {
+            int[] subset = new int[count];
+            System.arraycopy(pids, 0, subset, 0, count);
+            pids = subset;
+        }
+        long[] pss = ActivityManagerNative.getDefault().getProcessPss(pids);
+        for (int i=0; i<count; i++) {
+            ProcessItem proc = procs[i];
+            proc.updateSize(context, pss[i], mSequence);
+            proc.mPssPid = proc.mPid;
+            proc.mPssImportance = importanceOf(proc);
+            proc.mPssTime = now;
+        }
+    }
+
     private void reset() {
         mServiceProcessesByName.clear();
         mServiceProcessesByPid.clear();
@@ -648,6 +796,19 @@ public class RunningState {
         mAllProcessItems.clear();
     }
 
+    private static boolean sameProcesses(ArrayList<ProcessItem> procs,
+            ArrayList<ProcessItem> all, int start, int end) {
+        if (procs.size() != Math.max(0, end-start)) {
+            return false;
+        }
+        for (int i=start; i<end; i++) {
+            if (procs.get(i-start) != all.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private boolean update(Context context, ActivityManager am) {
         final PackageManager pm = context.getPackageManager();
         
@@ -687,10 +848,19 @@ public class RunningState {
         List<ActivityManager.RunningAppProcessInfo> processes
                 = am.getRunningAppProcesses();
         final int NP = processes != null ? processes.size() : 0;
+
+        final long signature = computeSnapshotSignature(services, processes);
+        mSnapshotUnchanged = signature == mLastSnapshotSignature;
+        mLastSnapshotSignature = signature;
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
-            mTmpAppProcesses.put(pi.pid, new AppProcessInfo(pi));
+            if (i >= mTmpAppProcessPool.size()) {
+                mTmpAppProcessPool.add(new AppProcessInfo());
+            }
+            AppProcessInfo ainfo = mTmpAppProcessPool.get(i);
+            ainfo.set(pi);
+            mTmpAppProcesses.put(pi.pid, ainfo);
         }
 
         // Initial iteration through running services to collect per-process
@@ -956,7 +1126,8 @@ public class RunningState {
                 
                 // Now add the services running in it.
                 MergedItem mergedItem = null;
-                boolean haveAllMerged = false;
+                // Cleared below if any service isn't in the same merged item
+                boolean haveAllMerged = true;
                 boolean needDivider = false;
                 for (ServiceItem si : pi.mServices.values()) {
                     si.mNeedDivider = needDivider;
@@ -972,10 +1143,11 @@ public class RunningState {
                     }
                 }
                 
-                if (!haveAllMerged || mergedItem == null
+                if (!haveAllMerged || mergedItem == null || mergedItem.mProcess != pi
                         || mergedItem.mServices.size() != pi.mServices.size()) {
                     // Whoops, we need to build a new MergedItem!
                     mergedItem = new MergedItem();
+                    mergedItem.mChangeSeq = mSequence;
                     for (ServiceItem si : pi.mServices.values()) {
                         mergedItem.mServices.add(si);
                         si.mMergedItem = mergedItem;
@@ -985,9 +1157,17 @@ public class RunningState {
                     for (int mpi=firstProc; mpi<(mProcessItems.size()-1); mpi++) {
                         mergedItem.mOtherProcesses.add(mProcessItems.get(mpi));
                     }
+                } else if (!sameProcesses(mergedItem.mOtherProcesses, mProcessItems,
+                        firstProc, mProcessItems.size()-1)) {
+                    // Same services, but the processes they depend on changed
+                    mergedItem.mOtherProcesses.clear();
+                    for (int mpi=firstProc; mpi<(mProcessItems.size()-1); mpi++) {
+                        mergedItem.mOtherProcesses.add(mProcessItems.get(mpi));
+                    }
+                    mergedItem.mChangeSeq = mSequence;
                 }
                 
-                mergedItem.update(context, false);
+                mergedItem.update(context, false, mSequence);
                 newMergedItems.add(mergedItem);
             }
             
@@ -1000,8 +1180,9 @@ public class RunningState {
                     if (proc.mMergedItem == null) {
                         proc.mMergedItem = new MergedItem();
                         proc.mMergedItem.mProcess = proc;
+                        proc.mMergedItem.mChangeSeq = mSequence;
                     }
-                    proc.mMergedItem.update(context, false);
+                    proc.mMergedItem.update(context, false, mSequence);
                     newMergedItems.add(0, proc.mMergedItem);
                     mProcessItems.add(proc);
                 }
@@ -1048,17 +1229,11 @@ public class RunningState {
         long serviceProcessMemory = 0;
         ArrayList<MergedItem> newBackgroundItems = null;
         try {
+            collectPss(context);
             final int numProc = mAllProcessItems.size();
-            int[] pids = new int[numProc];
-            for (int i=0; i<numProc; i++) {
-                pids[i] = mAllProcessItems.get(i).mPid;
-            }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
             int bgIndex = 0;
-            for (int i=0; i<pids.length; i++) {
+            for (int i=0; i<numProc; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
-                changed |= proc.updateSize(context, pss[i], mSequence);
                 if (proc.mCurSeq == mSequence) {
                     serviceProcessMemory += proc.mSize;
                 } else if (proc.mRunningProcessInfo.importance >=
@@ -1066,8 +1241,7 @@ public class RunningState {
                     backgroundProcessMemory += proc.mSize;
                     MergedItem mergedItem;
                     if (newBackgroundItems != null) {
-                        mergedItem = proc.mMergedItem = new MergedItem();
-                        proc.mMergedItem.mProcess = proc;
+                        mergedItem = obtainBackgroundItem(proc);
                         newBackgroundItems.add(mergedItem);
                     } else {
                         if (bgIndex >= mBackgroundItems.size()
@@ -1076,15 +1250,14 @@ public class RunningState {
                             for (int bgi=0; bgi<bgIndex; bgi++) {
                                 newBackgroundItems.add(mBackgroundItems.get(bgi));
                             }
-                            mergedItem = proc.mMergedItem = new MergedItem();
-                            proc.mMergedItem.mProcess = proc;
+                            mergedItem = obtainBackgroundItem(proc);
                             newBackgroundItems.add(mergedItem);
                         } else {
                             mergedItem = mBackgroundItems.get(bgIndex);
                         }
                     }
-                    mergedItem.update(context, true);
-                    mergedItem.updateSize(context);
+                    mergedItem.update(context, true, mSequence);
+                    mergedItem.updateSize(context, mSequence);
                     bgIndex++;
                 } else if (proc.mRunningProcessInfo.importance <=
                         ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE) {
@@ -1105,7 +1278,7 @@ public class RunningState {
         }
 
         for (int i=0; i<mMergedItems.size(); i++) {
-            mMergedItems.get(i).updateSize(context);
+            mMergedItems.get(i).updateSize(context, mSequence);
         }
         
         synchronized (mLock) {
@@ -1130,6 +1303,19 @@ public class RunningState {
         return changed;
     }
     
+    // Reuses the process' existing item when it only moved in the list, so
+    // unchanged background rows keep their change stamp.
+    private MergedItem obtainBackgroundItem(ProcessItem proc) {
+        MergedItem mergedItem = proc.mMergedItem;
+        if (mergedItem == null || mergedItem.mProcess != proc
+                || mergedItem.mServices.size() > 0) {
+            mergedItem = proc.mMergedItem = new MergedItem();
+            mergedItem.mProcess = proc;
+            mergedItem.mChangeSeq = mSequence;
+        }
+        return mergedItem;
+    }
+
     ArrayList<BaseItem> getCurrentItems() {
         synchronized (mLock) {
             return mItems;
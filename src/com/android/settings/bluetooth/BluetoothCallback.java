@@ -16,6 +16,8 @@
 
 package com.android.settings.bluetooth;
 
+import java.util.Collection;
+
 /**
  * BluetoothCallback provides a callback interface for the settings
  * UI to receive events from {@link BluetoothEventManager}.
@@ -24,6 +26,7 @@ interface BluetoothCallback {
     void onBluetoothStateChanged(int bluetoothState);
     void onScanningStateChanged(boolean started);
     void onDeviceAdded(CachedBluetoothDevice cachedDevice);
+    void onDevicesAdded(Collection<CachedBluetoothDevice> cachedDevices);
     void onDeviceDeleted(CachedBluetoothDevice cachedDevice);
     void onDeviceBondStateChanged(CachedBluetoothDevice cachedDevice, int bondState);
 }
@@ -25,13 +25,17 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * BluetoothEventManager receives broadcasts and callbacks from the Bluetooth
@@ -48,8 +52,47 @@ final class BluetoothEventManager {
     private final Map<String, Handler> mHandlerMap;
     private Context mContext;
 
+    /**
+     * Interval over which device events are collected before being applied,
+     * so a burst of inquiry results redraws each device once.
+     */
+    private static final long DEVICE_EVENT_INTERVAL = 100;
+
+    // Registration never waits for a dispatch; dispatch iterates a snapshot.
     private final Collection<BluetoothCallback> mCallbacks =
-            new ArrayList<BluetoothCallback>();
+            new CopyOnWriteArrayList<BluetoothCallback>();
+
+    /** Device events waiting to be applied, one per device address. */
+    private final LinkedHashMap<String, PendingDeviceEvent> mPendingDeviceEvents =
+            new LinkedHashMap<String, PendingDeviceEvent>();
+    private final android.os.Handler mDeviceEventHandler =
+            new android.os.Handler(Looper.getMainLooper());
+    private final Runnable mDispatchDeviceEvents = new Runnable() {
+        public void run() {
+            dispatchPendingDeviceEvents();
+        }
+    };
+    private boolean mDeviceEventsScheduled;
+    private long mLastDeviceEventDispatch;
+
+    /**
+     * Collapsed state of the found, name, class and UUID events received for
+     * a device since the last dispatch.
+     */
+    private static class PendingDeviceEvent {
+        final BluetoothDevice device;
+        boolean found;
+        short rssi;
+        BluetoothClass btClass;
+        String name;
+        boolean nameChanged;
+        boolean classChanged;
+        boolean uuidChanged;
+
+        PendingDeviceEvent(BluetoothDevice device) {
+            this.device = device;
+        }
+    }
 
     interface Handler {
         void onReceive(Context context, Intent intent, BluetoothDevice device);
@@ -108,15 +151,86 @@ final class BluetoothEventManager {
 
     /** Register to start receiving callbacks for Bluetooth events. */
     void registerCallback(BluetoothCallback callback) {
-        synchronized (mCallbacks) {
-            mCallbacks.add(callback);
-        }
+        mCallbacks.add(callback);
     }
 
     /** Unregister to stop receiving callbacks for Bluetooth events. */
     void unregisterCallback(BluetoothCallback callback) {
-        synchronized (mCallbacks) {
-            mCallbacks.remove(callback);
+        mCallbacks.remove(callback);
+    }
+
+    private PendingDeviceEvent getPendingDeviceEvent(BluetoothDevice device) {
+        final String address = device.getAddress();
+        PendingDeviceEvent event = mPendingDeviceEvents.get(address);
+        if (event == null) {
+            event = new PendingDeviceEvent(device);
+            mPendingDeviceEvents.put(address, event);
+        }
+        if (!mDeviceEventsScheduled) {
+            // first event since the last dispatch; dispatch at most once per interval
+            final long delay = mLastDeviceEventDispatch + DEVICE_EVENT_INTERVAL
+                    - SystemClock.uptimeMillis();
+            mDeviceEventHandler.postDelayed(mDispatchDeviceEvents, Math.max(0, delay));
+            mDeviceEventsScheduled = true;
+        }
+        return event;
+    }
+
+    /**
+     * Apply collected device events: create devices found for the first
+     * time, update each device with one attribute change callback, then
+     * announce new devices in one batch.
+     */
+    void dispatchPendingDeviceEvents() {
+        mDeviceEventHandler.removeCallbacks(mDispatchDeviceEvents);
+        mDeviceEventsScheduled = false;
+        if (mPendingDeviceEvents.isEmpty()) {
+            return;
+        }
+        mLastDeviceEventDispatch = SystemClock.uptimeMillis();
+
+        ArrayList<CachedBluetoothDevice> addedDevices = null;
+        for (PendingDeviceEvent event : mPendingDeviceEvents.values()) {
+            CachedBluetoothDevice cachedDevice = mDeviceManager.findDevice(event.device);
+            if (cachedDevice == null) {
+                if (!event.found) {
+                    continue;
+                }
+                cachedDevice = mDeviceManager.addDevice(mLocalAdapter, mProfileManager,
+                        event.device);
+                Log.d(TAG, "DeviceFoundHandler created new CachedBluetoothDevice: "
+                        + cachedDevice);
+                if (addedDevices == null) {
+                    addedDevices = new ArrayList<CachedBluetoothDevice>();
+                }
+                addedDevices.add(cachedDevice);
+            }
+
+            cachedDevice.beginBatchUpdate();
+            if (event.found) {
+                cachedDevice.setRssi(event.rssi);
+                cachedDevice.setBtClass(event.btClass);
+                cachedDevice.setName(event.name);
+                cachedDevice.setVisible(true);
+            }
+            if (event.nameChanged) {
+                cachedDevice.refreshName();
+            }
+            if (event.classChanged) {
+                cachedDevice.refreshBtClass();
+            }
+            if (event.uuidChanged) {
+                cachedDevice.onUuidChanged();
+            }
+            cachedDevice.endBatchUpdate();
+        }
+        mPendingDeviceEvents.clear();
+
+        if (addedDevices != null) {
+            // callback to UI to create Preferences for new devices
+            for (BluetoothCallback callback : mCallbacks) {
+                callback.onDevicesAdded(addedDevices);
+            }
         }
     }
 
@@ -147,6 +261,10 @@ final class BluetoothEventManager {
 
             Handler handler = mHandlerMap.get(action);
             if (handler != null) {
+                if (!(handler instanceof DeviceEventHandler)) {
+                    // keep other events ordered after the collected ones
+                    dispatchPendingDeviceEvents();
+                }
                 handler.onReceive(context, intent, device);
             }
         }
@@ -160,10 +278,8 @@ final class BluetoothEventManager {
             // update local profiles and get paired devices
             mLocalAdapter.setBluetoothStateInt(state);
             // send callback to update UI and possibly start scanning
-            synchronized (mCallbacks) {
-                for (BluetoothCallback callback : mCallbacks) {
-                    callback.onBluetoothStateChanged(state);
-                }
+            for (BluetoothCallback callback : mCallbacks) {
+                callback.onBluetoothStateChanged(state);
             }
         }
     }
@@ -176,17 +292,22 @@ final class BluetoothEventManager {
         }
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
-            synchronized (mCallbacks) {
-                for (BluetoothCallback callback : mCallbacks) {
-                    callback.onScanningStateChanged(mStarted);
-                }
+            for (BluetoothCallback callback : mCallbacks) {
+                callback.onScanningStateChanged(mStarted);
             }
             mDeviceManager.onScanningStateChanged(mStarted);
             LocalBluetoothPreferences.persistDiscoveringTimestamp(context);
         }
     }
 
-    private class DeviceFoundHandler implements Handler {
+    /**
+     * Handler for device events that are collected and applied together by
+     * {@link #dispatchPendingDeviceEvents}.
+     */
+    private abstract class DeviceEventHandler implements Handler {
+    }
+
+    private class DeviceFoundHandler extends DeviceEventHandler {
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
             short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
@@ -194,26 +315,19 @@ final class BluetoothEventManager {
             String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
             // TODO Pick up UUID. They should be available for 2.1 devices.
             // Skip for now, there's a bluez problem and we are not getting uuids even for 2.1.
-            CachedBluetoothDevice cachedDevice = mDeviceManager.findDevice(device);
-            if (cachedDevice == null) {
-                cachedDevice = mDeviceManager.addDevice(mLocalAdapter, mProfileManager, device);
-                Log.d(TAG, "DeviceFoundHandler created new CachedBluetoothDevice: "
-                        + cachedDevice);
-                // callback to UI to create Preference for new device
-                dispatchDeviceAdded(cachedDevice);
+            PendingDeviceEvent event = getPendingDeviceEvent(device);
+            event.found = true;
+            event.rssi = rssi;
+            if (btClass != null) {
+                event.btClass = btClass;
             }
-            cachedDevice.setRssi(rssi);
-            cachedDevice.setBtClass(btClass);
-            cachedDevice.setName(name);
-            cachedDevice.setVisible(true);
+            event.name = name;
         }
     }
 
     private void dispatchDeviceAdded(CachedBluetoothDevice cachedDevice) {
-        synchronized (mCallbacks) {
-            for (BluetoothCallback callback : mCallbacks) {
-                callback.onDeviceAdded(cachedDevice);
-            }
+        for (BluetoothCallback callback : mCallbacks) {
+            callback.onDeviceAdded(cachedDevice);
         }
     }
 
@@ -226,19 +340,17 @@ final class BluetoothEventManager {
                 return;
             }
             if (CachedBluetoothDeviceManager.onDeviceDisappeared(cachedDevice)) {
-                synchronized (mCallbacks) {
-                    for (BluetoothCallback callback : mCallbacks) {
-                        callback.onDeviceDeleted(cachedDevice);
-                    }
+                for (BluetoothCallback callback : mCallbacks) {
+                    callback.onDeviceDeleted(cachedDevice);
                 }
             }
         }
     }
 
-    private class NameChangedHandler implements Handler {
+    private class NameChangedHandler extends DeviceEventHandler {
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
-            mDeviceManager.onDeviceNameUpdated(device);
+            getPendingDeviceEvent(device).nameChanged = true;
         }
     }
 
@@ -268,10 +380,8 @@ final class BluetoothEventManager {
                 }
             }
 
-            synchronized (mCallbacks) {
-                for (BluetoothCallback callback : mCallbacks) {
-                    callback.onDeviceBondStateChanged(cachedDevice, bondState);
-                }
+            for (BluetoothCallback callback : mCallbacks) {
+                callback.onDeviceBondStateChanged(cachedDevice, bondState);
             }
             cachedDevice.onBondingStateChanged(bondState);
 
@@ -326,17 +436,17 @@ final class BluetoothEventManager {
         }
     }
 
-    private class ClassChangedHandler implements Handler {
+    private class ClassChangedHandler extends DeviceEventHandler {
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
-            mDeviceManager.onBtClassChanged(device);
+            getPendingDeviceEvent(device).classChanged = true;
         }
     }
 
-    private class UuidChangedHandler implements Handler {
+    private class UuidChangedHandler extends DeviceEventHandler {
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
-            mDeviceManager.onUuidChanged(device);
+            getPendingDeviceEvent(device).uuidChanged = true;
         }
     }
 
@@ -67,6 +67,10 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
 
     private final Collection<Callback> mCallbacks = new ArrayList<Callback>();
 
+    // Attribute changes held back while a batch of updates is applied
+    private int mBatchDepth;
+    private boolean mBatchChanged;
+
     // Following constants indicate the user's choices of Phone book access settings
     // User hasn't made any choice or settings app has wiped out the memory
     final static int PHONEBOOK_ACCESS_UNKNOWN = 0;
@@ -544,7 +548,26 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         }
     }
 
+    /**
+     * Hold back attribute change callbacks until the matching
+     * {@link #endBatchUpdate}, so several updates redraw the device once.
+     */
+    void beginBatchUpdate() {
+        mBatchDepth++;
+    }
+
+    void endBatchUpdate() {
+        if (--mBatchDepth == 0 && mBatchChanged) {
+            mBatchChanged = false;
+            dispatchAttributesChanged();
+        }
+    }
+
     private void dispatchAttributesChanged() {
+        if (mBatchDepth > 0) {
+            mBatchChanged = true;
+            return;
+        }
         synchronized (mCallbacks) {
             for (Callback callback : mCallbacks) {
                 callback.onDeviceAttributesChanged();
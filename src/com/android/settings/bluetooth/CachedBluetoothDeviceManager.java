@@ -22,7 +22,9 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * CachedBluetoothDeviceManager manages the set of remote Bluetooth devices.
@@ -35,12 +37,27 @@ final class CachedBluetoothDeviceManager {
     private final List<CachedBluetoothDevice> mCachedDevices =
             new ArrayList<CachedBluetoothDevice>();
 
+    /** Cached devices by address, readable without holding the lock. */
+    private final ConcurrentHashMap<String, CachedBluetoothDevice> mDeviceIndex =
+            new ConcurrentHashMap<String, CachedBluetoothDevice>();
+
+    /** Read-only copy of {@link #mCachedDevices}, or null once a device was added. */
+    private List<CachedBluetoothDevice> mSnapshot;
+
     CachedBluetoothDeviceManager(Context context) {
         mContext = context;
     }
 
+    /**
+     * Returns a read-only snapshot of the cached devices. The snapshot is
+     * shared between callers until the next device is added.
+     */
     public synchronized Collection<CachedBluetoothDevice> getCachedDevicesCopy() {
-        return new ArrayList<CachedBluetoothDevice>(mCachedDevices);
+        if (mSnapshot == null) {
+            mSnapshot = Collections.unmodifiableList(
+                    new ArrayList<CachedBluetoothDevice>(mCachedDevices));
+        }
+        return mSnapshot;
     }
 
     public static boolean onDeviceDisappeared(CachedBluetoothDevice cachedDevice) {
@@ -66,12 +83,8 @@ final class CachedBluetoothDeviceManager {
      *   not been previously seen
      */
     CachedBluetoothDevice findDevice(BluetoothDevice device) {
-        for (CachedBluetoothDevice cachedDevice : mCachedDevices) {
-            if (cachedDevice.getDevice().equals(device)) {
-                return cachedDevice;
-            }
-        }
-        return null;
+        // BluetoothDevice equality is address equality.
+        return mDeviceIndex.get(device.getAddress());
     }
 
     /**
@@ -85,7 +98,11 @@ final class CachedBluetoothDeviceManager {
             BluetoothDevice device) {
         CachedBluetoothDevice newDevice = new CachedBluetoothDevice(mContext, adapter,
             profileManager, device);
-        mCachedDevices.add(newDevice);
+        synchronized (this) {
+            mCachedDevices.add(newDevice);
+            mDeviceIndex.put(device.getAddress(), newDevice);
+            mSnapshot = null;
+        }
         return newDevice;
     }
 
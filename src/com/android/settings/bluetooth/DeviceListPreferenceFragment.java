@@ -164,6 +164,12 @@ public abstract class DeviceListPreferenceFragment extends
         }
      }
 
+    public void onDevicesAdded(Collection<CachedBluetoothDevice> cachedDevices) {
+        for (CachedBluetoothDevice cachedDevice : cachedDevices) {
+            onDeviceAdded(cachedDevice);
+        }
+    }
+
     void createDevicePreference(CachedBluetoothDevice cachedDevice) {
         BluetoothDevicePreference preference = new BluetoothDevicePreference(
                 getActivity(), cachedDevice);
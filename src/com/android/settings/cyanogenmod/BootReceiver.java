@@ -68,8 +68,12 @@ public class BootReceiver extends BroadcastReceiver {
         String governor = prefs.getString(Processor.GOV_PREF, null);
         String minFrequency = prefs.getString(Processor.FREQ_MIN_PREF, null);
         String maxFrequency = prefs.getString(Processor.FREQ_MAX_PREF, null);
-        String availableFrequenciesLine = Utils.fileReadOneLine(Processor.FREQ_LIST_FILE);
-        String availableGovernorsLine = Utils.fileReadOneLine(Processor.GOV_LIST_FILE);
+        SysfsNode frequencyListNode = new SysfsNode(Processor.FREQ_LIST_FILE);
+        SysfsNode governorListNode = new SysfsNode(Processor.GOV_LIST_FILE);
+        String availableFrequenciesLine = frequencyListNode.readLine();
+        String availableGovernorsLine = governorListNode.readLine();
+        frequencyListNode.close();
+        governorListNode.close();
         boolean noSettings = ((availableGovernorsLine == null) || (governor == null)) &&
                              ((availableFrequenciesLine == null) || ((minFrequency == null) && (maxFrequency == null)));
         List<String> frequencies = null;
@@ -84,14 +88,25 @@ public class BootReceiver extends BroadcastReceiver {
             if (availableFrequenciesLine != null){
                 frequencies = Arrays.asList(availableFrequenciesLine.split(" "));
             }
+            final SysfsNode[] nodes = new SysfsNode[] {
+                new SysfsNode(Processor.GOV_FILE),
+                new SysfsNode(Processor.FREQ_MAX_FILE),
+                new SysfsNode(Processor.FREQ_MIN_FILE)
+            };
+            final String[] values = new String[nodes.length];
             if (governor != null && governors != null && governors.contains(governor)) {
-                Utils.fileWriteOneLine(Processor.GOV_FILE, governor);
+                values[0] = governor;
             }
             if (maxFrequency != null && frequencies != null && frequencies.contains(maxFrequency)) {
-                Utils.fileWriteOneLine(Processor.FREQ_MAX_FILE, maxFrequency);
+                values[1] = maxFrequency;
             }
             if (minFrequency != null && frequencies != null && frequencies.contains(minFrequency)) {
-                Utils.fileWriteOneLine(Processor.FREQ_MIN_FILE, minFrequency);
+                values[2] = minFrequency;
+            }
+            // Written in order, skipping values the kernel already has
+            SysfsNode.writeAll(nodes, values);
+            for (SysfsNode node : nodes) {
+                node.close();
             }
             Log.d(TAG, "CPU settings restored.");
         }
@@ -102,7 +117,9 @@ public class BootReceiver extends BroadcastReceiver {
 
         boolean ksm = prefs.getBoolean(MemoryManagement.KSM_PREF, false);
 
-        Utils.fileWriteOneLine(MemoryManagement.KSM_RUN_FILE, ksm ? "1" : "0");
+        SysfsNode ksmNode = new SysfsNode(MemoryManagement.KSM_RUN_FILE);
+        ksmNode.write(ksm ? "1" : "0");
+        ksmNode.close();
         Log.d(TAG, "KSM settings restored.");
     }
 }
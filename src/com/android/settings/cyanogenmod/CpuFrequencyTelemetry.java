@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2012 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.cyanogenmod;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Samples the frequency, limits and governor of every CPU from one
+ * background thread, and keeps how long each CPU spent at each frequency
+ * over the last samples in a preallocated ring buffer.
+ *
+ * Values are read from sysfs with {@link SysfsNode}, so a running sampler
+ * allocates nothing unless a governor changes. Getters may be called from
+ * any thread; the listener is called on the thread that started sampling.
+ */
+final class CpuFrequencyTelemetry {
+    private static final String CPU_DIR = "/sys/devices/system/cpu";
+
+    /** Most frequencies tracked per CPU in time_in_state. */
+    private static final int MAX_STATES = 64;
+    /** time_in_state holds one "frequency time" line per state. */
+    private static final int TIME_IN_STATE_BUFFER_SIZE = MAX_STATES * 32;
+
+    interface Listener {
+        /** A new sample of all CPUs is available. */
+        void onSampled(CpuFrequencyTelemetry telemetry);
+    }
+
+    private static final class Cpu {
+        final SysfsNode scalingCurNode;
+        final SysfsNode cpuinfoCurNode;
+        final SysfsNode minNode;
+        final SysfsNode maxNode;
+        final SysfsNode governorNode;
+        final SysfsNode timeInStateNode;
+
+        boolean online;
+        int curFrequency = -1;
+        int minFrequency = -1;
+        int maxFrequency = -1;
+        String governor;
+
+        /** Number of time_in_state entries, or -1 until a baseline is read. */
+        int stateCount = -1;
+        final long[] frequencies = new long[MAX_STATES];
+        final long[] lastTimes = new long[MAX_STATES];
+        /** Time spent at each frequency during each of the last samples. */
+        final long[][] deltas;
+
+        Cpu(String dir, int historySize) {
+            scalingCurNode = new SysfsNode(dir + "/cpufreq/scaling_cur_freq");
+            cpuinfoCurNode = new SysfsNode(dir + "/cpufreq/cpuinfo_cur_freq");
+            minNode = new SysfsNode(dir + "/cpufreq/scaling_min_freq");
+            maxNode = new SysfsNode(dir + "/cpufreq/scaling_max_freq");
+            governorNode = new SysfsNode(dir + "/cpufreq/scaling_governor");
+            timeInStateNode = new SysfsNode(dir + "/cpufreq/stats/time_in_state",
+                    TIME_IN_STATE_BUFFER_SIZE);
+            deltas = new long[historySize][MAX_STATES];
+        }
+
+        void close() {
+            scalingCurNode.close();
+            cpuinfoCurNode.close();
+            minNode.close();
+            maxNode.close();
+            governorNode.close();
+            timeInStateNode.close();
+        }
+    }
+
+    private final Cpu[] mCpus;
+    private final int mHistorySize;
+    /** Scratch for parsing time_in_state; only used by the sampling thread. */
+    private final long[] mParsed = new long[MAX_STATES * 2];
+
+    /** Ring slot of the next sample, and how many slots hold samples. */
+    private int mHead;
+    private int mSampleCount;
+
+    /** Held while nodes are read or closed, as an old thread may still be closing. */
+    private final Object mNodeLock = new Object();
+
+    private volatile long mInterval;
+    private Listener mListener;
+    private Handler mListenerHandler;
+    private HandlerThread mThread;
+    private Handler mSampleHandler;
+    private Runnable mSampleRunnable;
+
+    private final Runnable mNotifyRunnable = new Runnable() {
+        public void run() {
+            if (mListener != null) {
+                mListener.onSampled(CpuFrequencyTelemetry.this);
+            }
+        }
+    };
+
+    /**
+     * @param interval time between samples, in milliseconds
+     * @param historySize number of samples kept for time in state
+     */
+    CpuFrequencyTelemetry(long interval, int historySize) {
+        mInterval = interval;
+        mHistorySize = historySize;
+
+        final String[] names = new File(CPU_DIR).list();
+        int[] ids = new int[names != null ? names.length : 0];
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            final int id = parseCpuId(names[i]);
+            if (id >= 0) {
+                ids[count++] = id;
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+
+        mCpus = new Cpu[count];
+        for (int i = 0; i < count; i++) {
+            mCpus[i] = new Cpu(CPU_DIR + "/cpu" + ids[i], historySize);
+        }
+    }
+
+    /** Returns the number in a "cpuN" directory name, or -1 for other entries. */
+    private static int parseCpuId(String name) {
+        if (!name.startsWith("cpu") || name.length() == 3) {
+            return -1;
+        }
+        int id = 0;
+        for (int i = 3; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+
+    int getCpuCount() {
+        return mCpus.length;
+    }
+
+    void setInterval(long interval) {
+        mInterval = interval;
+    }
+
+    /**
+     * Start sampling on a background thread, reporting each sample to the
+     * listener on the calling thread.
+     */
+    void start(Listener listener) {
+        if (mThread != null) {
+            return;
+        }
+        mListener = listener;
+        mListenerHandler = new Handler();
+        mThread = new HandlerThread("CpuFrequencyTelemetry", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        final Handler sampleHandler = new Handler(mThread.getLooper());
+        final Handler listenerHandler = mListenerHandler;
+        mSampleRunnable = new Runnable() {
+            public void run() {
+                sample();
+                sampleHandler.postDelayed(this, mInterval);
+                listenerHandler.post(mNotifyRunnable);
+            }
+        };
+        mSampleHandler = sampleHandler;
+        mSampleHandler.post(mSampleRunnable);
+    }
+
+    /** Stop sampling and release the sysfs nodes. Sampling may be started again. */
+    void stop() {
+        if (mThread == null) {
+            // Only an initial sample() on this thread may have opened nodes
+            closeNodes();
+            return;
+        }
+        mListener = null;
+        mListenerHandler.removeCallbacks(mNotifyRunnable);
+        mSampleHandler.removeCallbacks(mSampleRunnable);
+        // Nodes belong to the sampling thread, so close them there
+        mSampleHandler.post(new Runnable() {
+            public void run() {
+                closeNodes();
+                Looper.myLooper().quit();
+            }
+        });
+        mThread = null;
+        mSampleHandler = null;
+        mSampleRunnable = null;
+    }
+
+    private void closeNodes() {
+        synchronized (mNodeLock) {
+            for (Cpu cpu : mCpus) {
+                cpu.close();
+            }
+        }
+    }
+
+    /**
+     * Take one sample of all CPUs. Called on the sampling thread, or before
+     * sampling starts to get initial values.
+     */
+    void sample() {
+        synchronized (mNodeLock) {
+            sampleLocked();
+        }
+    }
+
+    private void sampleLocked() {
+        for (Cpu cpu : mCpus) {
+            // Offline CPUs lose their cpufreq directory, so reads fail
+            final boolean cur = cpu.scalingCurNode.read() || cpu.cpuinfoCurNode.read();
+            SysfsNode.readAll(cpu.minNode, cpu.maxNode, cpu.governorNode);
+            final boolean timeInState = cpu.timeInStateNode.read();
+
+            synchronized (this) {
+                cpu.online = cur;
+                if (cur) {
+                    final SysfsNode curNode = cpu.scalingCurNode.getLine() != null
+                            ? cpu.scalingCurNode : cpu.cpuinfoCurNode;
+                    cpu.curFrequency = (int) curNode.getLong(-1);
+                    cpu.minFrequency = (int) cpu.minNode.getLong(-1);
+                    cpu.maxFrequency = (int) cpu.maxNode.getLong(-1);
+                    if (cpu.governor == null || !cpu.governorNode.contentEquals(cpu.governor)) {
+                        cpu.governor = cpu.governorNode.getLine();
+                    }
+                } else {
+                    cpu.curFrequency = -1;
+                }
+                updateTimeInState(cpu, timeInState);
+            }
+        }
+
+        synchronized (this) {
+            mHead = (mHead + 1) % mHistorySize;
+            if (mSampleCount < mHistorySize) {
+                mSampleCount++;
+            }
+        }
+    }
+
+    /** Store the time spent at each frequency since the previous sample. */
+    private void updateTimeInState(Cpu cpu, boolean read) {
+        final long[] delta = cpu.deltas[mHead];
+        Arrays.fill(delta, 0);
+        if (!read) {
+            return;
+        }
+
+        final int states = cpu.timeInStateNode.getLongs(mParsed) / 2;
+        boolean baseline = states != cpu.stateCount;
+        for (int i = 0; i < states && !baseline; i++) {
+            // Stats restart when a CPU comes back online
+            baseline = mParsed[i * 2] != cpu.frequencies[i]
+                    || mParsed[i * 2 + 1] < cpu.lastTimes[i];
+        }
+        if (baseline) {
+            // Earlier deltas may refer to another frequency table
+            for (long[] earlier : cpu.deltas) {
+                Arrays.fill(earlier, 0);
+            }
+        }
+        for (int i = 0; i < states; i++) {
+            final long frequency = mParsed[i * 2];
+            final long time = mParsed[i * 2 + 1];
+            if (!baseline) {
+                delta[i] = time - cpu.lastTimes[i];
+            }
+            cpu.frequencies[i] = frequency;
+            cpu.lastTimes[i] = time;
+        }
+        cpu.stateCount = states;
+    }
+
+    synchronized boolean isOnline(int cpu) {
+        return mCpus[cpu].online;
+    }
+
+    /** Current frequency in kHz, or -1 if the CPU is offline. */
+    synchronized int getCurFrequency(int cpu) {
+        return mCpus[cpu].curFrequency;
+    }
+
+    /** Last known minimum scaling frequency in kHz, or -1. */
+    synchronized int getMinFrequency(int cpu) {
+        return mCpus[cpu].minFrequency;
+    }
+
+    /** Last known maximum scaling frequency in kHz, or -1. */
+    synchronized int getMaxFrequency(int cpu) {
+        return mCpus[cpu].maxFrequency;
+    }
+
+    /** Last known governor, or null. */
+    synchronized String getGovernor(int cpu) {
+        return mCpus[cpu].governor;
+    }
+
+    /**
+     * Sum the time spent at each frequency over the kept samples into the
+     * given arrays, which should hold at least {@link #MAX_STATES} entries.
+     * Times are in the 10ms units of time_in_state. Returns the number of
+     * frequencies, or 0 if time in state is not available.
+     */
+    synchronized int getTimeInState(int cpu, long[] frequencies, long[] times) {
+        final Cpu c = mCpus[cpu];
+        if (c.stateCount <= 0) {
+            return 0;
+        }
+        final int states = Math.min(c.stateCount, Math.min(frequencies.length, times.length));
+        for (int i = 0; i < states; i++) {
+            frequencies[i] = c.frequencies[i];
+            times[i] = 0;
+        }
+        for (int s = 0; s < mSampleCount; s++) {
+            final long[] delta = c.deltas[s];
+            for (int i = 0; i < states; i++) {
+                times[i] += delta[i];
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Frequency in kHz at which the CPU spent the most time over the kept
+     * samples, or -1 if unknown.
+     */
+    synchronized int getMostUsedFrequency(int cpu) {
+        final Cpu c = mCpus[cpu];
+        int best = -1;
+        long bestTime = 0;
+        for (int i = 0; i < c.stateCount; i++) {
+            long time = 0;
+            for (int s = 0; s < mSampleCount; s++) {
+                time += c.deltas[s][i];
+            }
+            if (time > bestTime) {
+                bestTime = time;
+                best = (int) c.frequencies[i];
+            }
+        }
+        return best;
+    }
+}
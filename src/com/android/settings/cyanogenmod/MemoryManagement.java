@@ -28,7 +28,6 @@ import android.preference.PreferenceScreen;
 
 import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
-import com.android.settings.Utils;
 
 public class MemoryManagement extends SettingsPreferenceFragment implements
         OnPreferenceChangeListener {
@@ -53,6 +52,8 @@ public class MemoryManagement extends SettingsPreferenceFragment implements
 
     private static final String PURGEABLE_ASSETS_DEFAULT = "0";
 
+    private final SysfsNode mKSMNode = new SysfsNode(KSM_RUN_FILE);
+
     private ListPreference mzRAM;
 
     private CheckBoxPreference mPurgeableAssetsPref;
@@ -84,8 +85,8 @@ public class MemoryManagement extends SettingsPreferenceFragment implements
                 prefSet.removePreference(mzRAM);
             }
 
-            if (Utils.fileExists(KSM_RUN_FILE)) {
-                mKSMPref.setChecked(KSM_PREF_ENABLED.equals(Utils.fileReadOneLine(KSM_RUN_FILE)));
+            if (mKSMNode.exists()) {
+                mKSMPref.setChecked(mKSMNode.read() && mKSMNode.contentEquals(KSM_PREF_ENABLED));
             } else {
                 prefSet.removePreference(mKSMPref);
             }
@@ -97,6 +98,12 @@ public class MemoryManagement extends SettingsPreferenceFragment implements
         }
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mKSMNode.close();
+    }
+
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
 
@@ -107,7 +114,7 @@ public class MemoryManagement extends SettingsPreferenceFragment implements
         }
 
         if (preference == mKSMPref) {
-            Utils.fileWriteOneLine(KSM_RUN_FILE, mKSMPref.isChecked() ? "1" : "0");
+            mKSMNode.write(mKSMPref.isChecked() ? "1" : "0");
             return true;
         }
 
@@ -16,22 +16,15 @@
 
 package com.android.settings.cyanogenmod;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
-
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.preference.ListPreference;
 import android.preference.Preference;
+import android.preference.PreferenceCategory;
 import android.preference.PreferenceScreen;
 import android.util.Log;
 
 import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
-import com.android.settings.Utils;
 
 //
 // CPU Related Settings
@@ -42,7 +35,6 @@ public class Processor extends SettingsPreferenceFragment implements
     public static final String FREQ_CUR_PREF = "pref_cpu_freq_cur";
     public static final String SCALE_CUR_FILE = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_cur_freq";
     public static final String FREQINFO_CUR_FILE = "/sys/devices/system/cpu/cpu0/cpufreq/cpuinfo_cur_freq";
-    private static String FREQ_CUR_FILE = SCALE_CUR_FILE;
     public static final String GOV_PREF = "pref_cpu_gov";
     public static final String GOV_LIST_FILE = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_available_governors";
     public static final String GOV_FILE = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_governor";
@@ -55,6 +47,13 @@ public class Processor extends SettingsPreferenceFragment implements
 
     private static final String TAG = "CPUSettings";
 
+    private static final String CORES_CATEGORY = "cpu_cores";
+
+    // Time between samples of the live frequency view
+    private static final long SAMPLE_INTERVAL = 500;
+    // Samples kept for time in state, covering the last ten seconds
+    private static final int SAMPLE_HISTORY = 20;
+
     private String mGovernorFormat;
     private String mMinFrequencyFormat;
     private String mMaxFrequencyFormat;
@@ -64,35 +63,37 @@ public class Processor extends SettingsPreferenceFragment implements
     private ListPreference mMinFrequencyPref;
     private ListPreference mMaxFrequencyPref;
 
-    private class CurCPUThread extends Thread {
-        private boolean mInterrupt = false;
-
-        public void interrupt() {
-            mInterrupt = true;
-        }
-
-        @Override
-        public void run() {
-            try {
-                while (!mInterrupt) {
-                    sleep(500);
-                    final String curFreq = Utils.fileReadOneLine(FREQ_CUR_FILE);
-                    if (curFreq != null)
-                        mCurCPUHandler.sendMessage(mCurCPUHandler.obtainMessage(0, curFreq));
+    private final SysfsNode mGovernorNode = new SysfsNode(GOV_FILE);
+    private final SysfsNode mGovernorListNode = new SysfsNode(GOV_LIST_FILE);
+    private final SysfsNode mFrequencyListNode = new SysfsNode(FREQ_LIST_FILE);
+    private final SysfsNode mMinFrequencyNode = new SysfsNode(FREQ_MIN_FILE);
+    private final SysfsNode mMaxFrequencyNode = new SysfsNode(FREQ_MAX_FILE);
+
+    private CpuFrequencyTelemetry mTelemetry;
+
+    // Per core view, only shown on multi-core devices
+    private Preference[] mCorePrefs;
+    private int[] mShownCurFrequency;
+    private int[] mShownMinFrequency;
+    private int[] mShownMaxFrequency;
+    private int[] mShownMostUsedFrequency;
+    private String[] mShownGovernor;
+
+    private final CpuFrequencyTelemetry.Listener mTelemetryListener =
+            new CpuFrequencyTelemetry.Listener() {
+        public void onSampled(CpuFrequencyTelemetry telemetry) {
+            final int curFrequency = telemetry.getCurFrequency(0);
+            if (curFrequency >= 0) {
+                mCurFrequencyPref.setSummary(toMHz(curFrequency));
+            }
+            if (mCorePrefs != null) {
+                for (int i = 0; i < mCorePrefs.length; i++) {
+                    updateCorePreference(telemetry, i);
                 }
-            } catch (InterruptedException e) {
             }
         }
     };
 
-    private CurCPUThread mCurCPUThread = new CurCPUThread();
-
-    private Handler mCurCPUHandler = new Handler() {
-        public void handleMessage(Message msg) {
-            mCurFrequencyPref.setSummary(toMHz((String) msg.obj));
-        }
-    };
-
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -119,9 +120,8 @@ public class Processor extends SettingsPreferenceFragment implements
 
         /* Governor
         Some systems might not use governors */
-        if (!Utils.fileExists(GOV_LIST_FILE) || !Utils.fileExists(GOV_FILE)
-                || (temp = Utils.fileReadOneLine(GOV_FILE)) == null
-                || (availableGovernorsLine = Utils.fileReadOneLine(GOV_LIST_FILE)) == null) {
+        if ((temp = mGovernorNode.readLine()) == null
+                || (availableGovernorsLine = mGovernorListNode.readLine()) == null) {
             prefScreen.removePreference(mGovernorPref);
 
         } else {
@@ -135,7 +135,7 @@ public class Processor extends SettingsPreferenceFragment implements
         }
 
         // Disable the min/max list if we dont have a list file
-        if (!Utils.fileExists(FREQ_LIST_FILE) || (availableFrequenciesLine = Utils.fileReadOneLine(FREQ_LIST_FILE)) == null) {
+        if ((availableFrequenciesLine = mFrequencyListNode.readLine()) == null) {
             mMinFrequencyPref.setEnabled(false);
             mMaxFrequencyPref.setEnabled(false);
 
@@ -148,7 +148,7 @@ public class Processor extends SettingsPreferenceFragment implements
             }
 
             // Min frequency
-            if (!Utils.fileExists(FREQ_MIN_FILE) || (temp = Utils.fileReadOneLine(FREQ_MIN_FILE)) == null) {
+            if ((temp = mMinFrequencyNode.readLine()) == null) {
                 mMinFrequencyPref.setEnabled(false);
 
             } else {
@@ -160,7 +160,7 @@ public class Processor extends SettingsPreferenceFragment implements
             }
 
             // Max frequency
-            if (!Utils.fileExists(FREQ_MAX_FILE) || (temp = Utils.fileReadOneLine(FREQ_MAX_FILE)) == null) {
+            if ((temp = mMaxFrequencyNode.readLine()) == null) {
                 mMaxFrequencyPref.setEnabled(false);
 
             } else {
@@ -172,65 +172,141 @@ public class Processor extends SettingsPreferenceFragment implements
             }
         }
 
-        // Cur frequency
-        if (!Utils.fileExists(FREQ_CUR_FILE)) {
-            FREQ_CUR_FILE = FREQINFO_CUR_FILE;
-        }
-
-        if (!Utils.fileExists(FREQ_CUR_FILE) || (temp = Utils.fileReadOneLine(FREQ_CUR_FILE)) == null) {
+        // Cur frequency, sampled for all cores from one thread
+        mTelemetry = new CpuFrequencyTelemetry(SAMPLE_INTERVAL, SAMPLE_HISTORY);
+        mTelemetry.sample();
+        if (mTelemetry.getCpuCount() == 0 || mTelemetry.getCurFrequency(0) < 0) {
             mCurFrequencyPref.setEnabled(false);
+            mTelemetry.stop();
+            mTelemetry = null;
 
         } else {
-            mCurFrequencyPref.setSummary(toMHz(temp));
+            mCurFrequencyPref.setSummary(toMHz(mTelemetry.getCurFrequency(0)));
+
+            if (mTelemetry.getCpuCount() > 1) {
+                addCorePreferences(prefScreen, mTelemetry.getCpuCount());
+            }
+        }
+    }
 
-            mCurCPUThread.start();
+    private void addCorePreferences(PreferenceScreen prefScreen, int count) {
+        PreferenceCategory category = new PreferenceCategory(getActivity());
+        category.setKey(CORES_CATEGORY);
+        category.setTitle(R.string.cpu_cores_title);
+        prefScreen.addPreference(category);
+
+        mCorePrefs = new Preference[count];
+        mShownCurFrequency = new int[count];
+        mShownMinFrequency = new int[count];
+        mShownMaxFrequency = new int[count];
+        mShownMostUsedFrequency = new int[count];
+        mShownGovernor = new String[count];
+        for (int i = 0; i < count; i++) {
+            Preference pref = new Preference(getActivity(), null,
+                    android.R.attr.preferenceInformationStyle);
+            pref.setTitle(getString(R.string.cpu_core_title, i));
+            pref.setSelectable(false);
+            category.addPreference(pref);
+            mCorePrefs[i] = pref;
+            mShownCurFrequency[i] = Integer.MIN_VALUE;
+            updateCorePreference(mTelemetry, i);
         }
     }
 
+    private void updateCorePreference(CpuFrequencyTelemetry telemetry, int cpu) {
+        final int curFrequency = telemetry.getCurFrequency(cpu);
+        final int minFrequency = telemetry.getMinFrequency(cpu);
+        final int maxFrequency = telemetry.getMaxFrequency(cpu);
+        final int mostUsedFrequency = telemetry.getMostUsedFrequency(cpu);
+        final String governor = telemetry.getGovernor(cpu);
+
+        // Most samples change nothing; skip formatting them
+        if (curFrequency == mShownCurFrequency[cpu]
+                && minFrequency == mShownMinFrequency[cpu]
+                && maxFrequency == mShownMaxFrequency[cpu]
+                && mostUsedFrequency == mShownMostUsedFrequency[cpu]
+                && governor == mShownGovernor[cpu]) {
+            return;
+        }
+        mShownCurFrequency[cpu] = curFrequency;
+        mShownMinFrequency[cpu] = minFrequency;
+        mShownMaxFrequency[cpu] = maxFrequency;
+        mShownMostUsedFrequency[cpu] = mostUsedFrequency;
+        mShownGovernor[cpu] = governor;
+
+        if (curFrequency < 0) {
+            mCorePrefs[cpu].setSummary(R.string.cpu_core_offline);
+            return;
+        }
+        StringBuilder summary = new StringBuilder(getString(R.string.cpu_core_summary,
+                toMHz(curFrequency), governor != null ? governor : "",
+                toMHz(minFrequency), toMHz(maxFrequency)));
+        if (mostUsedFrequency > 0) {
+            summary.append('\n').append(
+                    getString(R.string.cpu_core_most_used, toMHz(mostUsedFrequency)));
+        }
+        mCorePrefs[cpu].setSummary(summary.toString());
+    }
+
     @Override
     public void onResume() {
         String temp;
 
         super.onResume();
 
-        if (Utils.fileExists(FREQ_MIN_FILE) && (temp = Utils.fileReadOneLine(FREQ_MIN_FILE)) != null) {
+        if (mTelemetry != null) {
+            mTelemetry.start(mTelemetryListener);
+        }
+
+        SysfsNode.readAll(mMinFrequencyNode, mMaxFrequencyNode, mGovernorNode);
+
+        if ((temp = mMinFrequencyNode.getLine()) != null) {
             mMinFrequencyPref.setValue(temp);
             mMinFrequencyPref.setSummary(String.format(mMinFrequencyFormat, toMHz(temp)));
         }
 
-        if (Utils.fileExists(FREQ_MAX_FILE) && (temp = Utils.fileReadOneLine(FREQ_MAX_FILE)) != null) {
+        if ((temp = mMaxFrequencyNode.getLine()) != null) {
             mMaxFrequencyPref.setValue(temp);
             mMaxFrequencyPref.setSummary(String.format(mMaxFrequencyFormat, toMHz(temp)));
         }
 
-        if (Utils.fileExists(GOV_FILE) && (temp = Utils.fileReadOneLine(GOV_FILE)) != null) {
+        if ((temp = mGovernorNode.getLine()) != null) {
             mGovernorPref.setSummary(String.format(mGovernorFormat, temp));
         }
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+
+        if (mTelemetry != null) {
+            mTelemetry.stop();
+        }
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
-        mCurCPUThread.interrupt();
-        try {
-            mCurCPUThread.join();
-        } catch (InterruptedException e) {
-        }
+        mGovernorNode.close();
+        mGovernorListNode.close();
+        mFrequencyListNode.close();
+        mMinFrequencyNode.close();
+        mMaxFrequencyNode.close();
     }
 
     public boolean onPreferenceChange(Preference preference, Object newValue) {
-        String fname = "";
+        SysfsNode node = null;
 
         if (newValue != null) {
             if (preference == mGovernorPref) {
-                fname = GOV_FILE;
+                node = mGovernorNode;
             } else if (preference == mMinFrequencyPref) {
-                fname = FREQ_MIN_FILE;
+                node = mMinFrequencyNode;
             } else if (preference == mMaxFrequencyPref) {
-                fname = FREQ_MAX_FILE;
+                node = mMaxFrequencyNode;
             }
 
-            if (Utils.fileWriteOneLine(fname, (String) newValue)) {
+            if (node != null && node.write((String) newValue)) {
                 if (preference == mGovernorPref) {
                     mGovernorPref.setSummary(String.format(mGovernorFormat, (String) newValue));
                 } else if (preference == mMinFrequencyPref) {
@@ -249,7 +325,10 @@ public class Processor extends SettingsPreferenceFragment implements
     }
 
     private String toMHz(String mhzString) {
-        return new StringBuilder().append(Integer.valueOf(mhzString) / 1000).append(" MHz")
-                .toString();
+        return toMHz(Integer.valueOf(mhzString));
+    }
+
+    private String toMHz(int khz) {
+        return new StringBuilder().append(khz / 1000).append(" MHz").toString();
     }
 }
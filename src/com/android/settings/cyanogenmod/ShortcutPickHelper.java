@@ -19,7 +19,6 @@ package com.android.settings.cyanogenmod;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import android.app.Activity;
@@ -31,7 +30,6 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Intent.ShortcutIconResource;
 import android.content.pm.ActivityInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.view.View;
@@ -40,8 +38,9 @@ import android.widget.BaseExpandableListAdapter;
 import android.widget.ExpandableListView;
 import android.widget.TextView;
 
+import com.android.settings.LauncherActivityCatalog;
+import com.android.settings.LauncherActivityCatalog.PackageEntry;
 import com.android.settings.R;
-import com.android.settings.cyanogenmod.ShortcutPickHelper.AppExpandableAdapter.GroupInfo;
 
 public class ShortcutPickHelper {
 
@@ -103,6 +102,9 @@ public class ShortcutPickHelper {
         shortcutIcons.add(ShortcutIconResource.fromContext(mParent, R.drawable.activities_icon));
         bundle.putParcelableArrayList(Intent.EXTRA_SHORTCUT_ICON_RESOURCE, shortcutIcons);
 
+        // Start loading the activity list while the user picks a shortcut type
+        LauncherActivityCatalog.getInstance(mParent).getPackages();
+
         Intent pickIntent = new Intent(Intent.ACTION_PICK_ACTIVITY);
         pickIntent.putExtra(Intent.EXTRA_INTENT, new Intent(Intent.ACTION_CREATE_SHORTCUT));
         pickIntent.putExtra(Intent.EXTRA_TITLE, mParent.getText(R.string.select_custom_app_title));
@@ -135,19 +137,22 @@ public class ShortcutPickHelper {
             pickIntent.putExtra(Intent.EXTRA_INTENT, mainIntent);
             startFragmentOrActivity(pickIntent, requestCodeApplication);
         } else if (application2name != null && application2name.equals(shortcutName)){
-            final List<PackageInfo> pInfos = mPackageManager.getInstalledPackages(PackageManager.GET_ACTIVITIES);
+            final LauncherActivityCatalog catalog = LauncherActivityCatalog.getInstance(mParent);
             ExpandableListView appListView = new ExpandableListView(mParent);
-            AppExpandableAdapter appAdapter = new AppExpandableAdapter(pInfos, mParent);
+            final AppExpandableAdapter appAdapter = new AppExpandableAdapter(mParent);
+            // Fills in as soon as the shared catalog has loaded the packages
+            catalog.registerCallback(appAdapter);
+            appAdapter.onCatalogChanged();
             appListView.setAdapter(appAdapter);
             appListView.setOnChildClickListener(new ExpandableListView.OnChildClickListener() {
                 @Override
                 public boolean onChildClick(ExpandableListView parent, View v,
                         int groupPosition, int childPosition, long id) {
                     Intent shortIntent = new Intent(Intent.ACTION_MAIN);
-                    String pkgName = ((GroupInfo)parent.getExpandableListAdapter().getGroup(groupPosition))
-                            .info.packageName;
-                    String actName = ((GroupInfo)parent.getExpandableListAdapter().getGroup(groupPosition))
-                            .info.activities[childPosition].name;
+                    String pkgName = ((PackageEntry)parent.getExpandableListAdapter().getGroup(groupPosition))
+                            .packageInfo.packageName;
+                    String actName = ((PackageEntry)parent.getExpandableListAdapter().getGroup(groupPosition))
+                            .packageInfo.activities[childPosition].name;
                     shortIntent.setClassName(pkgName, actName);
                     completeSetCustomApp(shortIntent);
                     mAlertDialog.dismiss();
@@ -165,51 +170,38 @@ public class ShortcutPickHelper {
                     mListener.shortcutPicked(null, null, false);
                 }
             });
+            mAlertDialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+                @Override
+                public void onDismiss(DialogInterface dialog) {
+                    catalog.unregisterCallback(appAdapter);
+                }
+            });
         } else {
             startFragmentOrActivity(intent, requestCodeShortcut);
         }
     }
 
-    public class AppExpandableAdapter extends BaseExpandableListAdapter {
+    public class AppExpandableAdapter extends BaseExpandableListAdapter
+            implements LauncherActivityCatalog.Callback {
 
-        ArrayList<GroupInfo> allList = new ArrayList<GroupInfo>();
+        // Sorted by label in the shared catalog; empty until it has loaded
+        List<PackageEntry> allList = Collections.emptyList();
         final int groupPadding;
 
-        public class LabelCompare implements Comparator<GroupInfo>{
-            @Override
-            public int compare(GroupInfo item1, GroupInfo item2) {
-                String rank1 = item1.label.toLowerCase();
-                String rank2 = item2.label.toLowerCase();
-                int result = rank1.compareTo(rank2);
-                if(result == 0) {
-                    return 0;
-                } else if(result < 0) {
-                    return -1;
-                } else {
-                    return +1;
-                }
-            }
-        }
-
-        class GroupInfo {
-            String label;
-            PackageInfo info;
-            GroupInfo (String l, PackageInfo p) {
-                label = l;
-                info = p;
-            }
+        public AppExpandableAdapter(Context context) {
+            groupPadding = context.getResources().getDimensionPixelSize(R.dimen.shortcut_picker_left_padding);
         }
 
-        public AppExpandableAdapter(List<PackageInfo> pInfos, Context context) {
-            for (PackageInfo i : pInfos) {
-                allList.add(new GroupInfo(i.applicationInfo.loadLabel(mPackageManager).toString(), i));
+        public void onCatalogChanged() {
+            List<PackageEntry> packages = LauncherActivityCatalog.getInstance(mParent).getPackages();
+            if (packages != null && packages != allList) {
+                allList = packages;
+                notifyDataSetChanged();
             }
-            Collections.sort(allList, new LabelCompare());
-            groupPadding = context.getResources().getDimensionPixelSize(R.dimen.shortcut_picker_left_padding);
         }
 
         public String getChild(int groupPosition, int childPosition) {
-            return allList.get(groupPosition).info.activities[childPosition].name;
+            return allList.get(groupPosition).packageInfo.activities[childPosition].name;
         }
 
         public long getChildId(int groupPosition, int childPosition) {
@@ -217,8 +209,8 @@ public class ShortcutPickHelper {
         }
 
         public int getChildrenCount(int groupPosition) {
-            if (allList.get(groupPosition).info.activities != null) {
-                return allList.get(groupPosition).info.activities.length;
+            if (allList.get(groupPosition).packageInfo.activities != null) {
+                return allList.get(groupPosition).packageInfo.activities.length;
             } else {
                 return 0;
             }
@@ -233,11 +225,11 @@ public class ShortcutPickHelper {
 
             }
             TextView textView = (TextView)convertView.findViewById(android.R.id.text1);
-            textView.setText(getChild(groupPosition, childPosition).replaceFirst(allList.get(groupPosition).info.packageName + ".", ""));
+            textView.setText(getChild(groupPosition, childPosition).replaceFirst(allList.get(groupPosition).packageInfo.packageName + ".", ""));
             return convertView;
         }
 
-        public GroupInfo getGroup(int groupPosition) {
+        public PackageEntry getGroup(int groupPosition) {
             return allList.get(groupPosition);
         }
 
@@ -256,7 +248,7 @@ public class ShortcutPickHelper {
                 convertView.setPadding(70, 0, 0, 0);
             }
             TextView textView = (TextView)convertView.findViewById(android.R.id.text1);
-            textView.setText(getGroup(groupPosition).label.toString());
+            textView.setText(getGroup(groupPosition).label);
             return convertView;
         }
 
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2012 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.cyanogenmod;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A sysfs or procfs node kept open between accesses. The kernel regenerates
+ * these files on every read from offset zero, so each {@link #read()} is a
+ * single positional read into a reused buffer, and numbers are parsed from
+ * the bytes directly. Polling a node therefore allocates nothing.
+ *
+ * A node is not thread safe; use it from one thread at a time.
+ */
+final class SysfsNode {
+    private static final String TAG = "SysfsNode";
+
+    private static final int BUFFER_SIZE = 512;
+
+    private final String mPath;
+    private final ByteBuffer mBuffer;
+    private FileChannel mReadChannel;
+    private FileChannel mWriteChannel;
+
+    /** Bytes returned by the last read, or -1 if it failed. */
+    private int mLength = -1;
+    /** Result of the last {@link #parseLong(int)}. */
+    private long mParsed;
+
+    SysfsNode(String path) {
+        this(path, BUFFER_SIZE);
+    }
+
+    SysfsNode(String path, int bufferSize) {
+        mPath = path;
+        mBuffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    String getPath() {
+        return mPath;
+    }
+
+    boolean exists() {
+        return new File(mPath).exists();
+    }
+
+    /**
+     * Read the current contents of the node, keeping them for the getters.
+     * Returns false if the node is missing or could not be read.
+     */
+    boolean read() {
+        mLength = -1;
+        try {
+            if (mReadChannel == null) {
+                mReadChannel = new FileInputStream(mPath).getChannel();
+            }
+            mBuffer.clear();
+            int length = 0;
+            int count;
+            while (mBuffer.hasRemaining()
+                    && (count = mReadChannel.read(mBuffer, length)) > 0) {
+                length += count;
+            }
+            mLength = length;
+            return true;
+        } catch (FileNotFoundException e) {
+            // Nodes are optional; callers treat this as unsupported
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "IO Exception when reading " + mPath, e);
+            closeChannels();
+            return false;
+        }
+    }
+
+    /** Read the node and return its first line, or null if it could not be read. */
+    String readLine() {
+        return read() ? getLine() : null;
+    }
+
+    /** Read the node and return it as a number, or the default if it is not one. */
+    long readLong(long defaultValue) {
+        return read() ? getLong(defaultValue) : defaultValue;
+    }
+
+    int readInt(int defaultValue) {
+        return (int) readLong(defaultValue);
+    }
+
+    /** First line of the last read, or null if it failed or the node was empty. */
+    String getLine() {
+        if (mLength <= 0) {
+            return null;
+        }
+        final byte[] bytes = mBuffer.array();
+        int end = 0;
+        while (end < mLength && bytes[end] != '\n') {
+            end++;
+        }
+        return new String(bytes, 0, end);
+    }
+
+    /** Leading number of the last read, or the default if there is none. */
+    long getLong(long defaultValue) {
+        return parseLong(0) < 0 ? defaultValue : mParsed;
+    }
+
+    /**
+     * Parse the whitespace separated numbers of the last read into the given
+     * array, stopping at the first entry that is not a number. Returns how
+     * many numbers were parsed.
+     */
+    int getLongs(long[] values) {
+        int count = 0;
+        int position = 0;
+        while (count < values.length) {
+            position = parseLong(position);
+            if (position < 0) {
+                break;
+            }
+            values[count++] = mParsed;
+        }
+        return count;
+    }
+
+    /**
+     * Parse the number starting at or after the given offset into
+     * {@link #mParsed}, returning the offset just past it, or -1 if no
+     * number follows.
+     */
+    private int parseLong(int position) {
+        final byte[] bytes = mBuffer.array();
+        final int length = mLength;
+        while (position < length && isSpace(bytes[position])) {
+            position++;
+        }
+        boolean negative = false;
+        if (position < length && bytes[position] == '-') {
+            negative = true;
+            position++;
+        }
+        final int start = position;
+        long value = 0;
+        while (position < length && bytes[position] >= '0' && bytes[position] <= '9') {
+            value = value * 10 + (bytes[position] - '0');
+            position++;
+        }
+        if (position == start) {
+            return -1;
+        }
+        mParsed = negative ? -value : value;
+        return position;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+
+    /** Check if the first line of the last read equals the given value. */
+    boolean contentEquals(String value) {
+        if (mLength < 0) {
+            return false;
+        }
+        final byte[] bytes = mBuffer.array();
+        final int length = value.length();
+        if (length > mLength) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return length == mLength || bytes[length] == '\n';
+    }
+
+    /** Write the value to the node, keeping the descriptor open for later writes. */
+    boolean write(String value) {
+        try {
+            if (mWriteChannel == null) {
+                mWriteChannel = new FileOutputStream(mPath).getChannel();
+            }
+            mWriteChannel.write(ByteBuffer.wrap(value.getBytes()), 0);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing to " + mPath + ". Exception: ", e);
+            closeChannels();
+            return false;
+        }
+    }
+
+    void close() {
+        closeChannels();
+        mLength = -1;
+    }
+
+    private void closeChannels() {
+        mReadChannel = close(mReadChannel);
+        mWriteChannel = close(mWriteChannel);
+    }
+
+    private static FileChannel close(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read all given nodes in one pass. Returns the number of nodes that were
+     * read; the contents of each are available from its getters.
+     */
+    static int readAll(SysfsNode... nodes) {
+        int count = 0;
+        for (SysfsNode node : nodes) {
+            if (node.read()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Write values to nodes in order, skipping null values and nodes that
+     * already hold their value. Returns false if any write failed.
+     */
+    static boolean writeAll(SysfsNode[] nodes, String[] values) {
+        boolean success = true;
+        for (int i = 0; i < nodes.length; i++) {
+            final String value = values[i];
+            if (value == null) {
+                continue;
+            }
+            final SysfsNode node = nodes[i];
+            if (node.read() && node.contentEquals(value)) {
+                continue;
+            }
+            success &= node.write(value);
+        }
+        return success;
+    }
+}
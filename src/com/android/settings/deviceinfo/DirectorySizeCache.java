@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * Remembers measured directory sizes together with a modification stamp of
+ * the directory, so a directory is only measured again once something in it
+ * changed.
+ *
+ * The stamp covers the directory itself and its direct subdirectories, which
+ * is where media files are usually added or removed (e.g. DCIM/Camera).
+ * Changes deeper down are not seen, so only media and download directories
+ * are cached; directories that apps write into, such as Android/data, must
+ * not be. Callers clear the cache when the media scanner finishes or the
+ * volume is remounted.
+ */
+class DirectorySizeCache {
+    private static final class Entry {
+        final long stamp;
+        final long size;
+
+        Entry(long stamp, long size) {
+            this.stamp = stamp;
+            this.size = size;
+        }
+    }
+
+    private static final DirectorySizeCache sInstance = new DirectorySizeCache();
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    static DirectorySizeCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Computes the current stamp of the given directory, or 0 if it does
+     * not exist.  Does file system access; keep it off the UI thread.
+     */
+    static long computeStamp(String path) {
+        final File dir = new File(path);
+        long stamp = dir.lastModified();
+        if (stamp == 0) {
+            return 0;
+        }
+        final File[] children = dir.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                if (children[i].isDirectory()) {
+                    stamp = Math.max(stamp, children[i].lastModified());
+                }
+            }
+            // Catch a subdirectory being replaced by an older one.
+            stamp = stamp * 31 + children.length;
+        }
+        return stamp;
+    }
+
+    /**
+     * Returns the cached size of the directory, or -1 if it is unknown or
+     * was measured for a different stamp.
+     */
+    synchronized long get(String path, long stamp) {
+        final Entry entry = mEntries.get(path);
+        if (entry != null && entry.stamp == stamp) {
+            return entry.size;
+        }
+        return -1;
+    }
+
+    synchronized void put(String path, long stamp, long size) {
+        if (stamp == 0) {
+            mEntries.remove(path);
+        } else {
+            mEntries.put(path, new Entry(stamp, size));
+        }
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+}
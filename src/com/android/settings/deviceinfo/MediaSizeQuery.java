@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.mtp.MtpConstants;
+import android.net.Uri;
+import android.os.storage.StorageVolume;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * Computes the sizes of the media categories of a volume from the media
+ * provider, with a single aggregate query over the files table instead of
+ * walking the directories.
+ *
+ * A category covers the same directories as the directory walk, so the
+ * results add up with the Downloads and misc sizes. Files the media scanner
+ * has not seen yet are not counted, which is why the provider is not used
+ * while it is scanning.
+ */
+class MediaSizeQuery {
+    private static final String TAG = "MediaSizeQuery";
+
+    // All external volumes share this database, told apart by storage id.
+    private static final String EXTERNAL_VOLUME = "external";
+
+    /**
+     * Returns the directories of every media category on the volume with
+     * the given root, indexed like {@link StorageVolumePreferenceCategory#sMediaCategories}.
+     */
+    static String[][] getCategoryDirs(String volumePath) {
+        final StorageVolumePreferenceCategory.MediaCategory[] categories =
+                StorageVolumePreferenceCategory.sMediaCategories;
+        final String[][] dirs = new String[categories.length][];
+        for (int i = 0; i < categories.length; i++) {
+            final String[] names = categories[i].mDirNames;
+            dirs[i] = new String[names.length];
+            for (int d = 0; d < names.length; d++) {
+                dirs[i][d] = volumePath + "/" + names[d];
+            }
+        }
+        return dirs;
+    }
+
+    /**
+     * Builds one column per category summing the sizes of the files below
+     * its directories.
+     */
+    static String[] buildProjection(String[][] categoryDirs) {
+        final String[] projection = new String[categoryDirs.length];
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < categoryDirs.length; i++) {
+            builder.setLength(0);
+            builder.append("sum(CASE WHEN ");
+            final String[] dirs = categoryDirs[i];
+            for (int d = 0; d < dirs.length; d++) {
+                if (d > 0) {
+                    builder.append(" OR ");
+                }
+                // Everything below dir: between "dir/" and "dir0", '0' being
+                // the character after '/'.  Unlike LIKE this can use the
+                // index on the path column.
+                builder.append('(').append(MediaStore.Files.FileColumns.DATA).append(">=");
+                DatabaseUtils.appendEscapedSQLString(builder, dirs[d] + "/");
+                builder.append(" AND ").append(MediaStore.Files.FileColumns.DATA).append('<');
+                DatabaseUtils.appendEscapedSQLString(builder, dirs[d] + "0");
+                builder.append(')');
+            }
+            if (dirs.length == 0) {
+                builder.append('0');
+            }
+            builder.append(" THEN ").append(MediaStore.Files.FileColumns.SIZE)
+                    .append(" ELSE 0 END)");
+            projection[i] = builder.toString();
+        }
+        return projection;
+    }
+
+    /**
+     * Selects the files, but not the directories, of the given storage.
+     */
+    static String buildSelection(int storageId) {
+        return MediaStore.Files.FileColumns.STORAGE_ID + "=" + storageId + " AND "
+                + MediaStore.Files.FileColumns.FORMAT + "!="
+                + MtpConstants.FORMAT_ASSOCIATION;
+    }
+
+    /**
+     * Reads the sizes from a cursor over {@link #buildProjection} columns.
+     */
+    static long[] readSizes(Cursor c, int categoryCount) {
+        final long[] sizes = new long[categoryCount];
+        if (c.moveToFirst()) {
+            for (int i = 0; i < categoryCount; i++) {
+                sizes[i] = c.getLong(i);
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Returns the size of each media category of the volume, or null when
+     * the media provider is unavailable or still scanning, in which case
+     * the directories have to be measured instead.
+     */
+    static long[] query(ContentResolver resolver, StorageVolume volume) {
+        if (isScanning(resolver)) {
+            return null;
+        }
+        final String[][] categoryDirs = getCategoryDirs(volume.getPath());
+        final Uri uri = MediaStore.Files.getContentUri(EXTERNAL_VOLUME);
+        Cursor c = null;
+        try {
+            c = resolver.query(uri, buildProjection(categoryDirs),
+                    buildSelection(volume.getStorageId()), null, null);
+            if (c == null) {
+                return null;
+            }
+            return readSizes(c, categoryDirs.length);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not query media sizes for " + volume.getPath(), e);
+            return null;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    private static boolean isScanning(ContentResolver resolver) {
+        Cursor c = null;
+        try {
+            c = resolver.query(MediaStore.getMediaScannerUri(),
+                    new String[] { MediaStore.MEDIA_SCANNER_VOLUME }, null, null, null);
+            // The provider returns a row only while a volume is being scanned.
+            return c != null && c.moveToFirst();
+        } catch (RuntimeException e) {
+            return false;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+}
@@ -31,6 +31,7 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.os.StatFs;
 import android.os.storage.StorageVolume;
 import android.util.Log;
@@ -44,6 +45,9 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Measure the memory for various systems.
@@ -60,6 +64,13 @@ import java.util.concurrent.ConcurrentHashMap;
  * Then the calling application would just specify the type and an argument.
  * This class would keep track of it while the calling application would
  * decide on how to use it.
+ *
+ * Media sizes come from the media provider when it can answer them (see
+ * {@link MediaSizeQuery}). Directories are measured concurrently. Media
+ * directory sizes are remembered in {@link DirectorySizeCache}, so measuring
+ * again only walks those that changed; misc directories such as Android/data
+ * change deep down and are always walked. Sizes are reported to the receiver as each
+ * category completes.
  */
 public class StorageMeasurement {
     private static final String TAG = "StorageMeasurement";
@@ -84,6 +95,11 @@ public class StorageMeasurement {
     private static final ComponentName DEFAULT_CONTAINER_COMPONENT = new ComponentName(
             DEFAULT_CONTAINER_PACKAGE, "com.android.defcontainer.DefaultContainerService");
 
+    // Number of directories measured at the same time.
+    private static final int MEASURE_THREADS = 3;
+
+    private static ExecutorService sMeasureExecutor;
+
     private final MeasurementHandler mHandler;
 
     private static Map<StorageVolume, StorageMeasurement> sInstances =
@@ -107,6 +123,11 @@ public class StorageMeasurement {
 
     public interface MeasurementReceiver {
         public void updateApproximate(Bundle bundle);
+        /**
+         * Sizes measured so far. Only the sizes that are known are present,
+         * media categories that are still being measured are set to -1.
+         */
+        public void updatePartial(Bundle bundle);
         public void updateExact(Bundle bundle);
     }
 
@@ -168,6 +189,15 @@ public class StorageMeasurement {
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_INVALIDATE);
     }
 
+    /**
+     * Like {@link #invalidate()}, but also forgets the remembered directory
+     * sizes, for changes the directory stamps may not show.
+     */
+    public void invalidateDirectorySizes() {
+        DirectorySizeCache.getInstance().clear();
+        invalidate();
+    }
+
     private void sendInternalApproximateUpdate() {
         MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
         if (receiver == null) {
@@ -196,7 +226,7 @@ public class StorageMeasurement {
         bundle.putLong(APPS_USED, mAppsSize);
         bundle.putLong(DOWNLOADS_SIZE, mDownloadsSize);
         bundle.putLong(MISC_SIZE, mMiscSize);
-        bundle.putLongArray(MEDIA_SIZES, mMediaSizes);
+        bundle.putLongArray(MEDIA_SIZES, mMediaSizes.clone());
 
         receiver.updateExact(bundle);
     }
@@ -212,6 +242,10 @@ public class StorageMeasurement {
 
         public static final int MSG_INVALIDATE = 5;
 
+        public static final int MSG_DIRECTORY_MEASURED = 6;
+
+        public static final int MSG_APPS_MEASURED = 7;
+
         private Object mLock = new Object();
 
         private IMediaContainerService mDefaultContainer;
@@ -224,6 +258,18 @@ public class StorageMeasurement {
 
         private final WeakReference<Context> mContext;
 
+        // Bumped for every exact measurement, and when it is abandoned, so
+        // results of an older one are dropped.  Read by measuring threads.
+        private volatile int mGeneration;
+
+        // State of the current exact measurement, only touched on this thread.
+        private int mPendingDirectories;
+        private int[] mMediaPending;
+        private boolean mDownloadsPending;
+        private int mMiscPending;
+        private boolean mAppsPending;
+        private ArrayList<FileInfo> mMiscInfo;
+
         final private ServiceConnection mDefContainerConn = new ServiceConnection() {
             public void onServiceConnected(ComponentName name, IBinder service) {
                 final IMediaContainerService imcs = IMediaContainerService.Stub
@@ -278,6 +324,9 @@ public class StorageMeasurement {
                     break;
                 }
                 case MSG_DISCONNECT: {
+                    // Directories still being measured would fail once the
+                    // service is unbound; drop that measurement.
+                    mGeneration++;
                     synchronized (mLock) {
                         if (mBound) {
                             final Context context = (mContext != null) ? mContext.get() : null;
@@ -292,6 +341,9 @@ public class StorageMeasurement {
                     break;
                 }
                 case MSG_COMPLETED: {
+                    if (msg.arg1 != mGeneration) {
+                        break;
+                    }
                     mMeasured = true;
                     sendExactUpdate();
                     break;
@@ -300,6 +352,19 @@ public class StorageMeasurement {
                     mMeasured = false;
                     break;
                 }
+                case MSG_DIRECTORY_MEASURED: {
+                    onDirectoryMeasured((DirectoryTask) msg.obj);
+                    break;
+                }
+                case MSG_APPS_MEASURED: {
+                    if (msg.arg1 != mGeneration || !mAppsPending) {
+                        break;
+                    }
+                    mAppsPending = false;
+                    sendPartialUpdate();
+                    checkCompleted();
+                    break;
+                }
             }
         }
 
@@ -317,9 +382,14 @@ public class StorageMeasurement {
         }
 
         private class StatsObserver extends IPackageStatsObserver.Stub {
+            private final int mGenerationForThisStatsObserver;
             private long mAppsSizeForThisStatsObserver = 0;
             private final List<String> mAppsList = new ArrayList<String>();
 
+            StatsObserver(int generation) {
+                mGenerationForThisStatsObserver = generation;
+            }
+
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 if (!mStatsObserver.equals(this)) {
                     // this callback's class object is no longer in use. ignore this callback.
@@ -347,7 +417,7 @@ public class StorageMeasurement {
                 }
 
                 mAppsSize = mAppsSizeForThisStatsObserver;
-                onInternalMeasurementComplete();
+                onAppsMeasured(mGenerationForThisStatsObserver);
             }
 
             public void queuePackageMeasurementLocked(String packageName) {
@@ -363,8 +433,95 @@ public class StorageMeasurement {
             }
         }
 
-        private void onInternalMeasurementComplete() {
-            sendEmptyMessage(MSG_COMPLETED);
+        private void onAppsMeasured(int generation) {
+            sendMessage(obtainMessage(MSG_APPS_MEASURED, generation, 0));
+        }
+
+        private void onDirectoryMeasured(DirectoryTask task) {
+            if (task.mGeneration != mGeneration) {
+                return;
+            }
+            boolean categoryDone = false;
+            switch (task.mKind) {
+                case DirectoryTask.KIND_MEDIA: {
+                    final int category = (int) task.mIndex;
+                    mMediaSizes[category] += task.mSize;
+                    categoryDone = --mMediaPending[category] == 0;
+                    break;
+                }
+                case DirectoryTask.KIND_DOWNLOADS: {
+                    mDownloadsSize = task.mSize;
+                    mDownloadsPending = false;
+                    categoryDone = true;
+                    break;
+                }
+                case DirectoryTask.KIND_MISC: {
+                    mMiscSize += task.mSize;
+                    mMiscInfo.add(new FileInfo(task.mPath, task.mSize, task.mIndex));
+                    if (--mMiscPending == 0) {
+                        publishMiscInfo();
+                        categoryDone = true;
+                    }
+                    break;
+                }
+            }
+            mPendingDirectories--;
+            if (categoryDone) {
+                sendPartialUpdate();
+            }
+            checkCompleted();
+        }
+
+        private void checkCompleted() {
+            if (mPendingDirectories == 0 && !mAppsPending) {
+                sendMessage(obtainMessage(MSG_COMPLETED, mGeneration, 0));
+            }
+        }
+
+        private void sendPartialUpdate() {
+            MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
+            if (receiver == null) {
+                return;
+            }
+
+            Bundle bundle = new Bundle();
+            bundle.putLong(TOTAL_SIZE, mTotalSize);
+            bundle.putLong(AVAIL_SIZE, mAvailSize);
+            if (!mAppsPending) {
+                bundle.putLong(APPS_USED, mAppsSize);
+            }
+            if (!mDownloadsPending) {
+                bundle.putLong(DOWNLOADS_SIZE, mDownloadsSize);
+            }
+            if (mMiscPending == 0) {
+                bundle.putLong(MISC_SIZE, mMiscSize);
+            }
+            final long[] mediaSizes = mMediaSizes.clone();
+            for (int i = 0; i < mediaSizes.length; i++) {
+                if (mMediaPending[i] > 0) {
+                    mediaSizes[i] = -1;
+                }
+            }
+            bundle.putLongArray(MEDIA_SIZES, mediaSizes);
+
+            receiver.updatePartial(bundle);
+        }
+
+        private void measureDirectoryAsync(final IMediaContainerService imcs,
+                final DirectoryTask task) {
+            getMeasureExecutor().execute(new Runnable() {
+                public void run() {
+                    if (task.mGeneration != mGeneration) {
+                        return;
+                    }
+                    // Apps write deep inside the misc directories (e.g.
+                    // Android/data/<pkg>/cache), where the cache's stamp
+                    // cannot see it, so those are always measured.
+                    task.mSize = measureDirectory(imcs, task.mPath,
+                            task.mKind != DirectoryTask.KIND_MISC);
+                    sendMessage(obtainMessage(MSG_DIRECTORY_MEASURED, task));
+                }
+            });
         }
 
         private void measureApproximateStorage() {
@@ -386,71 +543,63 @@ public class StorageMeasurement {
                 return;
             }
 
+            final int generation = ++mGeneration;
+            final ArrayList<DirectoryTask> tasks = new ArrayList<DirectoryTask>();
+
             // Media
+            // Ask the media provider first, and only walk the directories
+            // when it cannot answer.
+            final long[] mediaSizes = mIsInternal ? null
+                    : MediaSizeQuery.query(context.getContentResolver(), mStorageVolume);
+            final String[][] mediaDirs = mIsInternal ? null
+                    : MediaSizeQuery.getCategoryDirs(mStorageVolume.getPath());
+            mMediaPending = new int[StorageVolumePreferenceCategory.sMediaCategories.length];
             for (int i = 0; i < StorageVolumePreferenceCategory.sMediaCategories.length; i++) {
-                if (mIsPrimary) {
-                    String[] dirs = StorageVolumePreferenceCategory.sMediaCategories[i].mDirPaths;
+                mMediaSizes[i] = 0;
+                if (mediaSizes != null) {
+                    mMediaSizes[i] = mediaSizes[i];
+                } else if (mediaDirs != null) {
+                    String[] dirs = mediaDirs[i];
                     final int length = dirs.length;
-                    mMediaSizes[i] = 0;
                     for (int d = 0; d < length; d++) {
-                        final String path = dirs[d];
-                        mMediaSizes[i] += getDirectorySize(imcs, path);
+                        tasks.add(new DirectoryTask(generation, DirectoryTask.KIND_MEDIA, i,
+                                dirs[d]));
+                        mMediaPending[i]++;
                     }
-                } else {
-                    // TODO Compute sizes using the MediaStore
-                    mMediaSizes[i] = 0;
                 }
             }
 
-            /* Compute sizes using the media provider
-            // Media sizes are measured by the MediaStore. Query database.
-            ContentResolver contentResolver = context.getContentResolver();
-            // TODO "external" as a static String from MediaStore?
-            Uri audioUri = MediaStore.Files.getContentUri("external");
-            final String[] projection =
-                new String[] { "sum(" + MediaStore.Files.FileColumns.SIZE + ")" };
-            final String selection =
-                MediaStore.Files.FileColumns.STORAGE_ID + "=" +
-                Integer.toString(mStorageVolume.getStorageId()) + " AND " +
-                MediaStore.Files.FileColumns.MEDIA_TYPE + "=?";
-
-            for (int i = 0; i < StorageVolumePreferenceCategory.sMediaCategories.length; i++) {
-                mMediaSizes[i] = 0;
-                int mediaType = StorageVolumePreferenceCategory.sMediaCategories[i].mediaType;
-                Cursor c = null;
-                try {
-                    c = contentResolver.query(audioUri, projection, selection,
-                            new String[] { Integer.toString(mediaType) } , null);
-
-                    if (c != null && c.moveToNext()) {
-                        long size = c.getLong(0);
-                        mMediaSizes[i] = size;
-                    }
-                } finally {
-                    if (c != null) c.close();
-                }
-            }
-             */
-
             // Downloads (primary volume only)
+            mDownloadsSize = 0;
+            mDownloadsPending = mIsPrimary;
             if (mIsPrimary) {
                 final String downloadsPath = Environment.getExternalStoragePublicDirectory(
                         Environment.DIRECTORY_DOWNLOADS).getAbsolutePath();
-                mDownloadsSize = getDirectorySize(imcs, downloadsPath);
-            } else {
-                mDownloadsSize = 0;
+                tasks.add(new DirectoryTask(generation, DirectoryTask.KIND_DOWNLOADS, 0,
+                        downloadsPath));
             }
 
             // Misc
             mMiscSize = 0;
+            mMiscPending = 0;
             if (mIsPrimary) {
-                measureSizesOfMisc(imcs);
+                queueMiscMeasurements(tasks, generation);
+            }
+
+            mPendingDirectories = tasks.size();
+            mAppsPending = true;
+            for (int i = 0; i < tasks.size(); i++) {
+                measureDirectoryAsync(imcs, tasks.get(i));
+            }
+            if (mediaSizes != null) {
+                sendPartialUpdate();
             }
 
             // Apps
             // We have to get installd to measure the package sizes.
             PackageManager pm = context.getPackageManager();
             if (pm == null) {
+                onAppsMeasured(generation);
                 return;
             }
             final List<ApplicationInfo> apps;
@@ -464,7 +613,7 @@ public class StorageMeasurement {
 
             if (apps != null && apps.size() > 0) {
                 // initiate measurement of all package sizes. need new StatsObserver object.
-                mStatsObserver = new StatsObserver();
+                mStatsObserver = new StatsObserver(generation);
                 synchronized (mStatsObserver.mAppsList) {
                     for (int i = 0; i < apps.size(); i++) {
                         final ApplicationInfo info = apps.get(i);
@@ -476,14 +625,113 @@ public class StorageMeasurement {
                 // Sending of the message back to the MeasurementReceiver is
                 // completed in the PackageObserver
             } else {
-                onInternalMeasurementComplete();
+                onAppsMeasured(generation);
             }
         }
+
+        private void queueMiscMeasurements(List<DirectoryTask> tasks, int generation) {
+            mMiscInfo = new ArrayList<FileInfo>();
+            File top = new File(mStorageVolume.getPath());
+            File[] files = top.listFiles();
+            if (files == null) {
+                publishMiscInfo();
+                return;
+            }
+            final int len = files.length;
+            // Get sizes of all top level nodes except the ones already computed...
+            long counter = 0;
+            for (int i = 0; i < len; i++) {
+                String path = files[i].getAbsolutePath();
+                if (StorageVolumePreferenceCategory.sPathsExcludedForMisc.contains(path)) {
+                    continue;
+                }
+                if (files[i].isFile()) {
+                    final long fileSize = files[i].length();
+                    mMiscInfo.add(new FileInfo(path, fileSize, counter++));
+                    mMiscSize += fileSize;
+                } else if (files[i].isDirectory()) {
+                    tasks.add(new DirectoryTask(generation, DirectoryTask.KIND_MISC, counter++,
+                            path));
+                    mMiscPending++;
+                } else {
+                    // Non directory, non file: not listed
+                }
+            }
+            if (mMiscPending == 0) {
+                publishMiscInfo();
+            }
+        }
+
+        private void publishMiscInfo() {
+            // sort the list of FileInfo objects collected above in descending order of their sizes
+            Collections.sort(mMiscInfo);
+            mFileInfoForMisc = mMiscInfo;
+        }
+    }
+
+    /**
+     * A directory measured on the measurement pool for the given exact
+     * measurement.  The size is filled in by the measuring thread.
+     */
+    private static class DirectoryTask {
+        static final int KIND_MEDIA = 0;
+        static final int KIND_DOWNLOADS = 1;
+        static final int KIND_MISC = 2;
+
+        final int mGeneration;
+        final int mKind;
+        // Media category, or id of the misc entry.
+        final long mIndex;
+        final String mPath;
+        volatile long mSize;
+
+        DirectoryTask(int generation, int kind, long index, String path) {
+            mGeneration = generation;
+            mKind = kind;
+            mIndex = index;
+            mPath = path;
+        }
+    }
+
+    private static synchronized ExecutorService getMeasureExecutor() {
+        if (sMeasureExecutor == null) {
+            sMeasureExecutor = Executors.newFixedThreadPool(MEASURE_THREADS,
+                    new ThreadFactory() {
+                        public Thread newThread(final Runnable r) {
+                            final Thread thread = new Thread(new Runnable() {
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "StorageMeasurement");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sMeasureExecutor;
     }
 
-    private long getDirectorySize(IMediaContainerService imcs, String dir) {
+    /**
+     * Returns the size of the directory.  If useCache is set, it comes from
+     * {@link DirectorySizeCache} when the directory did not change since it
+     * was last measured.
+     */
+    private long measureDirectory(IMediaContainerService imcs, String dir, boolean useCache) {
+        final DirectorySizeCache cache = DirectorySizeCache.getInstance();
+        // Taken before measuring, so changes made meanwhile are seen next time.
+        final long stamp = useCache ? DirectorySizeCache.computeStamp(dir) : 0;
+        final long cached = useCache ? cache.get(dir, stamp) : -1;
+        if (cached >= 0) {
+            return cached;
+        }
         try {
-            return imcs.calculateDirectorySize(dir);
+            final long size = imcs.calculateDirectorySize(dir);
+            if (useCache) {
+                cache.put(dir, stamp, size);
+            }
+            return size;
         } catch (Exception e) {
             Log.w(TAG, "Could not read memory from default container service for " + dir, e);
             return 0;
@@ -494,35 +742,6 @@ public class StorageMeasurement {
         return mMiscSize;
     }
 
-    private void measureSizesOfMisc(IMediaContainerService imcs) {
-        File top = new File(mStorageVolume.getPath());
-        mFileInfoForMisc = new ArrayList<FileInfo>();
-        File[] files = top.listFiles();
-        if (files == null) return;
-        final int len = files.length;
-        // Get sizes of all top level nodes except the ones already computed...
-        long counter = 0;
-        for (int i = 0; i < len; i++) {
-            String path = files[i].getAbsolutePath();
-            if (StorageVolumePreferenceCategory.sPathsExcludedForMisc.contains(path)) {
-                continue;
-            }
-            if (files[i].isFile()) {
-                final long fileSize = files[i].length();
-                mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
-                mMiscSize += fileSize;
-            } else if (files[i].isDirectory()) {
-                final long dirSize = getDirectorySize(imcs, path);
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                mMiscSize += dirSize;
-            } else {
-                // Non directory, non file: not listed
-            }
-        }
-        // sort the list of FileInfo objects collected above in descending order of their sizes
-        Collections.sort(mFileInfoForMisc);
-    }
-
     static class FileInfo implements Comparable<FileInfo> {
         final String mFileName;
         final long mSize;
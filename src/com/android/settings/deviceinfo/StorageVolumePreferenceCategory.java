@@ -89,11 +89,14 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
 
     static class MediaCategory {
         final String[] mDirPaths;
+        // Directory names relative to the root of a volume
+        final String[] mDirNames;
         final int mCategory;
         //final int mMediaType;
 
         public MediaCategory(int category, String... directories) {
             mCategory = category;
+            mDirNames = directories;
             final int length = directories.length;
             mDirPaths = new String[length];
             for (int i = 0; i < length; i++) {
@@ -129,6 +132,9 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
     // Updates the memory usage bar graph.
     private static final int MSG_UI_UPDATE_EXACT = 2;
 
+    // Updates the sizes measured so far, leaving the bar graph alone.
+    private static final int MSG_UI_UPDATE_PARTIAL = 3;
+
     private Handler mUpdateHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -152,6 +158,10 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
                             mediaSizes);
                     break;
                 }
+                case MSG_UI_UPDATE_PARTIAL: {
+                    updatePartial(msg.getData());
+                    break;
+                }
             }
         }
     };
@@ -308,9 +318,16 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
         mPreferences[TOTAL_SIZE].setSummary(formatSize(totalSize));
 
         if (mMeasurement.isExternalSDCard()) {
-            // TODO FIXME: external SD card will not report any size. Show used space in bar graph
-            final long usedSize = totalSize - availSize;
-            mUsageBarPreference.addEntry(usedSize / (float) totalSize, android.graphics.Color.GRAY);
+            // TODO FIXME: external SD card only reports media sizes. Show the rest of the
+            // used space in bar graph
+            long usedSize = totalSize - availSize;
+            for (int i = 0; i < sMediaCategories.length; i++) {
+                usedSize -= mediaSizes[i];
+            }
+            if (usedSize > 0) {
+                mUsageBarPreference.addEntry(usedSize / (float) totalSize,
+                        android.graphics.Color.GRAY);
+            }
         }
 
         updatePreference(appsSize, totalSize, APPLICATIONS);
@@ -334,6 +351,29 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
         mUsageBarPreference.commit();
     }
 
+    private void updatePartial(Bundle bundle) {
+        if (bundle.containsKey(StorageMeasurement.APPS_USED)) {
+            updateSummary(bundle.getLong(StorageMeasurement.APPS_USED), APPLICATIONS);
+        }
+        final long[] mediaSizes = bundle.getLongArray(StorageMeasurement.MEDIA_SIZES);
+        for (int i = 0; i < sMediaCategories.length; i++) {
+            if (mediaSizes[i] >= 0) {
+                updateSummary(mediaSizes[i], sMediaCategories[i].mCategory);
+            }
+        }
+        if (bundle.containsKey(StorageMeasurement.DOWNLOADS_SIZE)) {
+            updateSummary(bundle.getLong(StorageMeasurement.DOWNLOADS_SIZE), DOWNLOADS);
+        }
+        if (bundle.containsKey(StorageMeasurement.MISC_SIZE)) {
+            updateSummary(bundle.getLong(StorageMeasurement.MISC_SIZE), MISC);
+        }
+    }
+
+    private void updateSummary(long size, int category) {
+        // Empty categories are removed once the exact update arrives.
+        mPreferences[category].setSummary(formatSize(size));
+    }
+
     private void updatePreference(long size, long totalSize, int category) {
         if (size > 0) {
             mPreferences[category].setSummary(formatSize(size));
@@ -354,10 +394,12 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
     }
 
     public void onStorageStateChanged() {
+        mMeasurement.invalidateDirectorySizes();
         measure();
     }
 
     public void onMediaScannerFinished() {
+        mMeasurement.invalidateDirectorySizes();
         measure();
     }
 
@@ -384,6 +426,13 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
         mUpdateHandler.sendMessage(message);
     }
 
+    @Override
+    public void updatePartial(Bundle bundle) {
+        final Message message = mUpdateHandler.obtainMessage(MSG_UI_UPDATE_PARTIAL);
+        message.setData(bundle);
+        mUpdateHandler.sendMessage(message);
+    }
+
     @Override
     public void updateExact(Bundle bundle) {
         final Message message = mUpdateHandler.obtainMessage(MSG_UI_UPDATE_EXACT);
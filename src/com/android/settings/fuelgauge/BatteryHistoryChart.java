@@ -171,9 +171,34 @@ public class BatteryHistoryChart extends View {
     long mHistEnd;
     int mBatLow;
     int mBatHigh;
+    int mAggrStates;
     boolean mHaveWifi;
     boolean mHaveGps;
     boolean mHavePhoneSignal;
+
+    // Compact copy of the history records, so a larger history only has the
+    // new records appended and the paths never need to walk the stats again.
+    final HistoryItem mHistoryItem = new HistoryItem();
+    int mNumRecords;
+    long[] mRecTimes = new long[0];
+    byte[] mRecCmds = new byte[0];
+    byte[] mRecLevels = new byte[0];
+    int[] mRecStates = new int[0];
+
+    // The records reduced to one entry per pixel column: the first, lowest,
+    // highest and last level, the states seen in the column and the states
+    // at its end.  A new entry is also started after a break in the history.
+    int mNumPix;
+    int mPixWidth = -1;
+    int mPixNumHist = -1;
+    int[] mPixX = new int[0];
+    byte[] mPixFirst = new byte[0];
+    byte[] mPixMin = new byte[0];
+    byte[] mPixMax = new byte[0];
+    byte[] mPixLast = new byte[0];
+    int[] mPixStates = new int[0];
+    int[] mPixEndStates = new int[0];
+    boolean[] mPixBreak = new boolean[0];
     
     public BatteryHistoryChart(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -350,39 +375,95 @@ public class BatteryHistoryChart extends View {
         mWakeLockLabel = getContext().getString(R.string.battery_stats_wake_lock_label);
         mPhoneSignalLabel = getContext().getString(R.string.battery_stats_phone_signal_label);
         
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
         mBatLow = 0;
         mBatHigh = 100;
-        int aggrStates = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (rec.cmd == HistoryItem.CMD_UPDATE) {
-                    if (first) {
-                        first = false;
-                        mHistStart = rec.time;
-                    }
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistEnd = rec.time;
-                    aggrStates |= rec.states;
-                }
-            }
-        }
-        mNumHist = lastInteresting;
-        mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-        mHaveWifi = (aggrStates&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
+        final int oldNumHist = mNumHist;
+        if (!readHistory(stats)) {
+            // Not a continuation of the history we have, e.g. the stats were
+            // reset when the device was unplugged.
+            resetHistory();
+            readHistory(stats);
+        }
+        mHaveGps = (mAggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+        mHaveWifi = (mAggrStates&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
         if (!com.android.settings.Utils.isWifiOnly(getContext())) {
             mHavePhoneSignal = true;
         }
         if (mHistEnd <= mHistStart) mHistEnd = mHistStart+1;
         mTotalDurationString = Utils.formatElapsedTime(getContext(), mHistEnd - mHistStart);
+
+        if (mNumHist != oldNumHist || mPixNumHist != mNumHist) {
+            // Rebinding the same stats leaves the chart alone; new history
+            // only needs the paths of the current size rebuilt.
+            if (getWidth() > 0 && getHeight() > 0) {
+                layoutChart(getWidth(), getHeight());
+            }
+            requestLayout();
+            invalidate();
+        }
+    }
+
+    void resetHistory() {
+        mNumRecords = 0;
+        mNumHist = 0;
+        mHistStart = mHistEnd = 0;
+        mAggrStates = 0;
+        mPixNumHist = -1;
+    }
+
+    /**
+     * Copies the records of the stats' history we do not have yet.  Returns
+     * false if the history does not continue the records we have.
+     */
+    boolean readHistory(BatteryStats stats) {
+        if (!stats.startIteratingHistoryLocked()) {
+            return mNumRecords == 0;
+        }
+        final HistoryItem rec = mHistoryItem;
+        int pos = 0;
+        while (stats.getNextHistoryLocked(rec)) {
+            if (pos < mNumRecords) {
+                if (mRecTimes[pos] != rec.time || mRecCmds[pos] != rec.cmd) {
+                    return false;
+                }
+            } else {
+                addRecord(rec);
+            }
+            pos++;
+        }
+        return pos >= mNumRecords;
+    }
+
+    void addRecord(HistoryItem rec) {
+        if (mNumRecords == mRecTimes.length) {
+            final int size = Math.max(256, mNumRecords * 2);
+            long[] times = new long[size];
+            System.arraycopy(mRecTimes, 0, times, 0, mNumRecords);
+            mRecTimes = times;
+            byte[] cmds = new byte[size];
+            System.arraycopy(mRecCmds, 0, cmds, 0, mNumRecords);
+            mRecCmds = cmds;
+            byte[] levels = new byte[size];
+            System.arraycopy(mRecLevels, 0, levels, 0, mNumRecords);
+            mRecLevels = levels;
+            int[] states = new int[size];
+            System.arraycopy(mRecStates, 0, states, 0, mNumRecords);
+            mRecStates = states;
+        }
+        final int pos = mNumRecords++;
+        mRecTimes[pos] = rec.time;
+        mRecCmds[pos] = rec.cmd;
+        mRecLevels[pos] = rec.batteryLevel;
+        mRecStates[pos] = rec.states;
+        if (rec.cmd == HistoryItem.CMD_UPDATE) {
+            if (mNumHist == 0) {
+                mHistStart = rec.time;
+            }
+            // Records after the last update are not plotted.
+            mNumHist = mNumRecords;
+            mHistEnd = rec.time;
+            mAggrStates |= rec.states;
+        }
     }
 
     @Override
@@ -432,7 +513,10 @@ public class BatteryHistoryChart extends View {
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
-        
+        layoutChart(w, h);
+    }
+
+    void layoutChart(int w, int h) {
         int textHeight = mTextDescent - mTextAscent;
         mThinLineWidth = (int)TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
                 2, getResources().getDisplayMetrics());
@@ -494,6 +578,124 @@ public class BatteryHistoryChart extends View {
             }
         }
 
+        buildPaths(w, h);
+    }
+
+    /**
+     * Reduces the records to one entry per pixel column of a chart of the
+     * given width, unless that was already done for the current history.
+     */
+    void decimate(int w) {
+        if (mPixWidth == w && mPixNumHist == mNumHist) {
+            return;
+        }
+        mPixWidth = w;
+        mPixNumHist = mNumHist;
+
+        final long timeStart = mHistStart;
+        final long timeChange = mHistEnd-mHistStart;
+        final int N = mNumHist;
+        int n = 0;
+        int lastX = -1;
+        boolean sealed = true;
+        for (int i=0; i<N; i++) {
+            final byte cmd = mRecCmds[i];
+            if (cmd == HistoryItem.CMD_UPDATE) {
+                final int x = (int)(((mRecTimes[i]-timeStart)*w)/timeChange);
+                final byte level = mRecLevels[i];
+                final int states = mRecStates[i];
+                if (sealed || x != lastX) {
+                    if (n == mPixX.length) {
+                        growPix(Math.min(N, Math.max(n*2, w+16)));
+                    }
+                    mPixX[n] = x;
+                    mPixFirst[n] = mPixMin[n] = mPixMax[n] = mPixLast[n] = level;
+                    mPixStates[n] = mPixEndStates[n] = states;
+                    mPixBreak[n] = false;
+                    n++;
+                    lastX = x;
+                    sealed = false;
+                } else {
+                    final int p = n-1;
+                    if (level < mPixMin[p]) mPixMin[p] = level;
+                    if (level > mPixMax[p]) mPixMax[p] = level;
+                    mPixLast[p] = level;
+                    mPixStates[p] |= states;
+                    mPixEndStates[p] = states;
+                }
+            } else if (cmd != HistoryItem.CMD_OVERFLOW) {
+                if (!sealed) {
+                    mPixBreak[n-1] = true;
+                    sealed = true;
+                }
+            }
+        }
+        mNumPix = n;
+    }
+
+    private void growPix(int size) {
+        final int n = mPixX.length;
+        int[] x = new int[size];
+        System.arraycopy(mPixX, 0, x, 0, n);
+        mPixX = x;
+        byte[] first = new byte[size];
+        System.arraycopy(mPixFirst, 0, first, 0, n);
+        mPixFirst = first;
+        byte[] min = new byte[size];
+        System.arraycopy(mPixMin, 0, min, 0, n);
+        mPixMin = min;
+        byte[] max = new byte[size];
+        System.arraycopy(mPixMax, 0, max, 0, n);
+        mPixMax = max;
+        byte[] last = new byte[size];
+        System.arraycopy(mPixLast, 0, last, 0, n);
+        mPixLast = last;
+        int[] states = new int[size];
+        System.arraycopy(mPixStates, 0, states, 0, n);
+        mPixStates = states;
+        int[] endStates = new int[size];
+        System.arraycopy(mPixEndStates, 0, endStates, 0, n);
+        mPixEndStates = endStates;
+        boolean[] breaks = new boolean[size];
+        System.arraycopy(mPixBreak, 0, breaks, 0, n);
+        mPixBreak = breaks;
+    }
+
+    /**
+     * Extends the bar of one state flag over pixel column x.  A flag that
+     * went off within the column still gets that column drawn.  Returns
+     * whether the flag is on at the end of the column.
+     */
+    private static boolean traceState(Path path, int x, int y, boolean lastOn,
+            int states, int endStates, int flag) {
+        final boolean on = (states&flag) != 0;
+        final boolean endOn = (endStates&flag) != 0;
+        if (on != lastOn) {
+            if (on) {
+                path.moveTo(x, y);
+            } else {
+                path.lineTo(x, y);
+            }
+        }
+        if (on && !endOn) {
+            path.lineTo(x+1, y);
+        }
+        return endOn;
+    }
+
+    private static int phoneSignalBin(int states) {
+        if (((states&HistoryItem.STATE_PHONE_STATE_MASK)
+                >> HistoryItem.STATE_PHONE_STATE_SHIFT)
+                == ServiceState.STATE_POWER_OFF) {
+            return 0;
+        } else if ((states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+            return 1;
+        }
+        return ((states&HistoryItem.STATE_SIGNAL_STRENGTH_MASK)
+                >> HistoryItem.STATE_SIGNAL_STRENGTH_SHIFT) + 2;
+    }
+
+    void buildPaths(int w, int h) {
         mBatLevelPath.reset();
         mBatGoodPath.reset();
         mBatWarnPath.reset();
@@ -503,10 +705,9 @@ public class BatteryHistoryChart extends View {
         mWifiRunningPath.reset();
         mWakeLockPath.reset();
         mChargingPath.reset();
-        
-        final long timeStart = mHistStart;
-        final long timeChange = mHistEnd-mHistStart;
-        
+
+        decimate(w);
+
         final int batLow = mBatLow;
         final int batChange = mBatHigh-mBatLow;
         
@@ -514,135 +715,83 @@ public class BatteryHistoryChart extends View {
         mLevelBottom = mLevelTop + levelh;
         
         int x = 0, y = 0, startX = 0, lastX = -1, lastY = -1;
-        int i = 0;
         Path curLevelPath = null;
         Path lastLinePath = null;
         boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
         boolean lastWifiRunning = false, lastWakeLock = false;
-        final int N = mNumHist;
-        if (mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.cmd == BatteryStats.HistoryItem.CMD_UPDATE) {
-                    x = (int)(((rec.time-timeStart)*w)/timeChange);
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
-
-                    if (lastX != x) {
-                        // We have moved by at least a pixel.
-                        if (lastY != y) {
-                            // Don't plot changes within a pixel.
-                            Path path;
-                            byte value = rec.batteryLevel;
-                            if (value <= BATTERY_CRITICAL) path = mBatCriticalPath;
-                            else if (value <= BATTERY_WARN) path = mBatWarnPath;
-                            else path = mBatGoodPath;
-
-                            if (path != lastLinePath) {
-                                if (lastLinePath != null) {
-                                    lastLinePath.lineTo(x, y);
-                                }
-                                path.moveTo(x, y);
-                                lastLinePath = path;
-                            } else {
-                                path.lineTo(x, y);
-                            }
-
-                            if (curLevelPath == null) {
-                                curLevelPath = mBatLevelPath;
-                                curLevelPath.moveTo(x, y);
-                                startX = x;
-                            } else {
-                                curLevelPath.lineTo(x, y);
-                            }
-                            lastX = x;
-                            lastY = y;
-                        }
-
-                        final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
-                        if (charging != lastCharging) {
-                            if (charging) {
-                                mChargingPath.moveTo(x, h-mChargingOffset);
-                            } else {
-                                mChargingPath.lineTo(x, h-mChargingOffset);
-                            }
-                            lastCharging = charging;
-                        }
-
-                        final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
-                        if (screenOn != lastScreenOn) {
-                            if (screenOn) {
-                                mScreenOnPath.moveTo(x, h-mScreenOnOffset);
-                            } else {
-                                mScreenOnPath.lineTo(x, h-mScreenOnOffset);
-                            }
-                            lastScreenOn = screenOn;
-                        }
-
-                        final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-                        if (gpsOn != lastGpsOn) {
-                            if (gpsOn) {
-                                mGpsOnPath.moveTo(x, h-mGpsOnOffset);
-                            } else {
-                                mGpsOnPath.lineTo(x, h-mGpsOnOffset);
-                            }
-                            lastGpsOn = gpsOn;
-                        }
-
-                        final boolean wifiRunning =
-                            (rec.states&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
-                        if (wifiRunning != lastWifiRunning) {
-                            if (wifiRunning) {
-                                mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
-                            } else {
-                                mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
-                            }
-                            lastWifiRunning = wifiRunning;
-                        }
-
-                        final boolean wakeLock =
-                            (rec.states&HistoryItem.STATE_WAKE_LOCK_FLAG) != 0;
-                        if (wakeLock != lastWakeLock) {
-                            if (wakeLock) {
-                                mWakeLockPath.moveTo(x, h-mWakeLockOffset);
-                            } else {
-                                mWakeLockPath.lineTo(x, h-mWakeLockOffset);
-                            }
-                            lastWakeLock = wakeLock;
-                        }
-
-                        if (mLargeMode && mHavePhoneSignal) {
-                            int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
-                                    >> HistoryItem.STATE_PHONE_STATE_SHIFT)
-                                    == ServiceState.STATE_POWER_OFF) {
-                                bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
-                                bin = 1;
-                            } else {
-                                bin = (rec.states&HistoryItem.STATE_SIGNAL_STRENGTH_MASK)
-                                        >> HistoryItem.STATE_SIGNAL_STRENGTH_SHIFT;
-                                bin += 2;
-                            }
-                            mPhoneSignalChart.addTick(x, bin);
-                        }
+        final int N = mNumPix;
+        for (int i=0; i<N; i++) {
+            x = mPixX[i];
+
+            // Plot the column as first level, the extreme it moves away
+            // to, the other extreme and the level it ends at, so spikes
+            // within a pixel stay visible.
+            final boolean falling = mPixFirst[i] >= mPixLast[i];
+            for (int p=0; p<4; p++) {
+                final byte value;
+                switch (p) {
+                    case 0: value = mPixFirst[i]; break;
+                    case 1: value = falling ? mPixMax[i] : mPixMin[i]; break;
+                    case 2: value = falling ? mPixMin[i] : mPixMax[i]; break;
+                    default: value = mPixLast[i]; break;
+                }
+                y = mLevelTop + levelh - ((value-batLow)*(levelh-1))/batChange;
+                if (lastY == y) {
+                    // Don't plot changes within a pixel.
+                    continue;
+                }
+                Path path;
+                if (value <= BATTERY_CRITICAL) path = mBatCriticalPath;
+                else if (value <= BATTERY_WARN) path = mBatWarnPath;
+                else path = mBatGoodPath;
+
+                if (path != lastLinePath) {
+                    if (lastLinePath != null) {
+                        lastLinePath.lineTo(x, y);
                     }
+                    path.moveTo(x, y);
+                    lastLinePath = path;
+                } else {
+                    path.lineTo(x, y);
+                }
 
-                } else if (rec.cmd != BatteryStats.HistoryItem.CMD_OVERFLOW) {
-                    if (curLevelPath != null) {
-                        finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
-                                lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                                lastWakeLock, lastLinePath);
-                        lastX = lastY = -1;
-                        curLevelPath = null;
-                        lastLinePath = null;
-                        lastCharging = lastScreenOn = lastGpsOn = lastWakeLock = false;
-                    }
+                if (curLevelPath == null) {
+                    curLevelPath = mBatLevelPath;
+                    curLevelPath.moveTo(x, y);
+                    startX = x;
+                } else {
+                    curLevelPath.lineTo(x, y);
                 }
-                
-                i++;
+                lastX = x;
+                lastY = y;
+            }
+
+            final int states = mPixStates[i];
+            final int endStates = mPixEndStates[i];
+            lastCharging = traceState(mChargingPath, x, h-mChargingOffset, lastCharging,
+                    states, endStates, HistoryItem.STATE_BATTERY_PLUGGED_FLAG);
+            lastScreenOn = traceState(mScreenOnPath, x, h-mScreenOnOffset, lastScreenOn,
+                    states, endStates, HistoryItem.STATE_SCREEN_ON_FLAG);
+            lastGpsOn = traceState(mGpsOnPath, x, h-mGpsOnOffset, lastGpsOn,
+                    states, endStates, HistoryItem.STATE_GPS_ON_FLAG);
+            lastWifiRunning = traceState(mWifiRunningPath, x, h-mWifiRunningOffset,
+                    lastWifiRunning, states, endStates, HistoryItem.STATE_WIFI_RUNNING_FLAG);
+            lastWakeLock = traceState(mWakeLockPath, x, h-mWakeLockOffset, lastWakeLock,
+                    states, endStates, HistoryItem.STATE_WAKE_LOCK_FLAG);
+
+            if (mLargeMode && mHavePhoneSignal) {
+                mPhoneSignalChart.addTick(x, phoneSignalBin(endStates));
+            }
+
+            if (mPixBreak[i] && curLevelPath != null) {
+                finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
+                        lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
+                        lastWakeLock, lastLinePath);
+                lastX = lastY = -1;
+                curLevelPath = null;
+                lastLinePath = null;
+                lastCharging = lastScreenOn = lastGpsOn = lastWifiRunning
+                        = lastWakeLock = false;
             }
         }
         
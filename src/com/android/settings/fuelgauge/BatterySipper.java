@@ -15,26 +15,65 @@
  */
 package com.android.settings.fuelgauge;
 
+import com.android.settings.AppIconCache;
 import com.android.settings.R;
 import com.android.settings.fuelgauge.PowerUsageDetail.DrainType;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
 import android.os.BatteryStats.Uid;
+import android.util.SparseArray;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 class BatterySipper implements Comparable<BatterySipper> {
+    // Names resolved for UIDs, and the applications their icons come from, shared by
+    // all sippers while the screen is resumed; synchronize on it.  The icons
+    // themselves are only kept by AppIconCache.
+    private static final SparseArray<UidToDetail> sUidCache = new SparseArray<UidToDetail>();
+    // Context sCacheReceiver is registered with, or null while sUidCache is not in use.
+    private static Context sReceiverContext;
+
+    // Keeps sUidCache from outliving package updates and locale changes.
+    private static final BroadcastReceiver sCacheReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            synchronized (sUidCache) {
+                if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                    sUidCache.clear();
+                } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                        || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                    final int[] uids = intent.getIntArrayExtra(Intent.EXTRA_CHANGED_UID_LIST);
+                    if (uids != null) {
+                        for (int uid : uids) {
+                            sUidCache.remove(uid);
+                        }
+                    }
+                } else {
+                    final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+                    if (uid != -1) {
+                        sUidCache.remove(uid);
+                    }
+                    // An updated package may come with a new icon
+                    final String pkgName = intent.getData().getSchemeSpecificPart();
+                    if (pkgName != null) {
+                        AppIconCache.getInstance(context).invalidatePackage(pkgName);
+                    }
+                }
+            }
+        }
+    };
+
     final Context mContext;
-    final HashMap<String,UidToDetail> mUidCache = new HashMap<String,UidToDetail>();
     final ArrayList<BatterySipper> mRequestQueue;
-    final Handler mHandler;
     String name;
     Drawable icon;
     int iconId; // For passing to the detail screen.
@@ -57,15 +96,15 @@ class BatterySipper implements Comparable<BatterySipper> {
     static class UidToDetail {
         String name;
         String packageName;
-        Drawable icon;
+        // Application whose icon is shown, or null for the default icon.
+        ApplicationInfo iconInfo;
     }
 
     BatterySipper(Context context, ArrayList<BatterySipper> requestQueue,
-            Handler handler, String label, DrainType drainType,
+            String label, DrainType drainType,
             int iconId, Uid uid, double[] values) {
         mContext = context;
         mRequestQueue = requestQueue;
-        mHandler = handler;
         this.values = values;
         name = label;
         this.drainType = drainType;
@@ -98,15 +137,23 @@ class BatterySipper implements Comparable<BatterySipper> {
 
     void getQuickNameIconForUid(Uid uidObj) {
         final int uid = uidObj.getUid();
-        final String uidString = Integer.toString(uid);
-        if (mUidCache.containsKey(uidString)) {
-            UidToDetail utd = mUidCache.get(uidString);
-            defaultPackageName = utd.packageName;
-            name = utd.name;
-            icon = utd.icon;
-            return;
+        final UidToDetail utd;
+        synchronized (sUidCache) {
+            utd = sReceiverContext != null ? sUidCache.get(uid) : null;
         }
         PackageManager pm = mContext.getPackageManager();
+        if (utd != null) {
+            final Drawable cachedIcon = utd.iconInfo != null
+                    ? AppIconCache.getInstance(mContext).peekIcon(utd.iconInfo)
+                    : pm.getDefaultActivityIcon();
+            if (cachedIcon != null) {
+                defaultPackageName = utd.packageName;
+                name = utd.name;
+                icon = cachedIcon;
+                return;
+            }
+            // The icon was evicted; resolve everything again below.
+        }
         final Drawable defaultActivityIcon = pm.getDefaultActivityIcon();
         String[] packages = pm.getPackagesForUid(uid);
         icon = pm.getDefaultActivityIcon();
@@ -129,8 +176,65 @@ class BatterySipper implements Comparable<BatterySipper> {
     }
 
     /**
-     * Sets name and icon
-     * @param uid Uid of the application
+     * Starts caching resolved names, dropping them as packages or the locale change.
+     * Changes are missed while not listening, so whatever was cached before is
+     * dropped too.
+     */
+    static void startNameCache(Context context) {
+        synchronized (sUidCache) {
+            if (sReceiverContext != null) {
+                return;
+            }
+            sUidCache.clear();
+            final Context appContext = context.getApplicationContext();
+            IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            filter.addDataScheme("package");
+            appContext.registerReceiver(sCacheReceiver, filter);
+            filter = new IntentFilter(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+            filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+            filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+            appContext.registerReceiver(sCacheReceiver, filter);
+            sReceiverContext = appContext;
+        }
+    }
+
+    /**
+     * Stops listening for changes, after which no names are cached or reused.
+     */
+    static void stopNameCache() {
+        synchronized (sUidCache) {
+            if (sReceiverContext == null) {
+                return;
+            }
+            sReceiverContext.unregisterReceiver(sCacheReceiver);
+            sReceiverContext = null;
+            sUidCache.clear();
+        }
+    }
+
+    /**
+     * Takes the name and icon resolved by another sipper of the same UID.
+     */
+    void setNameIcon(BatterySipper other) {
+        name = other.name;
+        icon = newIconInstance(other.icon);
+        defaultPackageName = other.defaultPackageName;
+    }
+
+    // Each sipper gets its own drawable, as it can end up in its own preference.
+    private Drawable newIconInstance(Drawable icon) {
+        if (icon == null) {
+            return null;
+        }
+        final Drawable.ConstantState state = icon.getConstantState();
+        return state != null ? state.newDrawable(mContext.getResources()) : icon;
+    }
+
+    /**
+     * Sets name and icon, and remembers them for other sippers of the same UID.
+     * Blocks on the package manager, so it is called on a worker thread.
      */
     void getNameIcon() {
         PackageManager pm = mContext.getPackageManager();
@@ -141,6 +245,7 @@ class BatterySipper implements Comparable<BatterySipper> {
             name = Integer.toString(uid);
             return;
         }
+        ApplicationInfo iconInfo = null;
 
         String[] packageLabels = new String[packages.length];
         System.arraycopy(packages, 0, packageLabels, 0, packages.length);
@@ -158,7 +263,8 @@ class BatterySipper implements Comparable<BatterySipper> {
                 }
                 if (ai.icon != 0) {
                     defaultPackageName = packages[i];
-                    icon = ai.loadIcon(pm);
+                    icon = AppIconCache.getInstance(mContext).getIcon(ai);
+                    iconInfo = ai;
                     break;
                 }
             } catch (NameNotFoundException e) {
@@ -180,7 +286,9 @@ class BatterySipper implements Comparable<BatterySipper> {
                             name = nm.toString();
                             if (pi.applicationInfo.icon != 0) {
                                 defaultPackageName = pkgName;
-                                icon = pi.applicationInfo.loadIcon(pm);
+                                icon = AppIconCache.getInstance(mContext)
+                                        .getIcon(pi.applicationInfo);
+                                iconInfo = pi.applicationInfo;
                             }
                             break;
                         }
@@ -189,12 +297,14 @@ class BatterySipper implements Comparable<BatterySipper> {
                 }
             }
         }
-        final String uidString = Integer.toString(uidObj.getUid());
         UidToDetail utd = new UidToDetail();
         utd.name = name;
-        utd.icon = icon;
+        utd.iconInfo = iconInfo;
         utd.packageName = defaultPackageName;
-        mUidCache.put(uidString, utd);
-        mHandler.sendMessage(mHandler.obtainMessage(PowerUsageSummary.MSG_UPDATE_NAME_ICON, this));
+        synchronized (sUidCache) {
+            if (sReceiverContext != null) {
+                sUidCache.put(uid, utd);
+            }
+        }
     }
 }
\ No newline at end of file
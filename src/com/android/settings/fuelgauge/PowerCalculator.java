@@ -0,0 +1,613 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.BatteryStats;
+import android.os.BatteryStats.Uid;
+import android.os.Process;
+import android.os.SystemClock;
+import android.telephony.SignalStrength;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.os.PowerProfile;
+import com.android.settings.R;
+import com.android.settings.fuelgauge.PowerUsageDetail.DrainType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Attributes the power used according to a set of battery statistics to apps and
+ * subsystems, using the average power values of the device's power profile.
+ *
+ * Not tied to any screen, so it can be used from any thread. The per-UID work can be
+ * split over several threads; the statistics must not change while they are computed.
+ */
+class PowerCalculator {
+    private static final boolean DEBUG = false;
+
+    private static final String TAG = "PowerCalculator";
+
+    // Upper bound for the number of threads working on one computation.
+    static final int MAX_PARALLELISM = 4;
+
+    // Sensor handles below this have their power looked up ahead of time.
+    private static final int SENSOR_POWER_CACHE_SIZE = 32;
+
+    private static ExecutorService sExecutor;
+
+    /**
+     * Sippers sorted by decreasing power, and the totals needed to show them.
+     */
+    static class Result {
+        final ArrayList<BatterySipper> usageList = new ArrayList<BatterySipper>();
+        long statsPeriod;
+        double maxPower;
+        double totalPower;
+    }
+
+    private final Context mContext;
+    private final int mParallelism;
+    private final boolean mWifiOnly;
+
+    // Average power values from the power profile.
+    private final double[] mPowerCpuNormal;
+    private final double mPowerCpuAwake;
+    private final double mPowerCpuIdle;
+    private final double mPowerWifiOn;
+    private final double mPowerWifiActive;
+    private final double mPowerGpsOn;
+    private final double mPowerScreenOn;
+    private final double mPowerScreenFull;
+    private final double mPowerRadioActive;
+    private final double[] mPowerRadioOn;
+    private final double mPowerRadioScanning;
+    private final double mPowerBluetoothOn;
+    private final double mPowerBluetoothAtCmd;
+
+    // Power of the default sensor for each handle, see sensorPower().
+    private final SensorManager mSensorManager;
+    private final double[] mSensorPower = new double[SENSOR_POWER_CACHE_SIZE];
+
+    /**
+     * @param context used for labels, sensors and the sippers
+     * @param parallelism number of threads working on the UIDs, including the caller's
+     */
+    PowerCalculator(Context context, PowerProfile powerProfile, int parallelism) {
+        mContext = context;
+        mParallelism = Math.max(1, Math.min(parallelism, MAX_PARALLELISM));
+        mWifiOnly = com.android.settings.Utils.isWifiOnly(context);
+
+        final int speedSteps = powerProfile.getNumSpeedSteps();
+        mPowerCpuNormal = new double[speedSteps];
+        for (int p = 0; p < speedSteps; p++) {
+            mPowerCpuNormal[p] = powerProfile.getAveragePower(PowerProfile.POWER_CPU_ACTIVE, p);
+        }
+        mPowerCpuAwake = powerProfile.getAveragePower(PowerProfile.POWER_CPU_AWAKE);
+        mPowerCpuIdle = powerProfile.getAveragePower(PowerProfile.POWER_CPU_IDLE);
+        mPowerWifiOn = powerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON);
+        mPowerWifiActive = powerProfile.getAveragePower(PowerProfile.POWER_WIFI_ACTIVE);
+        mPowerGpsOn = powerProfile.getAveragePower(PowerProfile.POWER_GPS_ON);
+        mPowerScreenOn = powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_ON);
+        mPowerScreenFull = powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
+        mPowerRadioActive = powerProfile.getAveragePower(PowerProfile.POWER_RADIO_ACTIVE);
+        mPowerRadioOn = new double[SignalStrength.NUM_SIGNAL_STRENGTH_BINS];
+        for (int i = 0; i < mPowerRadioOn.length; i++) {
+            mPowerRadioOn[i] = powerProfile.getAveragePower(PowerProfile.POWER_RADIO_ON, i);
+        }
+        mPowerRadioScanning = powerProfile.getAveragePower(PowerProfile.POWER_RADIO_SCANNING);
+        mPowerBluetoothOn = powerProfile.getAveragePower(PowerProfile.POWER_BLUETOOTH_ON);
+        mPowerBluetoothAtCmd = powerProfile.getAveragePower(PowerProfile.POWER_BLUETOOTH_AT_CMD);
+
+        // The statistics record sensor handles, which have always been looked up as
+        // sensor types here.
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        for (int i = 0; i < SENSOR_POWER_CACHE_SIZE; i++) {
+            mSensorPower[i] = lookUpSensorPower(i);
+        }
+    }
+
+    /**
+     * Whether the power profile has real values; without them nothing can be computed.
+     */
+    boolean isAvailable() {
+        return mPowerScreenFull >= 10;
+    }
+
+    /**
+     * Computes the power used by every app and subsystem.
+     *
+     * @param requestQueue queue the sippers add themselves to when their name and icon
+     *     still need to be loaded
+     */
+    Result compute(BatteryStats stats, int which, ArrayList<BatterySipper> requestQueue) {
+        final Computation c = new Computation(stats, which, requestQueue);
+        c.processAppUsage();
+        c.processMiscUsage();
+        Collections.sort(c.mResult.usageList);
+        return c.mResult;
+    }
+
+    private double lookUpSensorPower(int handle) {
+        final Sensor sensorData = mSensorManager.getDefaultSensor(handle);
+        if (sensorData != null) {
+            if (DEBUG) {
+                Log.i(TAG, "Got sensor " + sensorData.getName() + " with power = "
+                        + sensorData.getPower());
+            }
+            return sensorData.getPower();
+        }
+        return 0;
+    }
+
+    private double sensorPower(int handle) {
+        if (handle >= 0 && handle < SENSOR_POWER_CACHE_SIZE) {
+            return mSensorPower[handle];
+        }
+        return lookUpSensorPower(handle);
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(MAX_PARALLELISM - 1,
+                    new ThreadFactory() {
+                        public Thread newThread(final Runnable r) {
+                            final Thread thread = new Thread(new Runnable() {
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "PowerCalculator");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * State of one computation. The per-UID values are kept in arrays indexed like the
+     * UID stats, so the workers can fill them in without locking.
+     */
+    private class Computation {
+        final BatteryStats mStats;
+        final int mWhich;
+        final ArrayList<BatterySipper> mRequestQueue;
+        final Result mResult = new Result();
+
+        final long mUSecTime;
+        final double mAverageCostPerByte;
+        final SparseArray<? extends Uid> mUidStats;
+
+        final double[] mUidPower;
+        final long[] mUidCpuTime;
+        final long[] mUidCpuFgTime;
+        final long[] mUidWakelockTime;
+        final long[] mUidGpsTime;
+        final long[] mUidWifiRunningTime;
+        final long[] mUidTcpBytesReceived;
+        final long[] mUidTcpBytesSent;
+        final String[] mUidPackageWithHighestDrain;
+
+        final ArrayList<BatterySipper> mWifiSippers = new ArrayList<BatterySipper>();
+        final ArrayList<BatterySipper> mBluetoothSippers = new ArrayList<BatterySipper>();
+        double mWifiPower;
+        double mBluetoothPower;
+        // How much the apps together have left WIFI running.
+        long mAppWifiRunning;
+
+        Computation(BatteryStats stats, int which, ArrayList<BatterySipper> requestQueue) {
+            mStats = stats;
+            mWhich = which;
+            mRequestQueue = requestQueue;
+            mUSecTime = stats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000, which);
+            mAverageCostPerByte = getAverageDataCost();
+            mUidStats = stats.getUidStats();
+
+            final int NU = mUidStats.size();
+            mUidPower = new double[NU];
+            mUidCpuTime = new long[NU];
+            mUidCpuFgTime = new long[NU];
+            mUidWakelockTime = new long[NU];
+            mUidGpsTime = new long[NU];
+            mUidWifiRunningTime = new long[NU];
+            mUidTcpBytesReceived = new long[NU];
+            mUidTcpBytesSent = new long[NU];
+            mUidPackageWithHighestDrain = new String[NU];
+        }
+
+        void processAppUsage() {
+            computeUids();
+
+            long appWakelockTime = 0;
+            BatterySipper osApp = null;
+            mResult.statsPeriod = mUSecTime;
+            final int NU = mUidStats.size();
+            for (int iu = 0; iu < NU; iu++) {
+                final Uid u = mUidStats.valueAt(iu);
+                final double power = mUidPower[iu];
+                appWakelockTime += mUidWakelockTime[iu];
+                mAppWifiRunning += mUidWifiRunningTime[iu];
+
+                // Add the app to the list if it is consuming power
+                if (power != 0 || u.getUid() == 0) {
+                    BatterySipper app = new BatterySipper(mContext, mRequestQueue,
+                            mUidPackageWithHighestDrain[iu], DrainType.APP, 0, u,
+                            new double[] {power});
+                    app.cpuTime = mUidCpuTime[iu];
+                    app.gpsTime = mUidGpsTime[iu];
+                    app.wifiRunningTime = mUidWifiRunningTime[iu];
+                    app.cpuFgTime = mUidCpuFgTime[iu];
+                    app.wakeLockTime = mUidWakelockTime[iu];
+                    app.tcpBytesReceived = mUidTcpBytesReceived[iu];
+                    app.tcpBytesSent = mUidTcpBytesSent[iu];
+                    if (u.getUid() == Process.WIFI_UID) {
+                        mWifiSippers.add(app);
+                    } else if (u.getUid() == Process.BLUETOOTH_GID) {
+                        mBluetoothSippers.add(app);
+                    } else {
+                        mResult.usageList.add(app);
+                    }
+                    if (u.getUid() == 0) {
+                        osApp = app;
+                    }
+                }
+                if (u.getUid() == Process.WIFI_UID) {
+                    mWifiPower += power;
+                } else if (u.getUid() == Process.BLUETOOTH_GID) {
+                    mBluetoothPower += power;
+                } else {
+                    if (power > mResult.maxPower) mResult.maxPower = power;
+                    mResult.totalPower += power;
+                }
+                if (DEBUG) Log.i(TAG, "Added power = " + power);
+            }
+
+            // The device has probably been awake for longer than the screen on
+            // time and application wake lock time would account for.  Assign
+            // this remainder to the OS, if possible.
+            if (osApp != null) {
+                long wakeTimeMillis = mStats.computeBatteryUptime(
+                        SystemClock.uptimeMillis() * 1000, mWhich) / 1000;
+                wakeTimeMillis -= appWakelockTime + (mStats.getScreenOnTime(
+                        SystemClock.elapsedRealtime(), mWhich) / 1000);
+                if (wakeTimeMillis > 0) {
+                    double power = (wakeTimeMillis * mPowerCpuAwake) / 1000;
+                    if (DEBUG) Log.i(TAG, "OS wakeLockTime " + wakeTimeMillis + " power " + power);
+                    osApp.wakeLockTime += wakeTimeMillis;
+                    osApp.value += power;
+                    osApp.values[0] += power;
+                    if (osApp.value > mResult.maxPower) mResult.maxPower = osApp.value;
+                    mResult.totalPower += power;
+                }
+            }
+        }
+
+        /**
+         * Fills in the per-UID arrays, spreading the UIDs over the workers.
+         */
+        private void computeUids() {
+            final int workers = Math.min(mParallelism, mUidStats.size());
+            if (workers <= 1) {
+                computeUids(0, 1);
+                return;
+            }
+            final ArrayList<Future<?>> futures = new ArrayList<Future<?>>(workers - 1);
+            final ExecutorService executor = getExecutor();
+            for (int w = 1; w < workers; w++) {
+                final int first = w;
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        computeUids(first, workers);
+                    }
+                }));
+            }
+            computeUids(0, workers);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        }
+
+        private void computeUids(int first, int stride) {
+            final long[] cpuSpeedStepTimes = new long[mPowerCpuNormal.length];
+            final int NU = mUidStats.size();
+            for (int iu = first; iu < NU; iu += stride) {
+                computeUid(iu, cpuSpeedStepTimes);
+            }
+        }
+
+        private void computeUid(int iu, long[] cpuSpeedStepTimes) {
+            final Uid u = mUidStats.valueAt(iu);
+            final int which = mWhich;
+            final int speedSteps = mPowerCpuNormal.length;
+            double power = 0;
+            double highestDrain = 0;
+            String packageWithHighestDrain = null;
+            Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
+            long cpuTime = 0;
+            long cpuFgTime = 0;
+            long wakelockTime = 0;
+            long gpsTime = 0;
+            if (processStats.size() > 0) {
+                // Process CPU time
+                for (Map.Entry<String, ? extends BatteryStats.Uid.Proc> ent
+                        : processStats.entrySet()) {
+                    if (DEBUG) Log.i(TAG, "Process name = " + ent.getKey());
+                    Uid.Proc ps = ent.getValue();
+                    final long userTime = ps.getUserTime(which);
+                    final long systemTime = ps.getSystemTime(which);
+                    final long foregroundTime = ps.getForegroundTime(which);
+                    cpuFgTime += foregroundTime * 10; // convert to millis
+                    final long tmpCpuTime = (userTime + systemTime) * 10; // convert to millis
+                    int totalTimeAtSpeeds = 0;
+                    // Get the total first
+                    for (int step = 0; step < speedSteps; step++) {
+                        cpuSpeedStepTimes[step] = ps.getTimeAtCpuSpeedStep(step, which);
+                        totalTimeAtSpeeds += cpuSpeedStepTimes[step];
+                    }
+                    if (totalTimeAtSpeeds == 0) totalTimeAtSpeeds = 1;
+                    // Then compute the ratio of time spent at each speed
+                    double processPower = 0;
+                    for (int step = 0; step < speedSteps; step++) {
+                        double ratio = (double) cpuSpeedStepTimes[step] / totalTimeAtSpeeds;
+                        processPower += ratio * tmpCpuTime * mPowerCpuNormal[step];
+                    }
+                    cpuTime += tmpCpuTime;
+                    power += processPower;
+                    if (packageWithHighestDrain == null
+                            || packageWithHighestDrain.startsWith("*")) {
+                        highestDrain = processPower;
+                        packageWithHighestDrain = ent.getKey();
+                    } else if (highestDrain < processPower
+                            && !ent.getKey().startsWith("*")) {
+                        highestDrain = processPower;
+                        packageWithHighestDrain = ent.getKey();
+                    }
+                }
+                if (DEBUG) Log.i(TAG, "Max drain of " + highestDrain
+                        + " by " + packageWithHighestDrain);
+            }
+            if (cpuFgTime > cpuTime) {
+                if (DEBUG && cpuFgTime > cpuTime + 10000) {
+                    Log.i(TAG, "WARNING! Cputime is more than 10 seconds behind Foreground time");
+                }
+                cpuTime = cpuFgTime; // Statistics may not have been gathered yet.
+            }
+            power /= 1000;
+
+            // Process wake lock usage. Only the values are needed, which avoids
+            // creating map entries for them.
+            for (BatteryStats.Uid.Wakelock wakelock : u.getWakelockStats().values()) {
+                // Only care about partial wake locks since full wake locks
+                // are canceled when the user turns the screen off.
+                BatteryStats.Timer timer = wakelock.getWakeTime(BatteryStats.WAKE_TYPE_PARTIAL);
+                if (timer != null) {
+                    wakelockTime += timer.getTotalTimeLocked(mUSecTime, which);
+                }
+            }
+            wakelockTime /= 1000; // convert to millis
+
+            // Add cost of holding a wake lock
+            power += (wakelockTime * mPowerCpuAwake) / 1000;
+
+            // Add cost of data traffic
+            long tcpBytesReceived = u.getTcpBytesReceived(which);
+            long tcpBytesSent = u.getTcpBytesSent(which);
+            power += (tcpBytesReceived+tcpBytesSent) * mAverageCostPerByte;
+
+            // Add cost of keeping WIFI running.
+            long wifiRunningTimeMs = u.getWifiRunningTime(mUSecTime, which) / 1000;
+            power += (wifiRunningTimeMs * mPowerWifiOn) / 1000;
+
+            // Process Sensor usage
+            for (BatteryStats.Uid.Sensor sensor : u.getSensorStats().values()) {
+                int sensorType = sensor.getHandle();
+                BatteryStats.Timer timer = sensor.getSensorTime();
+                long sensorTime = timer.getTotalTimeLocked(mUSecTime, which) / 1000;
+                double multiplier;
+                switch (sensorType) {
+                    case Uid.Sensor.GPS:
+                        multiplier = mPowerGpsOn;
+                        gpsTime = sensorTime;
+                        break;
+                    default:
+                        multiplier = sensorPower(sensorType);
+                }
+                power += (multiplier * sensorTime) / 1000;
+            }
+
+            if (DEBUG) Log.i(TAG, "UID " + u.getUid() + ": power=" + power);
+
+            mUidPower[iu] = power;
+            mUidCpuTime[iu] = cpuTime;
+            mUidCpuFgTime[iu] = cpuFgTime;
+            mUidWakelockTime[iu] = wakelockTime;
+            mUidGpsTime[iu] = gpsTime;
+            mUidWifiRunningTime[iu] = wifiRunningTimeMs;
+            mUidTcpBytesReceived[iu] = tcpBytesReceived;
+            mUidTcpBytesSent[iu] = tcpBytesSent;
+            mUidPackageWithHighestDrain[iu] = packageWithHighestDrain;
+        }
+
+        private void addPhoneUsage(long uSecNow) {
+            long phoneOnTimeMs = mStats.getPhoneOnTime(uSecNow, mWhich) / 1000;
+            double phoneOnPower = mPowerRadioActive * phoneOnTimeMs / 1000;
+            addEntry(mContext.getString(R.string.power_phone), DrainType.PHONE, phoneOnTimeMs,
+                    R.drawable.ic_settings_voice_calls, phoneOnPower);
+        }
+
+        private void addScreenUsage(long uSecNow) {
+            double power = 0;
+            long screenOnTimeMs = mStats.getScreenOnTime(uSecNow, mWhich) / 1000;
+            power += screenOnTimeMs * mPowerScreenOn;
+            for (int i = 0; i < BatteryStats.NUM_SCREEN_BRIGHTNESS_BINS; i++) {
+                double screenBinPower = mPowerScreenFull * (i + 0.5f)
+                        / BatteryStats.NUM_SCREEN_BRIGHTNESS_BINS;
+                long brightnessTime = mStats.getScreenBrightnessTime(i, uSecNow, mWhich) / 1000;
+                power += screenBinPower * brightnessTime;
+                if (DEBUG) {
+                    Log.i(TAG, "Screen bin power = " + (int) screenBinPower + ", time = "
+                            + brightnessTime);
+                }
+            }
+            power /= 1000; // To seconds
+            addEntry(mContext.getString(R.string.power_screen), DrainType.SCREEN,
+                    screenOnTimeMs, R.drawable.ic_settings_display, power);
+        }
+
+        private void addRadioUsage(long uSecNow) {
+            double power = 0;
+            final int BINS = SignalStrength.NUM_SIGNAL_STRENGTH_BINS;
+            long signalTimeMs = 0;
+            for (int i = 0; i < BINS; i++) {
+                long strengthTimeMs = mStats.getPhoneSignalStrengthTime(i, uSecNow, mWhich) / 1000;
+                power += strengthTimeMs / 1000 * mPowerRadioOn[i];
+                signalTimeMs += strengthTimeMs;
+            }
+            long scanningTimeMs = mStats.getPhoneSignalScanningTime(uSecNow, mWhich) / 1000;
+            power += scanningTimeMs / 1000 * mPowerRadioScanning;
+            BatterySipper bs =
+                    addEntry(mContext.getString(R.string.power_cell), DrainType.CELL,
+                            signalTimeMs, R.drawable.ic_settings_cell_standby, power);
+            if (signalTimeMs != 0) {
+                bs.noCoveragePercent = mStats.getPhoneSignalStrengthTime(0, uSecNow, mWhich)
+                        / 1000 * 100.0 / signalTimeMs;
+            }
+        }
+
+        private void aggregateSippers(BatterySipper bs, ArrayList<BatterySipper> from,
+                String tag) {
+            for (int i=0; i<from.size(); i++) {
+                BatterySipper wbs = from.get(i);
+                if (DEBUG) Log.i(TAG, tag + " adding sipper " + wbs + ": cpu=" + wbs.cpuTime);
+                bs.cpuTime += wbs.cpuTime;
+                bs.gpsTime += wbs.gpsTime;
+                bs.wifiRunningTime += wbs.wifiRunningTime;
+                bs.cpuFgTime += wbs.cpuFgTime;
+                bs.wakeLockTime += wbs.wakeLockTime;
+                bs.tcpBytesReceived += wbs.tcpBytesReceived;
+                bs.tcpBytesSent += wbs.tcpBytesSent;
+            }
+        }
+
+        private void addWiFiUsage(long uSecNow) {
+            long onTimeMs = mStats.getWifiOnTime(uSecNow, mWhich) / 1000;
+            long runningTimeMs = mStats.getGlobalWifiRunningTime(uSecNow, mWhich) / 1000;
+            if (DEBUG) Log.i(TAG, "WIFI runningTime=" + runningTimeMs
+                    + " app runningTime=" + mAppWifiRunning);
+            runningTimeMs -= mAppWifiRunning;
+            if (runningTimeMs < 0) runningTimeMs = 0;
+            double wifiPower = (onTimeMs * 0 /* TODO */ * mPowerWifiOn
+                + runningTimeMs * mPowerWifiOn) / 1000;
+            if (DEBUG) Log.i(TAG, "WIFI power=" + wifiPower + " from procs=" + mWifiPower);
+            BatterySipper bs = addEntry(mContext.getString(R.string.power_wifi),
+                    DrainType.WIFI, runningTimeMs, R.drawable.ic_settings_wifi,
+                    wifiPower + mWifiPower);
+            aggregateSippers(bs, mWifiSippers, "WIFI");
+        }
+
+        private void addIdleUsage(long uSecNow) {
+            long idleTimeMs = (uSecNow - mStats.getScreenOnTime(uSecNow, mWhich)) / 1000;
+            double idlePower = (idleTimeMs * mPowerCpuIdle) / 1000;
+            addEntry(mContext.getString(R.string.power_idle), DrainType.IDLE, idleTimeMs,
+                    R.drawable.ic_settings_phone_idle, idlePower);
+        }
+
+        private void addBluetoothUsage(long uSecNow) {
+            long btOnTimeMs = mStats.getBluetoothOnTime(uSecNow, mWhich) / 1000;
+            double btPower = btOnTimeMs * mPowerBluetoothOn / 1000;
+            int btPingCount = mStats.getBluetoothPingCount();
+            btPower += (btPingCount * mPowerBluetoothAtCmd) / 1000;
+            BatterySipper bs = addEntry(mContext.getString(R.string.power_bluetooth),
+                    DrainType.BLUETOOTH, btOnTimeMs, R.drawable.ic_settings_bluetooth,
+                    btPower + mBluetoothPower);
+            aggregateSippers(bs, mBluetoothSippers, "Bluetooth");
+        }
+
+        private double getAverageDataCost() {
+            final long WIFI_BPS = 1000000; // TODO: Extract average bit rates from system
+            final long MOBILE_BPS = 200000; // TODO: Extract average bit rates from system
+            final double WIFI_POWER = mPowerWifiActive / 3600;
+            final double MOBILE_POWER = mPowerRadioActive / 3600;
+            final long mobileData = mStats.getMobileTcpBytesReceived(mWhich) +
+                    mStats.getMobileTcpBytesSent(mWhich);
+            final long wifiData = mStats.getTotalTcpBytesReceived(mWhich) +
+                    mStats.getTotalTcpBytesSent(mWhich) - mobileData;
+            final long radioDataUptimeMs = mStats.getRadioDataUptime() / 1000;
+            final long mobileBps = radioDataUptimeMs != 0
+                    ? mobileData * 8 * 1000 / radioDataUptimeMs
+                    : MOBILE_BPS;
+
+            double mobileCostPerByte = MOBILE_POWER / (mobileBps / 8);
+            double wifiCostPerByte = WIFI_POWER / (WIFI_BPS / 8);
+            if (wifiData + mobileData != 0) {
+                return (mobileCostPerByte * mobileData + wifiCostPerByte * wifiData)
+                        / (mobileData + wifiData);
+            } else {
+                return 0;
+            }
+        }
+
+        void processMiscUsage() {
+            final long uSecNow = mUSecTime;
+            if (DEBUG) {
+                Log.i(TAG, "Uptime since last unplugged = " + (uSecNow / 1000));
+            }
+
+            addPhoneUsage(uSecNow);
+            addScreenUsage(uSecNow);
+            addWiFiUsage(uSecNow);
+            addBluetoothUsage(uSecNow);
+            addIdleUsage(uSecNow); // Not including cellular idle power
+            // Don't compute radio usage if it's a wifi-only device
+            if (!mWifiOnly) {
+                addRadioUsage(uSecNow);
+            }
+        }
+
+        private BatterySipper addEntry(String label, DrainType drainType, long time,
+                int iconId, double power) {
+            if (power > mResult.maxPower) mResult.maxPower = power;
+            mResult.totalPower += power;
+            BatterySipper bs = new BatterySipper(mContext, mRequestQueue,
+                    label, drainType, iconId, null, new double[] {power});
+            bs.usageTime = time;
+            bs.iconId = iconId;
+            mResult.usageList.add(bs);
+            return bs;
+        }
+    }
+}
@@ -20,11 +20,13 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.hardware.SensorManager;
+import android.os.BatteryManager;
 import android.os.BatteryStats;
 import android.os.BatteryStats.Uid;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Parcel;
 import android.os.Process;
@@ -36,7 +38,6 @@ import android.preference.PreferenceActivity;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceGroup;
 import android.preference.PreferenceScreen;
-import android.telephony.SignalStrength;
 import android.util.Log;
 import android.util.SparseArray;
 import android.view.Menu;
@@ -47,21 +48,24 @@ import com.android.internal.app.IBatteryStats;
 import com.android.internal.os.BatteryStatsImpl;
 import com.android.internal.os.PowerProfile;
 import com.android.settings.R;
-import com.android.settings.fuelgauge.PowerUsageDetail.DrainType;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Displays a list of apps and subsystems that consume power, ordered by how much power was
  * consumed since the last time it was unplugged.
+ *
+ * The statistics are parsed and the power is computed on a background thread. The result is
+ * kept in a {@link Snapshot} that is shown right away when the screen is opened again, and
+ * only recomputed when the battery level or plug state changed or it got too old.
  */
-public class PowerUsageSummary extends PreferenceFragment implements Runnable {
+public class PowerUsageSummary extends PreferenceFragment {
 
     private static final boolean DEBUG = false;
 
@@ -73,13 +77,54 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
     private static final int MENU_STATS_TYPE = Menu.FIRST;
     private static final int MENU_STATS_REFRESH = Menu.FIRST + 1;
 
-    private static BatteryStatsImpl sStatsXfer;
+    // Recompute the snapshot when it is older than this, even if the battery did not change.
+    private static final long SNAPSHOT_MAX_AGE = 60 * 1000;
+
+    /**
+     * Power usage computed from one set of battery statistics. Sippers are created with
+     * the application context since the snapshot outlives the fragment.
+     */
+    static final class Snapshot {
+        BatteryStatsImpl stats;
+        int statsType;
+        boolean available;
+        final ArrayList<BatterySipper> usageList = new ArrayList<BatterySipper>();
+        long statsPeriod;
+        double maxPower;
+        double totalPower;
+        long computedAt;
+        int batteryLevel = -1;
+        int plugType = -1;
+    }
+
+    // Last computed snapshot; only touched on the main thread.
+    private static Snapshot sSnapshot;
+
+    // Fragment currently showing sSnapshot, which receives name and icon updates.
+    private static PowerUsageSummary sActive;
+
+    private static HandlerThread sLoaderThread;
+    private static Handler sLoaderHandler;
+
+    // Threads resolving the names and icons of sippers.
+    private static final int NAME_ICON_THREADS = 2;
+
+    // Resolved names and icons are shown together, at most this long after the first one.
+    private static final long NAME_ICON_BATCH_DELAY = 100;
+
+    private static ExecutorService sNameIconExecutor;
+
+    /** Queue for fetching name and icon for an application */
+    private static final ArrayList<BatterySipper> sRequestQueue = new ArrayList<BatterySipper>();
+
+    // Sippers waiting for their UID to be resolved, and sippers resolved since the
+    // last batch was shown; guarded by sRequestQueue.
+    private static final SparseArray<ArrayList<BatterySipper>> sPendingUids =
+            new SparseArray<ArrayList<BatterySipper>>();
+    private static final ArrayList<BatterySipper> sResolved = new ArrayList<BatterySipper>();
 
     IBatteryStats mBatteryInfo;
-    BatteryStatsImpl mStats;
-    private final List<BatterySipper> mUsageList = new ArrayList<BatterySipper>();
-    private final List<BatterySipper> mWifiSippers = new ArrayList<BatterySipper>();
-    private final List<BatterySipper> mBluetoothSippers = new ArrayList<BatterySipper>();
+    private Context mAppContext;
 
     private PreferenceGroup mAppListGroup;
     private Preference mBatteryStatusPref;
@@ -89,20 +134,14 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
     private static final int MIN_POWER_THRESHOLD = 5;
     private static final int MAX_ITEMS_TO_LIST = 10;
 
-    private long mStatsPeriod = 0;
-    private double mMaxPower = 1;
-    private double mTotalPower;
-    private double mWifiPower;
-    private double mBluetoothPower;
-    private PowerProfile mPowerProfile;
+    private PowerCalculator mPowerCalculator;
 
-    // How much the apps together have left WIFI running.
-    private long mAppWifiRunning;
-
-    /** Queue for fetching name and icon for an application */
-    private ArrayList<BatterySipper> mRequestQueue = new ArrayList<BatterySipper>();
-    private Thread mRequestThread;
-    private boolean mAbort;
+    // Snapshot being shown, and the battery state last broadcast.
+    private Snapshot mSnapshot;
+    private int mBatteryLevel = -1;
+    private int mPlugType = -1;
+    private boolean mLoading;
+    private boolean mReloadPending;
 
     private BroadcastReceiver mBatteryInfoReceiver = new BroadcastReceiver() {
 
@@ -116,6 +155,10 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
                 String batterySummary = context.getResources().getString(
                         R.string.power_usage_level_and_status, batteryLevel, batteryStatus);
                 mBatteryStatusPref.setTitle(batterySummary);
+                updateBatteryState(intent);
+                if (isStale(sSnapshot)) {
+                    loadStats(true);
+                }
             }
         }
     };
@@ -124,51 +167,45 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
 
-        if (icicle != null) {
-            mStats = sStatsXfer;
-        }
-
         addPreferencesFromResource(R.xml.power_usage_summary);
         mBatteryInfo = IBatteryStats.Stub.asInterface(
                 ServiceManager.getService("batteryinfo"));
         mAppListGroup = (PreferenceGroup) findPreference(KEY_APP_LIST);
         mBatteryStatusPref = mAppListGroup.findPreference(KEY_BATTERY_STATUS);
-        mPowerProfile = new PowerProfile(getActivity());
+        mAppContext = getActivity().getApplicationContext();
+        mPowerCalculator = new PowerCalculator(mAppContext, new PowerProfile(mAppContext),
+                Runtime.getRuntime().availableProcessors());
         setHasOptionsMenu(true);
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        mAbort = false;
-        getActivity().registerReceiver(mBatteryInfoReceiver,
+        sActive = this;
+        BatterySipper.startNameCache(getActivity());
+        Intent sticky = getActivity().registerReceiver(mBatteryInfoReceiver,
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (sticky != null) {
+            updateBatteryState(sticky);
+        }
         refreshStats();
     }
 
     @Override
     public void onPause() {
-        synchronized (mRequestQueue) {
-            mAbort = true;
+        if (sActive == this) {
+            sActive = null;
+            BatterySipper.stopNameCache();
         }
-        mHandler.removeMessages(MSG_UPDATE_NAME_ICON);
         getActivity().unregisterReceiver(mBatteryInfoReceiver);
         super.onPause();
     }
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        if (getActivity().isChangingConfigurations()) {
-            sStatsXfer = mStats;
-        }
-    }
-
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (preference instanceof BatteryHistoryPreference) {
             Parcel hist = Parcel.obtain();
-            mStats.writeToParcelWithoutUids(hist, 0);
+            mSnapshot.stats.writeToParcelWithoutUids(hist, 0);
             byte[] histData = hist.marshall();
             Bundle args = new Bundle();
             args.putByteArray(BatteryHistoryDetail.EXTRA_STATS, histData);
@@ -185,10 +222,10 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         Bundle args = new Bundle();
         args.putString(PowerUsageDetail.EXTRA_TITLE, sipper.name);
         args.putInt(PowerUsageDetail.EXTRA_PERCENT, (int)
-                Math.ceil(sipper.getSortValue() * 100 / mTotalPower));
+                Math.ceil(sipper.getSortValue() * 100 / mSnapshot.totalPower));
         args.putInt(PowerUsageDetail.EXTRA_GAUGE, (int)
-                Math.ceil(sipper.getSortValue() * 100 / mMaxPower));
-        args.putLong(PowerUsageDetail.EXTRA_USAGE_DURATION, mStatsPeriod);
+                Math.ceil(sipper.getSortValue() * 100 / mSnapshot.maxPower));
+        args.putLong(PowerUsageDetail.EXTRA_USAGE_DURATION, mSnapshot.statsPeriod);
         args.putString(PowerUsageDetail.EXTRA_ICON_PACKAGE, sipper.defaultPackageName);
         args.putInt(PowerUsageDetail.EXTRA_ICON_ID, sipper.iconId);
         args.putDouble(PowerUsageDetail.EXTRA_NO_COVERAGE, sipper.noCoveragePercent);
@@ -228,12 +265,13 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
 
                 Writer result = new StringWriter();
                 PrintWriter printWriter = new PrintWriter(result);
-                mStats.dumpLocked(printWriter, "", mStatsType, uid.getUid());
+                mSnapshot.stats.dumpLocked(printWriter, "", mSnapshot.statsType, uid.getUid());
                 args.putString(PowerUsageDetail.EXTRA_REPORT_DETAILS, result.toString());
                 
                 result = new StringWriter();
                 printWriter = new PrintWriter(result);
-                mStats.dumpCheckinLocked(printWriter, mStatsType, uid.getUid());
+                mSnapshot.stats.dumpCheckinLocked(printWriter, mSnapshot.statsType,
+                        uid.getUid());
                 args.putString(PowerUsageDetail.EXTRA_REPORT_CHECKIN_DETAILS, result.toString());
             }
             break;
@@ -332,8 +370,7 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
                 refreshStats();
                 return true;
             case MENU_STATS_REFRESH:
-                mStats = null;
-                refreshStats();
+                loadStats(true);
                 return true;
             default:
                 return false;
@@ -346,42 +383,144 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         mAppListGroup.addPreference(notAvailable);
     }
 
+    private void updateBatteryState(Intent intent) {
+        mBatteryLevel = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        mPlugType = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1);
+    }
+
+    private boolean isStale(Snapshot snapshot) {
+        if (snapshot == null || snapshot.stats == null) {
+            return true;
+        }
+        if (SystemClock.elapsedRealtime() - snapshot.computedAt > SNAPSHOT_MAX_AGE) {
+            return true;
+        }
+        return mBatteryLevel >= 0
+                && (snapshot.batteryLevel != mBatteryLevel || snapshot.plugType != mPlugType);
+    }
+
+    /**
+     * Shows the last snapshot right away, and computes a new one in the background if it
+     * is stale or was computed for another stats type.
+     */
     private void refreshStats() {
-        if (mStats == null) {
-            load();
+        final Snapshot snapshot = sSnapshot;
+        if (snapshot != null && snapshot.statsType == mStatsType) {
+            showSnapshot(snapshot);
+        } else {
+            showSnapshot(null);
+        }
+        if (isStale(snapshot)) {
+            loadStats(true);
+        } else if (snapshot.statsType != mStatsType) {
+            loadStats(false);
         }
-        mMaxPower = 0;
-        mTotalPower = 0;
-        mWifiPower = 0;
-        mBluetoothPower = 0;
-        mAppWifiRunning = 0;
+    }
+
+    /**
+     * Computes a new snapshot on the loader thread.
+     * @param reloadStats whether to get new statistics, rather than recompute the last ones
+     */
+    private void loadStats(final boolean reloadStats) {
+        if (mLoading) {
+            mReloadPending = true;
+            return;
+        }
+        mLoading = true;
+        final BatteryStatsImpl stats = (!reloadStats && sSnapshot != null)
+                ? sSnapshot.stats : null;
+        final int statsType = mStatsType;
+        final int batteryLevel = mBatteryLevel;
+        final int plugType = mPlugType;
+        getLoaderHandler().post(new Runnable() {
+            public void run() {
+                final Snapshot snapshot = computeSnapshot(stats, statsType);
+                snapshot.batteryLevel = batteryLevel;
+                snapshot.plugType = plugType;
+                mHandler.sendMessage(mHandler.obtainMessage(MSG_STATS_LOADED, snapshot));
+            }
+        });
+    }
+
+    private static synchronized Handler getLoaderHandler() {
+        if (sLoaderHandler == null) {
+            sLoaderThread = new HandlerThread("PowerUsageSummary.Loader",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            sLoaderThread.start();
+            sLoaderHandler = new Handler(sLoaderThread.getLooper());
+        }
+        return sLoaderHandler;
+    }
+
+    private void onStatsLoaded(Snapshot snapshot) {
+        mLoading = false;
+        sSnapshot = snapshot;
+        if (sActive != this) {
+            return;
+        }
+        if (snapshot.statsType == mStatsType) {
+            showSnapshot(snapshot);
+        }
+        if (mReloadPending) {
+            mReloadPending = false;
+            refreshStats();
+        }
+    }
+
+    /**
+     * Parses the statistics if needed and computes the power used by everything.
+     * Runs on the loader thread.
+     */
+    private Snapshot computeSnapshot(BatteryStatsImpl stats, int statsType) {
+        final Snapshot snapshot = new Snapshot();
+        snapshot.statsType = statsType;
+        snapshot.stats = stats != null ? stats : load();
+        snapshot.computedAt = SystemClock.elapsedRealtime();
+        if (snapshot.stats == null || !mPowerCalculator.isAvailable()) {
+            return snapshot;
+        }
+
+        final PowerCalculator.Result result = mPowerCalculator.compute(snapshot.stats,
+                snapshot.statsType, sRequestQueue);
+        // Start resolving names and icons right away, so most are known by the time
+        // the snapshot is shown
+        requestNameIcons();
+        snapshot.available = true;
+        snapshot.usageList.addAll(result.usageList);
+        snapshot.statsPeriod = result.statsPeriod;
+        snapshot.maxPower = result.maxPower;
+        snapshot.totalPower = result.totalPower;
+        return snapshot;
+    }
+
+    private void showSnapshot(Snapshot snapshot) {
+        mSnapshot = snapshot;
 
         mAppListGroup.removeAll();
-        mUsageList.clear();
-        mWifiSippers.clear();
-        mBluetoothSippers.clear();
         mAppListGroup.setOrderingAsAdded(false);
 
         mBatteryStatusPref.setOrder(-2);
         mAppListGroup.addPreference(mBatteryStatusPref);
-        BatteryHistoryPreference hist = new BatteryHistoryPreference(getActivity(), mStats);
+        if (snapshot == null || snapshot.stats == null) {
+            // Still loading
+            return;
+        }
+        BatteryHistoryPreference hist = new BatteryHistoryPreference(getActivity(),
+                snapshot.stats);
         hist.setOrder(-1);
         mAppListGroup.addPreference(hist);
-        
-        if (mPowerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL) < 10) {
+
+        if (!snapshot.available) {
             addNotAvailableMessage();
             return;
         }
-        processAppUsage();
-        processMiscUsage();
 
-        Collections.sort(mUsageList);
-        for (BatterySipper sipper : mUsageList) {
+        for (BatterySipper sipper : snapshot.usageList) {
             if (sipper.getSortValue() < MIN_POWER_THRESHOLD) continue;
-            final double percentOfTotal =  ((sipper.getSortValue() / mTotalPower) * 100);
+            final double percentOfTotal =  ((sipper.getSortValue() / snapshot.totalPower) * 100);
             if (percentOfTotal < 1) continue;
             PowerGaugePreference pref = new PowerGaugePreference(getActivity(), sipper.getIcon(), sipper);
-            final double percentOfMax = (sipper.getSortValue() * 100) / mMaxPower;
+            final double percentOfMax = (sipper.getSortValue() * 100) / snapshot.maxPower;
             sipper.percent = percentOfTotal;
             pref.setTitle(sipper.name);
             pref.setOrder(Integer.MAX_VALUE - (int) sipper.getSortValue()); // Invert the order
@@ -392,412 +531,136 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
             mAppListGroup.addPreference(pref);
             if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST+1)) break;
         }
-        synchronized (mRequestQueue) {
-            if (!mRequestQueue.isEmpty()) {
-                if (mRequestThread == null) {
-                    mRequestThread = new Thread(this, "BatteryUsage Icon Loader");
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                }
-                mRequestQueue.notify();
-            }
-        }
     }
 
-    private void processAppUsage() {
-        SensorManager sensorManager = (SensorManager)getActivity().getSystemService(
-                Context.SENSOR_SERVICE);
-        final int which = mStatsType;
-        final int speedSteps = mPowerProfile.getNumSpeedSteps();
-        final double[] powerCpuNormal = new double[speedSteps];
-        final long[] cpuSpeedStepTimes = new long[speedSteps];
-        for (int p = 0; p < speedSteps; p++) {
-            powerCpuNormal[p] = mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_ACTIVE, p);
+    private BatteryStatsImpl load() {
+        try {
+            byte[] data = mBatteryInfo.getStatistics();
+            Parcel parcel = Parcel.obtain();
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            BatteryStatsImpl stats = com.android.internal.os.BatteryStatsImpl.CREATOR
+                    .createFromParcel(parcel);
+            parcel.recycle();
+            stats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
+            return stats;
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException:", e);
+            return null;
         }
-        final double averageCostPerByte = getAverageDataCost();
-        long uSecTime = mStats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000, which);
-        long appWakelockTime = 0;
-        BatterySipper osApp = null;
-        mStatsPeriod = uSecTime;
-        SparseArray<? extends Uid> uidStats = mStats.getUidStats();
-        final int NU = uidStats.size();
-        for (int iu = 0; iu < NU; iu++) {
-            Uid u = uidStats.valueAt(iu);
-            double power = 0;
-            double highestDrain = 0;
-            String packageWithHighestDrain = null;
-            //mUsageList.add(new AppUsage(u.getUid(), new double[] {power}));
-            Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
-            long cpuTime = 0;
-            long cpuFgTime = 0;
-            long wakelockTime = 0;
-            long gpsTime = 0;
-            if (processStats.size() > 0) {
-                // Process CPU time
-                for (Map.Entry<String, ? extends BatteryStats.Uid.Proc> ent
-                        : processStats.entrySet()) {
-                    if (DEBUG) Log.i(TAG, "Process name = " + ent.getKey());
-                    Uid.Proc ps = ent.getValue();
-                    final long userTime = ps.getUserTime(which);
-                    final long systemTime = ps.getSystemTime(which);
-                    final long foregroundTime = ps.getForegroundTime(which);
-                    cpuFgTime += foregroundTime * 10; // convert to millis
-                    final long tmpCpuTime = (userTime + systemTime) * 10; // convert to millis
-                    int totalTimeAtSpeeds = 0;
-                    // Get the total first
-                    for (int step = 0; step < speedSteps; step++) {
-                        cpuSpeedStepTimes[step] = ps.getTimeAtCpuSpeedStep(step, which);
-                        totalTimeAtSpeeds += cpuSpeedStepTimes[step];
-                    }
-                    if (totalTimeAtSpeeds == 0) totalTimeAtSpeeds = 1;
-                    // Then compute the ratio of time spent at each speed
-                    double processPower = 0;
-                    for (int step = 0; step < speedSteps; step++) {
-                        double ratio = (double) cpuSpeedStepTimes[step] / totalTimeAtSpeeds;
-                        processPower += ratio * tmpCpuTime * powerCpuNormal[step];
-                    }
-                    cpuTime += tmpCpuTime;
-                    power += processPower;
-                    if (packageWithHighestDrain == null
-                            || packageWithHighestDrain.startsWith("*")) {
-                        highestDrain = processPower;
-                        packageWithHighestDrain = ent.getKey();
-                    } else if (highestDrain < processPower
-                            && !ent.getKey().startsWith("*")) {
-                        highestDrain = processPower;
-                        packageWithHighestDrain = ent.getKey();
-                    }
-                }
-                if (DEBUG) Log.i(TAG, "Max drain of " + highestDrain 
-                        + " by " + packageWithHighestDrain);
-            }
-            if (cpuFgTime > cpuTime) {
-                if (DEBUG && cpuFgTime > cpuTime + 10000) {
-                    Log.i(TAG, "WARNING! Cputime is more than 10 seconds behind Foreground time");
-                }
-                cpuTime = cpuFgTime; // Statistics may not have been gathered yet.
-            }
-            power /= 1000;
-
-            // Process wake lock usage
-            Map<String, ? extends BatteryStats.Uid.Wakelock> wakelockStats = u.getWakelockStats();
-            for (Map.Entry<String, ? extends BatteryStats.Uid.Wakelock> wakelockEntry
-                    : wakelockStats.entrySet()) {
-                Uid.Wakelock wakelock = wakelockEntry.getValue();
-                // Only care about partial wake locks since full wake locks
-                // are canceled when the user turns the screen off.
-                BatteryStats.Timer timer = wakelock.getWakeTime(BatteryStats.WAKE_TYPE_PARTIAL);
-                if (timer != null) {
-                    wakelockTime += timer.getTotalTimeLocked(uSecTime, which);
-                }
-            }
-            wakelockTime /= 1000; // convert to millis
-            appWakelockTime += wakelockTime;
-
-            // Add cost of holding a wake lock
-            power += (wakelockTime
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_AWAKE)) / 1000;
-            
-            // Add cost of data traffic
-            long tcpBytesReceived = u.getTcpBytesReceived(mStatsType);
-            long tcpBytesSent = u.getTcpBytesSent(mStatsType);
-            power += (tcpBytesReceived+tcpBytesSent) * averageCostPerByte;
-
-            // Add cost of keeping WIFI running.
-            long wifiRunningTimeMs = u.getWifiRunningTime(uSecTime, which) / 1000;
-            mAppWifiRunning += wifiRunningTimeMs;
-            power += (wifiRunningTimeMs
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON)) / 1000;
-
-            // Process Sensor usage
-            Map<Integer, ? extends BatteryStats.Uid.Sensor> sensorStats = u.getSensorStats();
-            for (Map.Entry<Integer, ? extends BatteryStats.Uid.Sensor> sensorEntry
-                    : sensorStats.entrySet()) {
-                Uid.Sensor sensor = sensorEntry.getValue();
-                int sensorType = sensor.getHandle();
-                BatteryStats.Timer timer = sensor.getSensorTime();
-                long sensorTime = timer.getTotalTimeLocked(uSecTime, which) / 1000;
-                double multiplier = 0;
-                switch (sensorType) {
-                    case Uid.Sensor.GPS:
-                        multiplier = mPowerProfile.getAveragePower(PowerProfile.POWER_GPS_ON);
-                        gpsTime = sensorTime;
-                        break;
-                    default:
-                        android.hardware.Sensor sensorData =
-                                sensorManager.getDefaultSensor(sensorType);
-                        if (sensorData != null) {
-                            multiplier = sensorData.getPower();
-                            if (DEBUG) {
-                                Log.i(TAG, "Got sensor " + sensorData.getName() + " with power = "
-                                        + multiplier);
-                            }
-                        }
-                }
-                power += (multiplier * sensorTime) / 1000;
-            }
+    }
 
-            if (DEBUG) Log.i(TAG, "UID " + u.getUid() + ": power=" + power);
-
-            // Add the app to the list if it is consuming power
-            if (power != 0 || u.getUid() == 0) {
-                BatterySipper app = new BatterySipper(getActivity(), mRequestQueue, mHandler,
-                        packageWithHighestDrain, DrainType.APP, 0, u,
-                        new double[] {power});
-                app.cpuTime = cpuTime;
-                app.gpsTime = gpsTime;
-                app.wifiRunningTime = wifiRunningTimeMs;
-                app.cpuFgTime = cpuFgTime;
-                app.wakeLockTime = wakelockTime;
-                app.tcpBytesReceived = tcpBytesReceived;
-                app.tcpBytesSent = tcpBytesSent;
-                if (u.getUid() == Process.WIFI_UID) {
-                    mWifiSippers.add(app);
-                } else if (u.getUid() == Process.BLUETOOTH_GID) {
-                    mBluetoothSippers.add(app);
-                } else {
-                    mUsageList.add(app);
-                }
-                if (u.getUid() == 0) {
-                    osApp = app;
+    /**
+     * Resolves the names and icons of the queued sippers on the worker threads, once
+     * per UID. Sippers of a UID that is already being resolved wait for that result.
+     */
+    private static void requestNameIcons() {
+        synchronized (sRequestQueue) {
+            for (int i = 0; i < sRequestQueue.size(); i++) {
+                final BatterySipper bs = sRequestQueue.get(i);
+                final int uid = bs.uidObj.getUid();
+                ArrayList<BatterySipper> waiting = sPendingUids.get(uid);
+                if (waiting == null) {
+                    waiting = new ArrayList<BatterySipper>();
+                    sPendingUids.put(uid, waiting);
+                    getNameIconExecutor().execute(new Runnable() {
+                        public void run() {
+                            resolveNameIcon(uid, bs);
+                        }
+                    });
                 }
+                waiting.add(bs);
             }
-            if (u.getUid() == Process.WIFI_UID) {
-                mWifiPower += power;
-            } else if (u.getUid() == Process.BLUETOOTH_GID) {
-                mBluetoothPower += power;
-            } else {
-                if (power > mMaxPower) mMaxPower = power;
-                mTotalPower += power;
-            }
-            if (DEBUG) Log.i(TAG, "Added power = " + power);
-        }
-
-        // The device has probably been awake for longer than the screen on
-        // time and application wake lock time would account for.  Assign
-        // this remainder to the OS, if possible.
-        if (osApp != null) {
-            long wakeTimeMillis = mStats.computeBatteryUptime(
-                    SystemClock.uptimeMillis() * 1000, which) / 1000;
-            wakeTimeMillis -= appWakelockTime + (mStats.getScreenOnTime(
-                    SystemClock.elapsedRealtime(), which) / 1000);
-            if (wakeTimeMillis > 0) {
-                double power = (wakeTimeMillis
-                        * mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_AWAKE)) / 1000;
-                if (DEBUG) Log.i(TAG, "OS wakeLockTime " + wakeTimeMillis + " power " + power);
-                osApp.wakeLockTime += wakeTimeMillis;
-                osApp.value += power;
-                osApp.values[0] += power;
-                if (osApp.value > mMaxPower) mMaxPower = osApp.value;
-                mTotalPower += power;
-            }
+            sRequestQueue.clear();
         }
     }
 
-    private void addPhoneUsage(long uSecNow) {
-        long phoneOnTimeMs = mStats.getPhoneOnTime(uSecNow, mStatsType) / 1000;
-        double phoneOnPower = mPowerProfile.getAveragePower(PowerProfile.POWER_RADIO_ACTIVE)
-                * phoneOnTimeMs / 1000;
-        addEntry(getActivity().getString(R.string.power_phone), DrainType.PHONE, phoneOnTimeMs,
-                R.drawable.ic_settings_voice_calls, phoneOnPower);
-    }
-
-    private void addScreenUsage(long uSecNow) {
-        double power = 0;
-        long screenOnTimeMs = mStats.getScreenOnTime(uSecNow, mStatsType) / 1000;
-        power += screenOnTimeMs * mPowerProfile.getAveragePower(PowerProfile.POWER_SCREEN_ON);
-        final double screenFullPower =
-                mPowerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
-        for (int i = 0; i < BatteryStats.NUM_SCREEN_BRIGHTNESS_BINS; i++) {
-            double screenBinPower = screenFullPower * (i + 0.5f)
-                    / BatteryStats.NUM_SCREEN_BRIGHTNESS_BINS;
-            long brightnessTime = mStats.getScreenBrightnessTime(i, uSecNow, mStatsType) / 1000;
-            power += screenBinPower * brightnessTime;
-            if (DEBUG) {
-                Log.i(TAG, "Screen bin power = " + (int) screenBinPower + ", time = "
-                        + brightnessTime);
+    private static void resolveNameIcon(int uid, BatterySipper bs) {
+        bs.getNameIcon();
+        synchronized (sRequestQueue) {
+            final ArrayList<BatterySipper> waiting = sPendingUids.get(uid);
+            sPendingUids.remove(uid);
+            for (int i = 0; i < waiting.size(); i++) {
+                final BatterySipper other = waiting.get(i);
+                if (other != bs) {
+                    other.setNameIcon(bs);
+                }
+            }
+            sResolved.addAll(waiting);
+            if (sPendingUids.size() == 0) {
+                // Everything is resolved, show it now.
+                sHandler.removeMessages(MSG_UPDATE_NAME_ICON);
+                sHandler.sendEmptyMessage(MSG_UPDATE_NAME_ICON);
+            } else if (!sHandler.hasMessages(MSG_UPDATE_NAME_ICON)) {
+                sHandler.sendEmptyMessageDelayed(MSG_UPDATE_NAME_ICON, NAME_ICON_BATCH_DELAY);
             }
         }
-        power /= 1000; // To seconds
-        addEntry(getActivity().getString(R.string.power_screen), DrainType.SCREEN, screenOnTimeMs,
-                R.drawable.ic_settings_display, power);
-    }
-
-    private void addRadioUsage(long uSecNow) {
-        double power = 0;
-        final int BINS = SignalStrength.NUM_SIGNAL_STRENGTH_BINS;
-        long signalTimeMs = 0;
-        for (int i = 0; i < BINS; i++) {
-            long strengthTimeMs = mStats.getPhoneSignalStrengthTime(i, uSecNow, mStatsType) / 1000;
-            power += strengthTimeMs / 1000
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_RADIO_ON, i);
-            signalTimeMs += strengthTimeMs;
-        }
-        long scanningTimeMs = mStats.getPhoneSignalScanningTime(uSecNow, mStatsType) / 1000;
-        power += scanningTimeMs / 1000 * mPowerProfile.getAveragePower(
-                PowerProfile.POWER_RADIO_SCANNING);
-        BatterySipper bs =
-                addEntry(getActivity().getString(R.string.power_cell), DrainType.CELL,
-                        signalTimeMs, R.drawable.ic_settings_cell_standby, power);
-        if (signalTimeMs != 0) {
-            bs.noCoveragePercent = mStats.getPhoneSignalStrengthTime(0, uSecNow, mStatsType)
-                    / 1000 * 100.0 / signalTimeMs;
-        }
-    }
-
-    private void aggregateSippers(BatterySipper bs, List<BatterySipper> from, String tag) {
-        for (int i=0; i<from.size(); i++) {
-            BatterySipper wbs = from.get(i);
-            if (DEBUG) Log.i(TAG, tag + " adding sipper " + wbs + ": cpu=" + wbs.cpuTime);
-            bs.cpuTime += wbs.cpuTime;
-            bs.gpsTime += wbs.gpsTime;
-            bs.wifiRunningTime += wbs.wifiRunningTime;
-            bs.cpuFgTime += wbs.cpuFgTime;
-            bs.wakeLockTime += wbs.wakeLockTime;
-            bs.tcpBytesReceived += wbs.tcpBytesReceived;
-            bs.tcpBytesSent += wbs.tcpBytesSent;
-        }
-    }
-
-    private void addWiFiUsage(long uSecNow) {
-        long onTimeMs = mStats.getWifiOnTime(uSecNow, mStatsType) / 1000;
-        long runningTimeMs = mStats.getGlobalWifiRunningTime(uSecNow, mStatsType) / 1000;
-        if (DEBUG) Log.i(TAG, "WIFI runningTime=" + runningTimeMs
-                + " app runningTime=" + mAppWifiRunning);
-        runningTimeMs -= mAppWifiRunning;
-        if (runningTimeMs < 0) runningTimeMs = 0;
-        double wifiPower = (onTimeMs * 0 /* TODO */
-                * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON)
-            + runningTimeMs * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON)) / 1000;
-        if (DEBUG) Log.i(TAG, "WIFI power=" + wifiPower + " from procs=" + mWifiPower);
-        BatterySipper bs = addEntry(getActivity().getString(R.string.power_wifi), DrainType.WIFI,
-                runningTimeMs, R.drawable.ic_settings_wifi, wifiPower + mWifiPower);
-        aggregateSippers(bs, mWifiSippers, "WIFI");
-    }
-
-    private void addIdleUsage(long uSecNow) {
-        long idleTimeMs = (uSecNow - mStats.getScreenOnTime(uSecNow, mStatsType)) / 1000;
-        double idlePower = (idleTimeMs * mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_IDLE))
-                / 1000;
-        addEntry(getActivity().getString(R.string.power_idle), DrainType.IDLE, idleTimeMs,
-                R.drawable.ic_settings_phone_idle, idlePower);
-    }
-
-    private void addBluetoothUsage(long uSecNow) {
-        long btOnTimeMs = mStats.getBluetoothOnTime(uSecNow, mStatsType) / 1000;
-        double btPower = btOnTimeMs * mPowerProfile.getAveragePower(PowerProfile.POWER_BLUETOOTH_ON)
-                / 1000;
-        int btPingCount = mStats.getBluetoothPingCount();
-        btPower += (btPingCount
-                * mPowerProfile.getAveragePower(PowerProfile.POWER_BLUETOOTH_AT_CMD)) / 1000;
-        BatterySipper bs = addEntry(getActivity().getString(R.string.power_bluetooth),
-                DrainType.BLUETOOTH, btOnTimeMs, R.drawable.ic_settings_bluetooth,
-                btPower + mBluetoothPower);
-        aggregateSippers(bs, mBluetoothSippers, "Bluetooth");
     }
 
-    private double getAverageDataCost() {
-        final long WIFI_BPS = 1000000; // TODO: Extract average bit rates from system 
-        final long MOBILE_BPS = 200000; // TODO: Extract average bit rates from system
-        final double WIFI_POWER = mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ACTIVE)
-                / 3600;
-        final double MOBILE_POWER = mPowerProfile.getAveragePower(PowerProfile.POWER_RADIO_ACTIVE)
-                / 3600;
-        final long mobileData = mStats.getMobileTcpBytesReceived(mStatsType) +
-                mStats.getMobileTcpBytesSent(mStatsType);
-        final long wifiData = mStats.getTotalTcpBytesReceived(mStatsType) +
-                mStats.getTotalTcpBytesSent(mStatsType) - mobileData;
-        final long radioDataUptimeMs = mStats.getRadioDataUptime() / 1000;
-        final long mobileBps = radioDataUptimeMs != 0
-                ? mobileData * 8 * 1000 / radioDataUptimeMs
-                : MOBILE_BPS;
-
-        double mobileCostPerByte = MOBILE_POWER / (mobileBps / 8);
-        double wifiCostPerByte = WIFI_POWER / (WIFI_BPS / 8);
-        if (wifiData + mobileData != 0) {
-            return (mobileCostPerByte * mobileData + wifiCostPerByte * wifiData)
-                    / (mobileData + wifiData);
-        } else {
-            return 0;
+    private static synchronized ExecutorService getNameIconExecutor() {
+        if (sNameIconExecutor == null) {
+            sNameIconExecutor = Executors.newFixedThreadPool(NAME_ICON_THREADS,
+                    new ThreadFactory() {
+                        public Thread newThread(final Runnable r) {
+                            final Thread thread = new Thread(new Runnable() {
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "BatteryUsage Icon Loader");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
         }
+        return sNameIconExecutor;
     }
 
-    private void processMiscUsage() {
-        final int which = mStatsType;
-        long uSecTime = SystemClock.elapsedRealtime() * 1000;
-        final long uSecNow = mStats.computeBatteryRealtime(uSecTime, which);
-        final long timeSinceUnplugged = uSecNow;
-        if (DEBUG) {
-            Log.i(TAG, "Uptime since last unplugged = " + (timeSinceUnplugged / 1000));
-        }
-
-        addPhoneUsage(uSecNow);
-        addScreenUsage(uSecNow);
-        addWiFiUsage(uSecNow);
-        addBluetoothUsage(uSecNow);
-        addIdleUsage(uSecNow); // Not including cellular idle power
-        // Don't compute radio usage if it's a wifi-only device
-        if (!com.android.settings.Utils.isWifiOnly(getActivity())) {
-            addRadioUsage(uSecNow);
-        }
-    }
+    static final int MSG_UPDATE_NAME_ICON = 1;
+    static final int MSG_STATS_LOADED = 2;
 
-    private BatterySipper addEntry(String label, DrainType drainType, long time, int iconId,
-            double power) {
-        if (power > mMaxPower) mMaxPower = power;
-        mTotalPower += power;
-        BatterySipper bs = new BatterySipper(getActivity(), mRequestQueue, mHandler,
-                label, drainType, iconId, null, new double[] {power});
-        bs.usageTime = time;
-        bs.iconId = iconId;
-        mUsageList.add(bs);
-        return bs;
-    }
+    // Sippers outlive the fragment that created them, so batches of resolved names
+    // and icons go to the fragment showing them right now.
+    static final Handler sHandler = new Handler(Looper.getMainLooper()) {
 
-    private void load() {
-        try {
-            byte[] data = mBatteryInfo.getStatistics();
-            Parcel parcel = Parcel.obtain();
-            parcel.unmarshall(data, 0, data.length);
-            parcel.setDataPosition(0);
-            mStats = com.android.internal.os.BatteryStatsImpl.CREATOR
-                    .createFromParcel(parcel);
-            mStats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
-        } catch (RemoteException e) {
-            Log.e(TAG, "RemoteException:", e);
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_UPDATE_NAME_ICON:
+                    final ArrayList<BatterySipper> resolved;
+                    synchronized (sRequestQueue) {
+                        resolved = new ArrayList<BatterySipper>(sResolved);
+                        sResolved.clear();
+                    }
+                    if (sActive != null) {
+                        sActive.updateNameIcons(resolved);
+                    }
+                    break;
+            }
+            super.handleMessage(msg);
         }
-    }
+    };
 
-    public void run() {
-        while (true) {
-            BatterySipper bs;
-            synchronized (mRequestQueue) {
-                if (mRequestQueue.isEmpty() || mAbort) {
-                    mRequestThread = null;
-                    return;
-                }
-                bs = mRequestQueue.remove(0);
+    private void updateNameIcons(ArrayList<BatterySipper> resolved) {
+        for (int i = 0; i < resolved.size(); i++) {
+            final BatterySipper bs = resolved.get(i);
+            PowerGaugePreference pgp =
+                    (PowerGaugePreference) findPreference(Integer.toString(bs.uidObj.getUid()));
+            if (pgp != null && pgp.getInfo() == bs) {
+                pgp.setIcon(bs.icon);
+                pgp.setTitle(bs.name);
             }
-            bs.getNameIcon();
         }
     }
 
-    static final int MSG_UPDATE_NAME_ICON = 1;
-
     Handler mHandler = new Handler() {
 
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MSG_UPDATE_NAME_ICON:
-                    BatterySipper bs = (BatterySipper) msg.obj;
-                    PowerGaugePreference pgp = 
-                            (PowerGaugePreference) findPreference(
-                                    Integer.toString(bs.uidObj.getUid()));
-                    if (pgp != null) {
-                        pgp.setIcon(bs.icon);
-                        pgp.setTitle(bs.name);
-                    }
+                case MSG_STATS_LOADED:
+                    onStatsLoaded((Snapshot) msg.obj);
                     break;
             }
             super.handleMessage(msg);
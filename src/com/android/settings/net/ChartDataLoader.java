@@ -28,7 +28,19 @@ import android.net.INetworkStatsService;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Loader for historical chart data for both network and UID details.
@@ -38,6 +50,67 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private static final String KEY_UIDS = "uids";
     private static final String KEY_FIELDS = "fields";
 
+    /** Number of threads used to fetch UID histories concurrently. */
+    private static final int FETCH_THREADS = 4;
+    /** Number of recent results kept for switching between tabs and cycles. */
+    private static final int CACHE_SIZE = 8;
+    /** Age after which a cached result is loaded again. */
+    private static final long CACHE_MAX_AGE = 30 * 1000;
+
+    private static ExecutorService sFetchExecutor;
+
+    private static final LruCache<CacheKey, CachedChartData> sCache =
+            new LruCache<CacheKey, CachedChartData>(CACHE_SIZE);
+
+    private static class CacheKey {
+        private final NetworkTemplate mTemplate;
+        private final int[] mUids;
+        private final int mFields;
+
+        public CacheKey(NetworkTemplate template, int[] uids, int fields) {
+            mTemplate = template;
+            mUids = uids;
+            mFields = fields;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mTemplate != null ? mTemplate.hashCode() : 0) * 31 * 31
+                    + Arrays.hashCode(mUids) * 31 + mFields;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof CacheKey) {
+                final CacheKey other = (CacheKey) obj;
+                return (mTemplate != null ? mTemplate.equals(other.mTemplate)
+                        : other.mTemplate == null)
+                        && Arrays.equals(mUids, other.mUids) && mFields == other.mFields;
+            }
+            return false;
+        }
+    }
+
+    private static class CachedChartData {
+        final ChartData data;
+        final long bucketDuration;
+        final long loadedAt;
+
+        CachedChartData(ChartData data, long loadedAt) {
+            this.data = data;
+            this.bucketDuration = data.network != null
+                    ? data.network.getBucketDuration() : 0;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * Drop all cached results, for example after stats were reset.
+     */
+    public static void invalidateCache() {
+        sCache.evictAll();
+    }
+
     private final INetworkStatsService mStatsService;
     private final Bundle mArgs;
 
@@ -77,32 +150,168 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
             // since we can't do much without history, and we don't want to
             // leave with half-baked UI, we bail hard.
             throw new RuntimeException("problem reading network stats", e);
+        } catch (InterruptedException e) {
+            // load was abandoned; nothing is cached and null is delivered
+            Thread.currentThread().interrupt();
+            return null;
         }
     }
 
     private ChartData loadInBackground(NetworkTemplate template, int[] uids, int fields)
-            throws RemoteException {
+            throws RemoteException, InterruptedException {
+        final CacheKey key = new CacheKey(template, uids, fields);
+        final long now = SystemClock.elapsedRealtime();
+        final CachedChartData cached = sCache.get(key);
+        if (cached != null && now - cached.loadedAt < CACHE_MAX_AGE) {
+            return cached.data;
+        }
+
         final ChartData data = new ChartData();
         data.network = mStatsService.getHistoryForNetwork(template, fields);
 
         if (uids != null) {
-            data.detailDefault = null;
-            data.detailForeground = null;
-
-            // load stats for current uid and template
-            for (int uid : uids) {
-                data.detailDefault = collectHistoryForUid(
-                        template, uid, SET_DEFAULT, data.detailDefault);
-                data.detailForeground = collectHistoryForUid(
-                        template, uid, SET_FOREGROUND, data.detailForeground);
+            loadDetailBatched(data, template, uids);
+        }
+
+        if (cached != null && cached.bucketDuration != data.network.getBucketDuration()) {
+            // bucket size changed under us; older results are useless
+            sCache.evictAll();
+        }
+        sCache.put(key, new CachedChartData(data, now));
+        return data;
+    }
+
+    /**
+     * Fetch {@code SET_DEFAULT} and {@code SET_FOREGROUND} history for all
+     * requested UIDs concurrently, then merge them into histories sized once
+     * for the total number of buckets.
+     */
+    private void loadDetailBatched(ChartData data, NetworkTemplate template, int[] uids)
+            throws RemoteException, InterruptedException {
+        final NetworkStatsHistory[][] histories = fetchUidHistories(
+                mStatsService, template, uids);
+        final NetworkStatsHistory[] defaultHistory = histories[0];
+        final NetworkStatsHistory[] foregroundHistory = histories[1];
+
+        final long bucketDuration = data.network.getBucketDuration();
+        data.detailDefault = mergeHistory(defaultHistory, bucketDuration);
+        data.detailForeground = mergeHistory(foregroundHistory, bucketDuration);
+
+        final int size = data.detailDefault.size() + data.detailForeground.size();
+        data.detail = new NetworkStatsHistory(
+                data.detailForeground.getBucketDuration(), size);
+        data.detail.recordEntireHistory(data.detailDefault);
+        data.detail.recordEntireHistory(data.detailForeground);
+    }
+
+    /**
+     * Fetch {@code SET_DEFAULT} and {@code SET_FOREGROUND} history of each
+     * UID concurrently on the shared fetch threads.  Returns the default
+     * histories followed by the foreground ones, each in the order of
+     * {@code uids}.
+     */
+    static NetworkStatsHistory[][] fetchUidHistories(INetworkStatsService statsService,
+            NetworkTemplate template, int[] uids) throws RemoteException, InterruptedException {
+        final ArrayList<Future<NetworkStatsHistory>> defaults =
+                new ArrayList<Future<NetworkStatsHistory>>(uids.length);
+        final ArrayList<Future<NetworkStatsHistory>> foregrounds =
+                new ArrayList<Future<NetworkStatsHistory>>(uids.length);
+        final ExecutorService executor = getFetchExecutor();
+        for (int uid : uids) {
+            defaults.add(executor.submit(
+                    newHistoryFetch(statsService, template, uid, SET_DEFAULT)));
+            foregrounds.add(executor.submit(
+                    newHistoryFetch(statsService, template, uid, SET_FOREGROUND)));
+        }
+
+        // collect the second batch even if the first one fails, so that
+        // none of its fetches are left running
+        try {
+            final NetworkStatsHistory[] defaultHistory = collect(defaults);
+            return new NetworkStatsHistory[][] { defaultHistory, collect(foregrounds) };
+        } finally {
+            for (Future<NetworkStatsHistory> future : foregrounds) {
+                future.cancel(true);
             }
+        }
+    }
 
-            data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
-            data.detail.recordEntireHistory(data.detailDefault);
-            data.detail.recordEntireHistory(data.detailForeground);
+    private static Callable<NetworkStatsHistory> newHistoryFetch(
+            final INetworkStatsService statsService, final NetworkTemplate template,
+            final int uid, final int set) {
+        return new Callable<NetworkStatsHistory>() {
+            public NetworkStatsHistory call() throws RemoteException {
+                return statsService.getHistoryForUid(
+                        template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
+            }
+        };
+    }
+
+    /**
+     * Wait for all fetches.  If the waiting thread is interrupted, the
+     * remaining fetches are cancelled and the interrupt is passed on.
+     */
+    private static NetworkStatsHistory[] collect(ArrayList<Future<NetworkStatsHistory>> futures)
+            throws RemoteException, InterruptedException {
+        final NetworkStatsHistory[] result = new NetworkStatsHistory[futures.size()];
+        try {
+            for (int i = 0; i < result.length; i++) {
+                result[i] = futures.get(i).get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<NetworkStatsHistory> future : futures) {
+                future.cancel(true);
+            }
         }
+        return result;
+    }
 
-        return data;
+    /**
+     * Merge the given histories into one allocated up front to hold all of
+     * their buckets.
+     */
+    private static NetworkStatsHistory mergeHistory(
+            NetworkStatsHistory[] histories, long bucketDuration) {
+        if (histories.length == 0) {
+            return new NetworkStatsHistory(bucketDuration, 0);
+        } else if (histories.length == 1) {
+            return histories[0];
+        }
+        int size = 0;
+        for (NetworkStatsHistory history : histories) {
+            size = Math.max(size, history.size());
+        }
+        final NetworkStatsHistory merged = new NetworkStatsHistory(
+                histories[0].getBucketDuration(), size);
+        for (NetworkStatsHistory history : histories) {
+            merged.recordEntireHistory(history);
+        }
+        return merged;
+    }
+
+    private static synchronized ExecutorService getFetchExecutor() {
+        if (sFetchExecutor == null) {
+            sFetchExecutor = Executors.newFixedThreadPool(FETCH_THREADS,
+                    new ThreadFactory() {
+                        public Thread newThread(final Runnable r) {
+                            final Thread thread = new Thread(new Runnable() {
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "ChartDataFetch");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sFetchExecutor;
     }
 
     @Override
@@ -116,22 +325,4 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         super.onReset();
         cancelLoad();
     }
-
-    /**
-     * Collect {@link NetworkStatsHistory} for the requested UID, combining with
-     * an existing {@link NetworkStatsHistory} if provided.
-     */
-    private NetworkStatsHistory collectHistoryForUid(
-            NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
-            throws RemoteException {
-        final NetworkStatsHistory history = mStatsService.getHistoryForUid(
-                template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
-
-        if (existing != null) {
-            existing.recordEntireHistory(history);
-            return existing;
-        } else {
-            return history;
-        }
-    }
 }
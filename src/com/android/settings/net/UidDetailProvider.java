@@ -16,7 +16,10 @@
 
 package com.android.settings.net;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -24,36 +27,247 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.net.ConnectivityManager;
 import android.net.TrafficStats;
+import android.os.Process;
 import android.text.TextUtils;
-import android.util.SparseArray;
+import android.util.Log;
+import android.util.LruCache;
 
+import com.android.settings.AppIconCache;
 import com.android.settings.R;
 import com.android.settings.Utils;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves and caches {@link UidDetail} for UIDs.  The cache is bounded and
+ * split into independently locked stripes, and lookups run outside of any
+ * lock, so a slow {@link PackageManager} query for one UID never holds up
+ * callers asking for another.  Cached details are dropped when packages
+ * are added, removed or changed.
+ */
 public class UidDetailProvider {
+    private static final String TAG = "UidDetailProvider";
+
+    /** Maximum number of cached details, across all stripes. */
+    private static final int CACHE_SIZE = 256;
+    /** Number of stripes; must be a power of two. */
+    private static final int STRIPES = 8;
+    /** Number of threads resolving details for {@link #prefetch(int[])}. */
+    private static final int PREFETCH_THREADS = 3;
+
+    private static ExecutorService sPrefetchExecutor;
+
     private final Context mContext;
-    private final SparseArray<UidDetail> mUidDetailCache;
+    private final LruCache<Integer, UidDetail>[] mStripes;
+    /** Lookups queued or running, so each UID is only resolved once at a time. */
+    private final ConcurrentHashMap<Integer, Lookup> mPending
+            = new ConcurrentHashMap<Integer, Lookup>();
+    /**
+     * Bumped whenever cached details are dropped, so lookups that started
+     * before do not put what they read back into the cache.
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private boolean mReceiverRegistered;
 
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                final int[] uids = intent.getIntArrayExtra(Intent.EXTRA_CHANGED_UID_LIST);
+                if (uids != null) {
+                    for (int uid : uids) {
+                        invalidate(uid);
+                    }
+                }
+            } else {
+                final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+                if (uid != -1) {
+                    invalidate(uid);
+                }
+            }
+        }
+    };
+
+    @SuppressWarnings("unchecked")
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
-        mUidDetailCache = new SparseArray<UidDetail>();
+        mStripes = new LruCache[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            mStripes[i] = new LruCache<Integer, UidDetail>(CACHE_SIZE / STRIPES);
+        }
+
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, filter);
+        final IntentFilter sdFilter = new IntentFilter();
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        mContext.registerReceiver(mPackageReceiver, sdFilter);
+        mReceiverRegistered = true;
     }
 
-    public synchronized void clearCache() {
-        mUidDetailCache.clear();
+    private LruCache<Integer, UidDetail> stripeFor(int uid) {
+        return mStripes[uid & (STRIPES - 1)];
+    }
+
+    public void clearCache() {
+        mPending.clear();
+        for (int i = 0; i < STRIPES; i++) {
+            synchronized (mStripes[i]) {
+                mGeneration.incrementAndGet();
+                mStripes[i].evictAll();
+            }
+        }
+    }
+
+    /**
+     * Clear the cache and stop listening for package changes.
+     */
+    public void release() {
+        clearCache();
+        if (mReceiverRegistered) {
+            mContext.unregisterReceiver(mPackageReceiver);
+            mReceiverRegistered = false;
+        }
+    }
+
+    /**
+     * Drop any cached detail for the given UID.
+     */
+    public void invalidate(int uid) {
+        // Later callers start a new lookup rather than join one that may
+        // have read the old package state.
+        mPending.remove(uid);
+        final LruCache<Integer, UidDetail> stripe = stripeFor(uid);
+        synchronized (stripe) {
+            mGeneration.incrementAndGet();
+            stripe.remove(uid);
+        }
+    }
+
+    /**
+     * Resolve details for the given UIDs in parallel on background threads,
+     * so they are cached by the time their rows are shown.  UIDs that are
+     * cached or already queued are skipped.
+     */
+    public void prefetch(int[] uids) {
+        if (uids == null) return;
+        final ExecutorService executor = getPrefetchExecutor();
+        for (final int uid : uids) {
+            if (stripeFor(uid).get(uid) != null) {
+                continue;
+            }
+            final Lookup lookup = new Lookup(uid);
+            if (mPending.putIfAbsent(uid, lookup) == null) {
+                executor.execute(lookup);
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getPrefetchExecutor() {
+        if (sPrefetchExecutor == null) {
+            sPrefetchExecutor = Executors.newFixedThreadPool(PREFETCH_THREADS,
+                    new ThreadFactory() {
+                        public Thread newThread(final Runnable r) {
+                            final Thread thread = new Thread(new Runnable() {
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "UidDetailPrefetch");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sPrefetchExecutor;
     }
 
     /**
      * Resolve best descriptive label for the given UID.
      */
-    public synchronized UidDetail getUidDetail(int uid, boolean blocking) {
-        final UidDetail cached = mUidDetailCache.get(uid);
+    public UidDetail getUidDetail(final int uid, boolean blocking) {
+        final LruCache<Integer, UidDetail> stripe = stripeFor(uid);
+        final UidDetail cached = stripe.get(uid);
         if (cached != null) {
             return cached;
         } else if (!blocking) {
             return null;
         }
 
+        // Share a lookup already in flight for this UID, if any.  Running
+        // it here does nothing if it has started already, and otherwise
+        // saves waiting for it to come up in the prefetch queue.
+        Lookup lookup = new Lookup(uid);
+        final Lookup existing = mPending.putIfAbsent(uid, lookup);
+        if (existing != null) {
+            lookup = existing;
+        }
+        lookup.run();
+
+        try {
+            return lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return buildUidDetail(uid);
+        } catch (ExecutionException e) {
+            Log.w(TAG, "problem resolving uid " + uid, e);
+            return buildUidDetail(uid);
+        }
+    }
+
+    /**
+     * Resolves the detail of one UID and caches it, unless cached details
+     * were dropped while it was running.
+     */
+    private class Lookup extends FutureTask<UidDetail> {
+        private final int mUid;
+        private final int mStartGeneration;
+
+        Lookup(final int uid) {
+            super(new Callable<UidDetail>() {
+                public UidDetail call() {
+                    return buildUidDetail(uid);
+                }
+            });
+            mUid = uid;
+            mStartGeneration = mGeneration.get();
+        }
+
+        @Override
+        protected void done() {
+            if (!isCancelled()) {
+                try {
+                    final UidDetail detail = get();
+                    final LruCache<Integer, UidDetail> stripe = stripeFor(mUid);
+                    synchronized (stripe) {
+                        if (mGeneration.get() == mStartGeneration) {
+                            stripe.put(mUid, detail);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Cannot happen once done
+                } catch (ExecutionException e) {
+                    // Reported to whoever is waiting for it
+                }
+            }
+            mPending.remove(mUid, this);
+        }
+    }
+
+    private UidDetail buildUidDetail(int uid) {
         final Resources res = mContext.getResources();
         final PackageManager pm = mContext.getPackageManager();
 
@@ -66,19 +280,16 @@ public class UidDetailProvider {
             case android.os.Process.SYSTEM_UID:
                 detail.label = res.getString(R.string.process_kernel_label);
                 detail.icon = pm.getDefaultActivityIcon();
-                mUidDetailCache.put(uid, detail);
                 return detail;
             case TrafficStats.UID_REMOVED:
                 detail.label = res.getString(R.string.data_usage_uninstalled_apps);
                 detail.icon = pm.getDefaultActivityIcon();
-                mUidDetailCache.put(uid, detail);
                 return detail;
             case TrafficStats.UID_TETHERING:
                 final ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(
                         Context.CONNECTIVITY_SERVICE);
                 detail.label = res.getString(Utils.getTetheringLabel(cm));
                 detail.icon = pm.getDefaultActivityIcon();
-                mUidDetailCache.put(uid, detail);
                 return detail;
         }
 
@@ -90,7 +301,7 @@ public class UidDetailProvider {
             if (length == 1) {
                 final ApplicationInfo info = pm.getApplicationInfo(packageNames[0], 0);
                 detail.label = info.loadLabel(pm).toString();
-                detail.icon = info.loadIcon(pm);
+                detail.icon = AppIconCache.getInstance(mContext).getIcon(info);
             } else if (length > 1) {
                 detail.detailLabels = new CharSequence[length];
                 for (int i = 0; i < length; i++) {
@@ -102,7 +313,7 @@ public class UidDetailProvider {
                     if (packageInfo.sharedUserLabel != 0) {
                         detail.label = pm.getText(packageName, packageInfo.sharedUserLabel,
                                 packageInfo.applicationInfo).toString();
-                        detail.icon = appInfo.loadIcon(pm);
+                        detail.icon = AppIconCache.getInstance(mContext).getIcon(appInfo);
                     }
                 }
             }
@@ -113,7 +324,6 @@ public class UidDetailProvider {
             detail.label = Integer.toString(uid);
         }
 
-        mUidDetailCache.put(uid, detail);
         return detail;
     }
 }
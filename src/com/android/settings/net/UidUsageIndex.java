@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.IFACE_ALL;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.SystemClock;
+
+import com.android.internal.util.Objects;
+
+/**
+ * Cumulative per-UID usage over the buckets of one cycle, answering the
+ * total of any range inside the cycle in constant time per UID. Lets the
+ * inspection range move without asking {@link android.net.INetworkStatsService}
+ * for a new summary.
+ */
+public class UidUsageIndex {
+    private final NetworkTemplate mTemplate;
+    private final long mStart;
+    private final long mEnd;
+
+    private final int[] mUids;
+    private final long mBucketDuration;
+    private final long mFirstBucketStart;
+    private final int mBucketCount;
+
+    /** Per UID, bytes of all buckets before each bucket; one longer than bucket count. */
+    private final long[][] mRxCumulative;
+    private final long[][] mTxCumulative;
+
+    /**
+     * Build index from the histories of each UID, which are summed. All
+     * histories are expected to share the bucket duration of the UID stats.
+     */
+    public UidUsageIndex(NetworkTemplate template, long start, long end, int[] uids,
+            NetworkStatsHistory[][] histories) {
+        mTemplate = template;
+        mStart = start;
+        mEnd = end;
+        mUids = uids;
+
+        long bucketDuration = 0;
+        for (NetworkStatsHistory[] uidHistories : histories) {
+            for (NetworkStatsHistory history : uidHistories) {
+                if (history != null && history.size() > 0) {
+                    bucketDuration = history.getBucketDuration();
+                    break;
+                }
+            }
+            if (bucketDuration > 0) break;
+        }
+        mBucketDuration = bucketDuration;
+
+        if (bucketDuration > 0 && end > start) {
+            mFirstBucketStart = (start / bucketDuration) * bucketDuration;
+            mBucketCount = (int) ((end - mFirstBucketStart + bucketDuration - 1)
+                    / bucketDuration);
+        } else {
+            mFirstBucketStart = start;
+            mBucketCount = 0;
+        }
+
+        mRxCumulative = new long[uids.length][];
+        mTxCumulative = new long[uids.length][];
+
+        NetworkStatsHistory.Entry entry = null;
+        for (int u = 0; u < uids.length; u++) {
+            final long[] rx = new long[mBucketCount + 1];
+            final long[] tx = new long[mBucketCount + 1];
+
+            // collect bucket values at their offset, then accumulate
+            for (NetworkStatsHistory history : histories[u]) {
+                if (history == null) continue;
+                final int size = history.size();
+                for (int i = 0; i < size; i++) {
+                    entry = history.getValues(i, entry);
+                    final long offset = entry.bucketStart - mFirstBucketStart;
+                    if (offset < 0) continue;
+                    final long bucket = offset / bucketDuration;
+                    if (bucket >= mBucketCount) break;
+                    rx[(int) bucket + 1] += entry.rxBytes;
+                    tx[(int) bucket + 1] += entry.txBytes;
+                }
+            }
+            for (int i = 0; i < mBucketCount; i++) {
+                rx[i + 1] += rx[i];
+                tx[i + 1] += tx[i];
+            }
+
+            mRxCumulative[u] = rx;
+            mTxCumulative[u] = tx;
+        }
+    }
+
+    /**
+     * Check if this index was built for the given template and covers the
+     * requested range.
+     */
+    public boolean covers(NetworkTemplate template, long start, long end) {
+        return Objects.equal(mTemplate, template) && start >= mStart && end <= mEnd;
+    }
+
+    public int size() {
+        return mUids.length;
+    }
+
+    public int getUid(int index) {
+        return mUids[index];
+    }
+
+    public long getRxBytes(int index, long start, long end, long now) {
+        return getTotal(mRxCumulative[index], start, end, now);
+    }
+
+    public long getTxBytes(int index, long start, long end, long now) {
+        return getTotal(mTxCumulative[index], start, end, now);
+    }
+
+    /**
+     * Return per-UID totals between the requested times, shaped like the
+     * summary returned by {@link android.net.INetworkStatsService}.
+     */
+    public NetworkStats getSummary(long start, long end, long now) {
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), mUids.length);
+        for (int u = 0; u < mUids.length; u++) {
+            final long rxBytes = getRxBytes(u, start, end, now);
+            final long txBytes = getTxBytes(u, start, end, now);
+            if (rxBytes > 0 || txBytes > 0) {
+                stats.addValues(IFACE_ALL, mUids[u], SET_DEFAULT, TAG_NONE, rxBytes, 0L,
+                        txBytes, 0L, 0L);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Sum buckets between the requested times from cumulative values,
+     * counting partially covered buckets in proportion to their overlap,
+     * except for the active bucket, matching
+     * {@link NetworkStatsHistory#getValues(long, long, long, NetworkStatsHistory.Entry)}.
+     */
+    private long getTotal(long[] cumulative, long start, long end, long now) {
+        if (mBucketCount == 0 || end <= start) return 0;
+
+        final long duration = mBucketDuration;
+        final int first = (int) Math.max(0, (start - mFirstBucketStart) / duration);
+        final int last = (int) Math.min(mBucketCount - 1,
+                (end - 1 - mFirstBucketStart) / duration);
+        if (end <= mFirstBucketStart || first > last) return 0;
+
+        long total = cumulative[last + 1] - cumulative[first];
+
+        final long firstStart = mFirstBucketStart + first * duration;
+        if (start > firstStart && !isActive(firstStart, now)) {
+            final long value = cumulative[first + 1] - cumulative[first];
+            total -= value * (start - firstStart) / duration;
+        }
+
+        final long lastEnd = mFirstBucketStart + (last + 1) * duration;
+        if (end < lastEnd && !isActive(lastEnd - duration, now)) {
+            final long value = cumulative[last + 1] - cumulative[last];
+            total -= value * (lastEnd - end) / duration;
+        }
+
+        return total;
+    }
+
+    private boolean isActive(long bucketStart, long now) {
+        return bucketStart < now && bucketStart + mBucketDuration > now;
+    }
+}
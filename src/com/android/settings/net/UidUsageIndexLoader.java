@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.net.INetworkStatsService;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.SparseBooleanArray;
+
+/**
+ * Loader for {@link UidUsageIndex} of a whole cycle, fetching the history of
+ * every UID with usage during the cycle.
+ */
+public class UidUsageIndexLoader extends AsyncTaskLoader<UidUsageIndex> {
+    private static final String KEY_TEMPLATE = "template";
+    private static final String KEY_START = "start";
+    private static final String KEY_END = "end";
+
+    private final INetworkStatsService mStatsService;
+    private final Bundle mArgs;
+
+    public static Bundle buildArgs(NetworkTemplate template, long start, long end) {
+        final Bundle args = new Bundle();
+        args.putParcelable(KEY_TEMPLATE, template);
+        args.putLong(KEY_START, start);
+        args.putLong(KEY_END, end);
+        return args;
+    }
+
+    public UidUsageIndexLoader(
+            Context context, INetworkStatsService statsService, Bundle args) {
+        super(context);
+        mStatsService = statsService;
+        mArgs = args;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+        forceLoad();
+    }
+
+    @Override
+    public UidUsageIndex loadInBackground() {
+        final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
+        final long start = mArgs.getLong(KEY_START);
+        final long end = mArgs.getLong(KEY_END);
+
+        try {
+            return loadInBackground(template, start, end);
+        } catch (RemoteException e) {
+            return null;
+        } catch (InterruptedException e) {
+            // load was abandoned
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private UidUsageIndex loadInBackground(NetworkTemplate template, long start, long end)
+            throws RemoteException, InterruptedException {
+        final NetworkStats summary = mStatsService.getSummaryForAllUid(
+                template, start, end, false);
+
+        // each UID once, in ascending order
+        final SparseBooleanArray known = new SparseBooleanArray();
+        NetworkStats.Entry entry = null;
+        final int size = summary != null ? summary.size() : 0;
+        for (int i = 0; i < size; i++) {
+            entry = summary.getValues(i, entry);
+            known.put(entry.uid, true);
+        }
+        final int[] uids = new int[known.size()];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = known.keyAt(i);
+        }
+
+        final NetworkStatsHistory[][] fetched = ChartDataLoader.fetchUidHistories(
+                mStatsService, template, uids);
+        final NetworkStatsHistory[] defaultHistory = fetched[0];
+        final NetworkStatsHistory[] foregroundHistory = fetched[1];
+
+        final NetworkStatsHistory[][] histories = new NetworkStatsHistory[uids.length][];
+        for (int i = 0; i < uids.length; i++) {
+            histories[i] = new NetworkStatsHistory[] { defaultHistory[i], foregroundHistory[i] };
+        }
+        return new UidUsageIndex(template, start, end, uids, histories);
+    }
+
+    @Override
+    protected void onStopLoading() {
+        super.onStopLoading();
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        cancelLoad();
+    }
+}
@@ -16,12 +16,15 @@
 
 package com.android.settings.quicklaunch;
 
+import com.android.settings.AppIconCache;
+import com.android.settings.LauncherActivityCatalog;
+import com.android.settings.LauncherActivityCatalog.ActivityEntry;
 import com.android.settings.R;
 
 import android.app.ListActivity;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
-import android.content.pm.PackageManager;
+import android.content.pm.PackageItemInfo;
 import android.content.pm.ResolveInfo;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
@@ -34,7 +37,6 @@ import android.widget.ListView;
 import android.widget.SimpleAdapter;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -47,7 +49,8 @@ import java.util.TreeMap;
  * <li> Activities that are within an app that is capable of being launched with
  * the {@link Intent#ACTION_CREATE_SHORTCUT}.
  */
-public class BookmarkPicker extends ListActivity implements SimpleAdapter.ViewBinder {
+public class BookmarkPicker extends ListActivity implements SimpleAdapter.ViewBinder,
+        LauncherActivityCatalog.Callback, AppIconCache.Callback {
 
     private static final String TAG = "BookmarkPicker";
 
@@ -64,17 +67,14 @@ public class BookmarkPicker extends ListActivity implements SimpleAdapter.ViewBi
      */
     private static final int REQUEST_CREATE_SHORTCUT = 1;
 
-    /** Intent used to get all the activities that are launch-able */
-    private static Intent sLaunchIntent;
-    /** Intent used to get all the activities that are {@link #REQUEST_CREATE_SHORTCUT}-able */
-    private static Intent sShortcutIntent;
-    
     /**
-     * List of ResolveInfo for activities that we can bookmark (either directly
-     * to the activity, or by launching the activity and it returning a bookmark
-     * WITHIN that application).
+     * List of activities that we can bookmark (either directly to the
+     * activity, or by launching the activity and it returning a bookmark
+     * WITHIN that application), shared with other pickers.
      */
-    private List<ResolveInfo> mResolveList;
+    private List<ActivityEntry> mEntryList;
+    private LauncherActivityCatalog mCatalog;
+    private AppIconCache mIconCache;
     
     // List adapter stuff
     private static final String KEY_TITLE = "TITLE";
@@ -90,13 +90,47 @@ public class BookmarkPicker extends ListActivity implements SimpleAdapter.ViewBi
     private int mDisplayMode = DISPLAY_MODE_LAUNCH;
     
     private Handler mUiHandler = new Handler();
+
+    /** Rebinds rows once for a burst of loaded icons. */
+    private final Runnable mRebindIcons = new Runnable() {
+        public void run() {
+            if (mMyAdapter != null) {
+                mMyAdapter.notifyDataSetChanged();
+            }
+        }
+    };
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        mCatalog = LauncherActivityCatalog.getInstance(this);
+        mIconCache = AppIconCache.getInstance(this);
+        mCatalog.registerCallback(this);
+        updateListAndAdapter();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mCatalog.unregisterCallback(this);
+        mUiHandler.removeCallbacks(mRebindIcons);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onCatalogChanged() {
         updateListAndAdapter();
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void onIconLoaded(PackageItemInfo info, Drawable icon) {
+        mUiHandler.removeCallbacks(mRebindIcons);
+        mUiHandler.post(mRebindIcons);
+    }
     
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -135,72 +169,29 @@ public class BookmarkPicker extends ListActivity implements SimpleAdapter.ViewBi
         return true;
     }
 
-    private void ensureIntents() {
-        if (sLaunchIntent == null) {
-            sLaunchIntent = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER);
-            sShortcutIntent = new Intent(Intent.ACTION_CREATE_SHORTCUT);
-        }
-    }
-
     /**
-     * This should be called from the UI thread.
+     * This should be called from the UI thread. Does nothing until the
+     * catalog has loaded the list; it calls back when it has.
      */
     private void updateListAndAdapter() {
-        // Get the activities in a separate thread
-        new Thread("data updater") {
-            @Override
-            public void run() {
-                synchronized (BookmarkPicker.this) {
-                    /*
-                     * Don't touch any of the lists that are being used by the
-                     * adapter in this thread!
-                     */
-                    ArrayList<ResolveInfo> newResolveList = new ArrayList<ResolveInfo>();
-                    ArrayList<Map<String, ?>> newAdapterList = new ArrayList<Map<String, ?>>();
-
-                    fillResolveList(newResolveList);
-                    Collections.sort(newResolveList,
-                            new ResolveInfo.DisplayNameComparator(getPackageManager()));
-                    
-                    fillAdapterList(newAdapterList, newResolveList);
-                    
-                    updateAdapterToUseNewLists(newAdapterList, newResolveList);
-                }
-            }
-        }.start();  
-    }
-    
-    private void updateAdapterToUseNewLists(final ArrayList<Map<String, ?>> newAdapterList,
-            final ArrayList<ResolveInfo> newResolveList) {
-        // Post this back on the UI thread
-        mUiHandler.post(new Runnable() {
-            public void run() {
-                /*
-                 * SimpleAdapter does not support changing the lists after it
-                 * has been created. We just create a new instance.
-                 */
-                mMyAdapter = createResolveAdapter(newAdapterList);
-                mResolveList = newResolveList;
-                setListAdapter(mMyAdapter);
-            }
-        });
-    }
-    
-    /**
-     * Gets all activities matching our current display mode.
-     * 
-     * @param list The list to fill.
-     */
-    private void fillResolveList(List<ResolveInfo> list) {
-        ensureIntents();
-        PackageManager pm = getPackageManager();
-        list.clear();
-        
-        if (mDisplayMode == DISPLAY_MODE_LAUNCH) {
-            list.addAll(pm.queryIntentActivities(sLaunchIntent, 0));
-        } else if (mDisplayMode == DISPLAY_MODE_SHORTCUT) {
-            list.addAll(pm.queryIntentActivities(sShortcutIntent, 0)); 
+        final List<ActivityEntry> entries = mCatalog.getActivities(
+                mDisplayMode == DISPLAY_MODE_SHORTCUT
+                        ? LauncherActivityCatalog.LIST_SHORTCUTS
+                        : LauncherActivityCatalog.LIST_LAUNCHER);
+        if (entries == null || entries == mEntryList) {
+            return;
         }
+
+        ArrayList<Map<String, ?>> newAdapterList = new ArrayList<Map<String, ?>>();
+        fillAdapterList(newAdapterList, entries);
+
+        /*
+         * SimpleAdapter does not support changing the lists after it
+         * has been created. We just create a new instance.
+         */
+        mMyAdapter = createResolveAdapter(newAdapterList);
+        mEntryList = entries;
+        setListAdapter(mMyAdapter);
     }
     
     private SimpleAdapter createResolveAdapter(List<Map<String, ?>> list) {
@@ -211,11 +202,11 @@ public class BookmarkPicker extends ListActivity implements SimpleAdapter.ViewBi
     }
 
     private void fillAdapterList(List<Map<String, ?>> list,
-            List<ResolveInfo> resolveList) {
+            List<ActivityEntry> entryList) {
         list.clear();
-        int resolveListSize = resolveList.size();
-        for (int i = 0; i < resolveListSize; i++) {
-            ResolveInfo info = resolveList.get(i);
+        int entryListSize = entryList.size();
+        for (int i = 0; i < entryListSize; i++) {
+            ActivityEntry entry = entryList.get(i);
             /*
              * Simple adapter craziness. For each item, we need to create a map
              * from a key to its value (the value can be any object--the view
@@ -223,24 +214,18 @@ public class BookmarkPicker extends ListActivity implements SimpleAdapter.ViewBi
              * of that object).
              */
             Map<String, Object> map = new TreeMap<String, Object>();
-            map.put(KEY_TITLE, getResolveInfoTitle(info));
-            map.put(KEY_RESOLVE_INFO, info);
+            map.put(KEY_TITLE, entry.label);
+            map.put(KEY_RESOLVE_INFO, entry.resolveInfo);
             list.add(map);
         }
     }
 
-    /** Get the title for a resolve info. */
-    private String getResolveInfoTitle(ResolveInfo info) {
-        CharSequence label = info.loadLabel(getPackageManager());
-        if (label == null) label = info.activityInfo.name;
-        return label != null ? label.toString() : null;
-    }
-
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
-        if (position >= mResolveList.size()) return;
+        if (mEntryList == null || position >= mEntryList.size()) return;
 
-        ResolveInfo info = mResolveList.get(position);
+        ActivityEntry entry = mEntryList.get(position);
+        ResolveInfo info = entry.resolveInfo;
         
         switch (mDisplayMode) {
 
@@ -248,7 +233,7 @@ public class BookmarkPicker extends ListActivity implements SimpleAdapter.ViewBi
                 // We can go ahead and return the clicked info's intent
                 Intent intent = getIntentForResolveInfo(info, Intent.ACTION_MAIN);
                 intent.addCategory(Intent.CATEGORY_LAUNCHER);
-                finish(intent, getResolveInfoTitle(info));
+                finish(intent, entry.label);
                 break;
 
             case DISPLAY_MODE_SHORTCUT:
@@ -318,10 +303,9 @@ public class BookmarkPicker extends ListActivity implements SimpleAdapter.ViewBi
      */
     public boolean setViewValue(View view, Object data, String textRepresentation) {
         if (view.getId() == R.id.icon) {
-            Drawable icon = ((ResolveInfo) data).loadIcon(getPackageManager());
-            if (icon != null) {
-                ((ImageView) view).setImageDrawable(icon);
-            }
+            // Loaded in the background; rows are rebound when it arrives
+            Drawable icon = mIconCache.getIconAsync(((ResolveInfo) data).activityInfo, true, this);
+            ((ImageView) view).setImageDrawable(icon);
             return true;
         } else {
             return false;
@@ -18,19 +18,27 @@ package com.android.settings.quicklaunch;
 
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceGroup;
 import android.preference.PreferenceScreen;
 import android.provider.Settings.Bookmarks;
+import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
@@ -42,6 +50,7 @@ import android.widget.AdapterView;
 import com.android.settings.R;
 
 import java.net.URISyntaxException;
+import java.util.HashMap;
 
 /**
  * Settings activity for quick launch.
@@ -71,12 +80,13 @@ public class QuickLaunchSettings extends PreferenceActivity implements
     private Handler mUiHandler = new Handler();
     
     private static final String DEFAULT_BOOKMARK_FOLDER = "@quicklaunch";
-    /** Cursor for Bookmarks provider. */
-    private Cursor mBookmarksCursor;
+    /** Queries bookmarks and resolves their titles off the UI thread. */
+    private HandlerThread mLoaderThread;
+    private LoaderHandler mLoaderHandler;
     /** Listens for changes to Bookmarks provider. */
     private BookmarksObserver mBookmarksObserver;
-    /** Used to keep track of which shortcuts have bookmarks. */
-    private SparseBooleanArray mBookmarkedShortcuts;
+    /** Bookmark title currently shown for each bookmarked shortcut. */
+    private SparseArray<CharSequence> mBookmarkTitles;
     
     /** Preference category to hold the shortcut preferences. */
     private PreferenceGroup mShortcutGroup;
@@ -100,8 +110,22 @@ public class QuickLaunchSettings extends PreferenceActivity implements
         mShortcutToPreference = new SparseArray<ShortcutPreference>();
         mBookmarksObserver = new BookmarksObserver(mUiHandler);
         initShortcutPreferences();
-        mBookmarksCursor = managedQuery(Bookmarks.CONTENT_URI, sProjection, null, null);
         getListView().setOnItemLongClickListener(this);
+
+        mLoaderThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mLoaderThread.start();
+        mLoaderHandler = new LoaderHandler(mLoaderThread.getLooper());
+
+        // Resolved titles depend on the installed packages and the locale
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        registerReceiver(mPackageReceiver, filter);
+        filter = new IntentFilter(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        registerReceiver(mPackageReceiver, filter);
     }
 
     @Override
@@ -118,6 +142,15 @@ public class QuickLaunchSettings extends PreferenceActivity implements
         getContentResolver().unregisterContentObserver(mBookmarksObserver);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        unregisterReceiver(mPackageReceiver);
+        mLoaderHandler.removeCallbacksAndMessages(null);
+        mLoaderThread.quit();
+        mUiHandler.removeCallbacksAndMessages(null);
+    }
+
     @Override
     protected void onRestoreInstanceState(Bundle state) {
         super.onRestoreInstanceState(state);
@@ -254,6 +287,8 @@ public class QuickLaunchSettings extends PreferenceActivity implements
     
     private ShortcutPreference createPreference(char shortcut) {
         ShortcutPreference pref = new ShortcutPreference(QuickLaunchSettings.this, shortcut);
+        // Only shown once the shortcut has a bookmark, and never changes
+        pref.setSummary(getString(R.string.quick_launch_shortcut, String.valueOf(shortcut)));
         mShortcutGroup.addPreference(pref);
         mShortcutToPreference.put(shortcut, pref);
         return pref;
@@ -279,79 +314,146 @@ public class QuickLaunchSettings extends PreferenceActivity implements
         }
     }
     
-    private synchronized void refreshShortcuts() {
-        Cursor c = mBookmarksCursor;
-        if (c == null) {
-            // Haven't finished querying yet
-            return;
+    /** Reload the bookmarks in the background; the preferences update when done. */
+    private void refreshShortcuts() {
+        // A reload that has not started yet will see this change too
+        mLoaderHandler.removeMessages(LoaderHandler.MSG_LOAD);
+        mLoaderHandler.sendEmptyMessage(LoaderHandler.MSG_LOAD);
+    }
+
+    /**
+     * Update the preferences of the shortcuts whose bookmark was added,
+     * removed or retitled since the last load. Called on the UI thread.
+     */
+    private void applyBookmarks(SparseArray<CharSequence> titles) {
+        final SparseArray<CharSequence> oldTitles = mBookmarkTitles;
+
+        for (int i = 0; i < titles.size(); i++) {
+            char shortcut = (char) titles.keyAt(i);
+            CharSequence title = titles.valueAt(i);
+            if (oldTitles != null && oldTitles.indexOfKey(shortcut) >= 0
+                    && TextUtils.equals(oldTitles.get(shortcut), title)) {
+                // Unchanged
+                continue;
+            }
+
+            ShortcutPreference pref = getOrCreatePreference(shortcut);
+            pref.setTitle(title);
+            pref.setHasBookmark(true);
         }
-        
-        if (!c.requery()) {
-            Log.e(TAG, "Could not requery cursor when refreshing shortcuts.");
-            return;
+
+        if (oldTitles != null) {
+            for (int i = oldTitles.size() - 1; i >= 0; i--) {
+                char shortcut = (char) oldTitles.keyAt(i);
+                if (titles.indexOfKey(shortcut) < 0) {
+                    // There is no longer a bookmark for this shortcut
+                    ShortcutPreference pref = mShortcutToPreference.get(shortcut);
+                    if (pref != null) {
+                        pref.setHasBookmark(false);
+                    }
+                }
+            }
         }
-        
+
+        mBookmarkTitles = titles;
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mLoaderHandler.sendEmptyMessage(LoaderHandler.MSG_INVALIDATE_TITLES);
+            refreshShortcuts();
+        }
+    };
+
+    private class LoaderHandler extends Handler {
+        static final int MSG_LOAD = 1;
+        static final int MSG_INVALIDATE_TITLES = 2;
+
         /**
-         * We use the previous bookmarked shortcuts array to filter out those
-         * shortcuts that had bookmarks before this method call, and don't after
-         * (so we can set the preferences to be without bookmarks).
+         * Localized title of each bookmark intent URI. Resolving an intent and
+         * loading its label is the slow part of a load, and most loads are
+         * caused by a single bookmark changing.
          */
-        SparseBooleanArray noLongerBookmarkedShortcuts = mBookmarkedShortcuts;
-        SparseBooleanArray newBookmarkedShortcuts = new SparseBooleanArray(); 
-        while (c.moveToNext()) {
-            char shortcut = Character.toLowerCase((char) c.getInt(COLUMN_SHORTCUT));
-            if (shortcut == 0) continue;
-            
-            ShortcutPreference pref = getOrCreatePreference(shortcut);
-            CharSequence title = Bookmarks.getTitle(this, c);
+        private final HashMap<String, CharSequence> mTitleCache =
+                new HashMap<String, CharSequence>();
+
+        LoaderHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_LOAD:
+                    final SparseArray<CharSequence> titles = loadBookmarks();
+                    if (titles != null) {
+                        mUiHandler.post(new Runnable() {
+                            public void run() {
+                                applyBookmarks(titles);
+                            }
+                        });
+                    }
+                    break;
+                case MSG_INVALIDATE_TITLES:
+                    mTitleCache.clear();
+                    break;
+            }
+        }
+
+        /** Returns the title of each bookmarked shortcut, or null if the query failed. */
+        private SparseArray<CharSequence> loadBookmarks() {
+            Cursor c = getContentResolver().query(Bookmarks.CONTENT_URI, sProjection,
+                    null, null, null);
+            if (c == null) {
+                Log.e(TAG, "Could not query bookmarks when refreshing shortcuts.");
+                return null;
+            }
+
+            SparseArray<CharSequence> titles = new SparseArray<CharSequence>();
+            try {
+                while (c.moveToNext()) {
+                    char shortcut = Character.toLowerCase((char) c.getInt(COLUMN_SHORTCUT));
+                    if (shortcut == 0) continue;
+
+                    String intentUri = c.getString(COLUMN_INTENT);
+                    CharSequence title = intentUri != null ? mTitleCache.get(intentUri) : null;
+                    if (title == null) {
+                        title = resolveTitle(c, intentUri);
+                        if (intentUri != null) {
+                            mTitleCache.put(intentUri, title);
+                        }
+                    }
+                    titles.put(shortcut, title);
+                }
+            } finally {
+                c.close();
+            }
+            return titles;
+        }
+
+        private CharSequence resolveTitle(Cursor c, String intentUri) {
+            CharSequence title = Bookmarks.getTitle(QuickLaunchSettings.this, c);
 
             /*
              * The title retrieved from Bookmarks.getTitle() will be in
              * the original boot locale, not the current locale.
              * Try to look up a localized title from the PackageManager.
              */
-            int intentColumn = c.getColumnIndex(Bookmarks.INTENT);
-            String intentUri = c.getString(intentColumn);
-            PackageManager packageManager = getPackageManager();
-            try {
-                Intent intent = Intent.parseUri(intentUri, 0);
-                ResolveInfo info = packageManager.resolveActivity(intent, 0);
-                if (info != null) {
-                    title = info.loadLabel(packageManager);
-                }
-            } catch (URISyntaxException e) {
-                // Just use the non-localized title, then.
-            }
-
-            pref.setTitle(title);
-            pref.setSummary(getString(R.string.quick_launch_shortcut,
-                    String.valueOf(shortcut)));
-            pref.setHasBookmark(true);
-            
-            newBookmarkedShortcuts.put(shortcut, true);
-            if (noLongerBookmarkedShortcuts != null) {
-                // After this loop, the shortcuts with value true in this array
-                // will no longer have bookmarks
-                noLongerBookmarkedShortcuts.put(shortcut, false);
-            }
-        }
-        
-        if (noLongerBookmarkedShortcuts != null) {
-            for (int i = noLongerBookmarkedShortcuts.size() - 1; i >= 0; i--) {
-                if (noLongerBookmarkedShortcuts.valueAt(i)) {
-                    // True, so there is no longer a bookmark for this shortcut
-                    char shortcut = (char) noLongerBookmarkedShortcuts.keyAt(i);
-                    ShortcutPreference pref = mShortcutToPreference.get(shortcut);
-                    if (pref != null) {
-                        pref.setHasBookmark(false);
+            if (intentUri != null) {
+                PackageManager packageManager = getPackageManager();
+                try {
+                    Intent intent = Intent.parseUri(intentUri, 0);
+                    ResolveInfo info = packageManager.resolveActivity(intent, 0);
+                    if (info != null) {
+                        title = info.loadLabel(packageManager);
                     }
+                } catch (URISyntaxException e) {
+                    // Just use the non-localized title, then.
                 }
             }
+            return title != null ? title : "";
         }
-        
-        mBookmarkedShortcuts = newBookmarkedShortcuts;
-        
-        c.deactivate();
     }
 
     private class BookmarksObserver extends ContentObserver {
@@ -73,6 +73,33 @@ public class ChartNetworkSeriesView extends View {
     private long mMax;
     private long mMaxEstimate;
 
+    /**
+     * Bucket bounds and cumulative totals of {@link #mStats}, so any run of
+     * buckets can be summed with one subtraction. Built once per bound
+     * history; {@link #mBucketCount} is -1 until then.
+     */
+    private int mBucketCount = -1;
+    private long[] mBucketStart;
+    private long[] mBucketEnd;
+    private long[] mCumulative;
+
+    /**
+     * Series resampled to at most one point per horizontal pixel, kept while
+     * the time axis doesn't change so that rescaling the data axis, such as
+     * while dragging a sweep, only maps these points again.
+     */
+    private boolean mPointsValid = false;
+    private int mPointCount;
+    private float[] mPointX = new float[0];
+    private float[] mPointGapX = new float[0];
+    private long[] mPointTotal = new long[0];
+    private long mPointsLastTime;
+    private int mPointsWidth;
+    private long mPointsStart;
+    private long mPointsEnd;
+    private long mPointsLeftValue;
+    private long mPointsRightValue;
+
     public ChartNetworkSeriesView(Context context) {
         this(context, null, 0);
     }
@@ -134,6 +161,8 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        mBucketCount = -1;
+        mPointsValid = false;
         invalidatePath();
         invalidate();
     }
@@ -180,55 +209,36 @@ public class ChartNetworkSeriesView extends View {
         final int width = getWidth();
         final int height = getHeight();
 
-        boolean started = false;
+        if (!mPointsValid || mPointsWidth != width || mPointsStart != mStart
+                || mPointsEnd != mEnd || mPointsLeftValue != mHoriz.convertToValue(0)
+                || mPointsRightValue != mHoriz.convertToValue(width)) {
+            resamplePoints(width);
+        }
+
         float lastX = 0;
         float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
+        long lastTime = mPointsLastTime;
 
         // move into starting position
         mPathStroke.moveTo(lastX, lastY);
         mPathFill.moveTo(lastX, lastY);
 
-        // TODO: count fractional data from first bucket crossing start;
-        // currently it only accepts first full bucket.
-
         long totalData = 0;
 
-        NetworkStatsHistory.Entry entry = null;
-
-        final int start = mStats.getIndexBefore(mStart);
-        final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
-
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
-
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
-
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
-
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
-            if (lastTime != startTime) {
+        for (int i = 0; i < mPointCount; i++) {
+            final float gapX = mPointGapX[i];
+            if (!Float.isNaN(gapX)) {
                 // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
+                mPathStroke.lineTo(gapX, lastY);
+                mPathFill.lineTo(gapX, lastY);
             }
 
-            // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
+            totalData = mPointTotal[i];
+            lastX = mPointX[i];
+            lastY = mVert.convertToPoint(totalData);
 
-            lastX = endX;
-            lastY = endY;
-            lastTime = endTime;
+            mPathStroke.lineTo(lastX, lastY);
+            mPathFill.lineTo(lastX, lastY);
         }
 
         // when data falls short, extend to requested end time
@@ -255,6 +265,8 @@ public class ChartNetworkSeriesView extends View {
         // build estimated data
         mPathEstimate.moveTo(lastX, lastY);
 
+        NetworkStatsHistory.Entry entry = null;
+
         final long now = System.currentTimeMillis();
         final long bucketDuration = mStats.getBucketDuration();
 
@@ -286,6 +298,101 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    /**
+     * Build {@link #mCumulative} and bucket bounds from the bound
+     * {@link NetworkStatsHistory}, when not already built.
+     */
+    private void ensureCumulative() {
+        if (mBucketCount >= 0) return;
+
+        final int size = mStats.size();
+        mBucketStart = new long[size];
+        mBucketEnd = new long[size];
+        mCumulative = new long[size + 1];
+
+        NetworkStatsHistory.Entry entry = null;
+        for (int i = 0; i < size; i++) {
+            entry = mStats.getValues(i, entry);
+            mBucketStart[i] = entry.bucketStart;
+            mBucketEnd[i] = entry.bucketStart + entry.bucketDuration;
+            mCumulative[i + 1] = mCumulative[i] + entry.rxBytes + entry.txBytes;
+        }
+        mBucketCount = size;
+    }
+
+    /**
+     * Resample the buckets between {@link #mStart} and {@link #mEnd} into
+     * {@link #mPointX}, keeping only the last bucket ending inside each
+     * horizontal pixel. Each point carries the total from the first bucket on
+     * screen, read from {@link #mCumulative}.
+     */
+    private void resamplePoints(int width) {
+        ensureCumulative();
+
+        mPointsValid = true;
+        mPointsWidth = width;
+        mPointsStart = mStart;
+        mPointsEnd = mEnd;
+        mPointsLeftValue = mHoriz.convertToValue(0);
+        mPointsRightValue = mHoriz.convertToValue(width);
+        mPointCount = 0;
+
+        long lastTime = mPointsLeftValue;
+
+        // TODO: count fractional data from first bucket crossing start;
+        // currently it only accepts first full bucket.
+
+        final int start = mStats.getIndexBefore(mStart);
+        final int end = mStats.getIndexAfter(mEnd);
+
+        // skip until we find first stats on screen
+        int i = start;
+        while (i <= end && mHoriz.convertToPoint(mBucketEnd[i]) < 0) {
+            i++;
+        }
+        final long baseTotal = mCumulative[i];
+
+        while (i <= end) {
+            final float endX = mHoriz.convertToPoint(mBucketEnd[i]);
+            final long pixelEnd = mHoriz.convertToValue((float) Math.floor(endX) + 1);
+
+            // find last bucket ending before the next pixel
+            int lo = i, hi = end;
+            while (lo < hi) {
+                final int mid = (lo + hi + 1) >>> 1;
+                if (mBucketEnd[mid] < pixelEnd) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+
+            if (mPointCount == mPointX.length) {
+                final int capacity = Math.max(mPointCount * 2, Math.min(end - i + 1, width + 2));
+                final float[] pointX = new float[capacity];
+                final float[] pointGapX = new float[capacity];
+                final long[] pointTotal = new long[capacity];
+                System.arraycopy(mPointX, 0, pointX, 0, mPointCount);
+                System.arraycopy(mPointGapX, 0, pointGapX, 0, mPointCount);
+                System.arraycopy(mPointTotal, 0, pointTotal, 0, mPointCount);
+                mPointX = pointX;
+                mPointGapX = pointGapX;
+                mPointTotal = pointTotal;
+            }
+
+            final int n = mPointCount++;
+            mPointGapX[n] = lastTime != mBucketStart[i]
+                    ? mHoriz.convertToPoint(mBucketStart[i]) : Float.NaN;
+            mPointX[n] = mHoriz.convertToPoint(mBucketEnd[lo]);
+            mPointTotal[n] = mCumulative[lo + 1] - baseTotal;
+
+            lastTime = mBucketEnd[lo];
+            i = lo + 1;
+        }
+
+        mPointsLastTime = lastTime;
+    }
+
     public void setEndTime(long endTime) {
         mEndTime = endTime;
     }
@@ -84,7 +84,7 @@ class AccessPoint extends Preference {
         return (config.wepKeys[0] != null) ? SECURITY_WEP : SECURITY_NONE;
     }
 
-    private static int getSecurity(ScanResult result) {
+    static int getSecurity(ScanResult result) {
         if (result.capabilities.contains("WEP")) {
             return SECURITY_WEP;
         } else if (result.capabilities.contains("PSK")) {
@@ -95,6 +95,18 @@ class AccessPoint extends Preference {
         return SECURITY_NONE;
     }
 
+    /**
+     * Key identifying one network across scans; access points sharing an SSID
+     * and security type are shown as one entry.
+     */
+    static String getKey(String ssid, int security) {
+        return security + ":" + ssid;
+    }
+
+    String getKey() {
+        return getKey(ssid, security);
+    }
+
     public String getSecurityString(boolean concise) {
         Context context = getContext();
         switch(security) {
@@ -267,6 +279,32 @@ class AccessPoint extends Preference {
         return false;
     }
 
+    /**
+     * Reconcile with the current configuration and the strongest scan result
+     * of this network, either of which may be null. The preference is kept,
+     * so only attributes that actually changed are redrawn.
+     */
+    void update(WifiConfiguration config, ScanResult result) {
+        final int oldLevel = getLevel();
+        if (config != null) {
+            loadConfig(config);
+            if (result != null) {
+                mRssi = result.level;
+                // This flag only comes from scans, is not easily saved in config
+                if (security == SECURITY_PSK) {
+                    pskType = getPskType(result);
+                }
+            }
+        } else {
+            loadResult(result);
+            mConfig = null;
+        }
+        if (getLevel() != oldLevel) {
+            notifyChanged();
+        }
+        refresh();
+    }
+
     void update(WifiInfo info, DetailedState state) {
         boolean reorder = false;
         if (info != null && networkId != WifiConfiguration.INVALID_NETWORK_ID
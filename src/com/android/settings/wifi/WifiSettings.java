@@ -63,9 +63,10 @@ import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -111,6 +112,10 @@ public class WifiSettings extends SettingsPreferenceFragment
     private DetailedState mLastState;
     private WifiInfo mLastInfo;
 
+    // Access points kept across scans, by AccessPoint.getKey()
+    private final HashMap<String, AccessPoint> mAccessPoints =
+            new HashMap<String, AccessPoint>();
+
     private AtomicBoolean mConnected = new AtomicBoolean(false);
 
     private int mKeyStoreNetworkId = INVALID_NETWORK_ID;
@@ -458,16 +463,15 @@ public class WifiSettings extends SettingsPreferenceFragment
 
         switch (wifiState) {
             case WifiManager.WIFI_STATE_ENABLED:
-                // AccessPoints are automatically sorted with TreeSet.
-                final Collection<AccessPoint> accessPoints = constructAccessPoints();
-                getPreferenceScreen().removeAll();
+                final List<AccessPoint> accessPoints = constructAccessPoints();
                 if (mInXlSetupWizard) {
+                    // Pre-sort accessPoints to speed preference insertion
+                    Collections.sort(accessPoints);
+                    getPreferenceScreen().removeAll();
                     ((WifiSettingsForSetupWizardXL)getActivity()).onAccessPointsUpdated(
                             getPreferenceScreen(), accessPoints);
                 } else {
-                    for (AccessPoint accessPoint : accessPoints) {
-                        getPreferenceScreen().addPreference(accessPoint);
-                    }
+                    reorderAccessPoints(accessPoints);
                 }
                 break;
 
@@ -490,26 +494,31 @@ public class WifiSettings extends SettingsPreferenceFragment
         getPreferenceScreen().removeAll();
     }
 
-    /** Returns sorted list of access points */
+    /**
+     * Reconciles the kept access points with configured networks and scan
+     * results, creating entries only for networks that were not seen before.
+     * Returns the current access points, unsorted.
+     */
     private List<AccessPoint> constructAccessPoints() {
-        ArrayList<AccessPoint> accessPoints = new ArrayList<AccessPoint>();
-        /** Lookup table to more quickly update AccessPoints by only considering objects with the
-         * correct SSID.  Maps SSID -> List of AccessPoints with the given SSID.  */
-        Multimap<String, AccessPoint> apMap = new Multimap<String, AccessPoint>();
-
-        final List<WifiConfiguration> configs = mWifiManager.getConfiguredNetworks();
-        if (configs != null) {
-            for (WifiConfiguration config : configs) {
-                AccessPoint accessPoint = new AccessPoint(getActivity(), config);
-                accessPoint.update(mLastInfo, mLastState);
-                accessPoints.add(accessPoint);
-                apMap.put(accessPoint.ssid, accessPoint);
+        final HashMap<String, WifiConfiguration> configs =
+                new HashMap<String, WifiConfiguration>();
+        final HashMap<String, ScanResult> results = new HashMap<String, ScanResult>();
+
+        final List<WifiConfiguration> configuredNetworks = mWifiManager.getConfiguredNetworks();
+        if (configuredNetworks != null) {
+            for (WifiConfiguration config : configuredNetworks) {
+                final String ssid = (config.SSID == null ? ""
+                        : AccessPoint.removeDoubleQuotes(config.SSID));
+                final String key = AccessPoint.getKey(ssid, AccessPoint.getSecurity(config));
+                if (!configs.containsKey(key)) {
+                    configs.put(key, config);
+                }
             }
         }
 
-        final List<ScanResult> results = mWifiManager.getScanResults();
-        if (results != null) {
-            for (ScanResult result : results) {
+        final List<ScanResult> scanResults = mWifiManager.getScanResults();
+        if (scanResults != null) {
+            for (ScanResult result : scanResults) {
                 // Ignore hidden networks.
                 if (result.SSID == null || result.SSID.length() == 0) {
                     continue;
@@ -520,41 +529,130 @@ public class WifiSettings extends SettingsPreferenceFragment
                     continue;
                 }
 
-                boolean found = false;
-                for (AccessPoint accessPoint : apMap.getAll(result.SSID)) {
-                    if (accessPoint.update(result))
-                        found = true;
-                }
-                if (!found) {
-                    AccessPoint accessPoint = new AccessPoint(getActivity(), result);
-                    accessPoints.add(accessPoint);
-                    apMap.put(accessPoint.ssid, accessPoint);
+                // Keep the strongest result of each network
+                final String key = AccessPoint.getKey(
+                        result.SSID, AccessPoint.getSecurity(result));
+                final ScanResult strongest = results.get(key);
+                if (strongest == null
+                        || WifiManager.compareSignalLevel(result.level, strongest.level) > 0) {
+                    results.put(key, result);
                 }
             }
         }
 
-        // Pre-sort accessPoints to speed preference insertion
-        Collections.sort(accessPoints);
+        // Forget networks that are neither configured nor in range anymore
+        final Iterator<String> keys = mAccessPoints.keySet().iterator();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            if (!configs.containsKey(key) && !results.containsKey(key)) {
+                keys.remove();
+            }
+        }
+
+        final ArrayList<AccessPoint> accessPoints = new ArrayList<AccessPoint>(
+                configs.size() + results.size());
+        for (String key : configs.keySet()) {
+            accessPoints.add(updateAccessPoint(key, configs.get(key), results.remove(key)));
+        }
+        for (String key : results.keySet()) {
+            accessPoints.add(updateAccessPoint(key, null, results.get(key)));
+        }
         return accessPoints;
     }
 
-    /** A restricted multimap for use in constructAccessPoints */
-    private class Multimap<K,V> {
-        private HashMap<K,List<V>> store = new HashMap<K,List<V>>();
-        /** retrieve a non-null list of values with key K */
-        List<V> getAll(K key) {
-            List<V> values = store.get(key);
-            return values != null ? values : Collections.<V>emptyList();
+    private AccessPoint updateAccessPoint(String key, WifiConfiguration config,
+            ScanResult result) {
+        AccessPoint accessPoint = mAccessPoints.get(key);
+        if (accessPoint == null) {
+            if (config != null) {
+                accessPoint = new AccessPoint(getActivity(), config);
+                if (result != null) {
+                    accessPoint.update(result);
+                }
+            } else {
+                accessPoint = new AccessPoint(getActivity(), result);
+            }
+            mAccessPoints.put(key, accessPoint);
+        } else {
+            accessPoint.update(config, result);
         }
+        accessPoint.update(mLastInfo, mLastState);
+        return accessPoint;
+    }
 
-        void put(K key, V val) {
-            List<V> curVals = store.get(key);
-            if (curVals == null) {
-                curVals = new ArrayList<V>(3);
-                store.put(key, curVals);
+    /**
+     * Brings the screen in line with the given access points without
+     * rebuilding it: stale entries are removed, entries that are still in
+     * sorted order stay in place, and only the rest are moved or inserted.
+     */
+    private void reorderAccessPoints(List<AccessPoint> accessPoints) {
+        final PreferenceScreen screen = getPreferenceScreen();
+
+        final ArrayList<AccessPoint> shown = new ArrayList<AccessPoint>();
+        for (int i = screen.getPreferenceCount() - 1; i >= 0; --i) {
+            final Preference preference = screen.getPreference(i);
+            if (preference instanceof AccessPoint && mAccessPoints.get(
+                    ((AccessPoint) preference).getKey()) == preference) {
+                shown.add((AccessPoint) preference);
+            } else {
+                // Message placeholder or network that went away
+                screen.removePreference(preference);
+            }
+        }
+
+        Collections.reverse(shown);
+
+        final boolean[] inOrder = findSortedSubsequence(shown);
+        final HashSet<AccessPoint> kept = new HashSet<AccessPoint>();
+        for (int i = 0; i < shown.size(); i++) {
+            if (inOrder[i]) {
+                kept.add(shown.get(i));
+            } else {
+                screen.removePreference(shown.get(i));
             }
-            curVals.add(val);
         }
+
+        // PreferenceGroup inserts each one at its sorted position
+        for (AccessPoint accessPoint : accessPoints) {
+            if (!kept.contains(accessPoint)) {
+                screen.addPreference(accessPoint);
+            }
+        }
+    }
+
+    /**
+     * Marks a longest subsequence of the list that is already sorted, so
+     * that moving only the unmarked entries sorts the whole list.
+     */
+    private static boolean[] findSortedSubsequence(List<AccessPoint> list) {
+        final int size = list.size();
+        final boolean[] marked = new boolean[size];
+        // tails[j] is the index ending the best sorted subsequence of length j + 1
+        final int[] tails = new int[size];
+        final int[] previous = new int[size];
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            final AccessPoint accessPoint = list.get(i);
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (list.get(tails[mid]).compareTo(accessPoint) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            previous[i] = (low > 0) ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+        for (int i = (length > 0) ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+            marked[i] = true;
+        }
+        return marked;
     }
 
     private void handleEvent(Context context, Intent intent) {
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import static android.net.NetworkStats.IFACE_ALL;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+
+import android.net.NetworkStats;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.settings.DataUsageSummary.AppUsageItem;
+import com.android.settings.DataUsageSummary.DataUsageAdapter;
+import com.android.settings.net.UidDetailProvider;
+
+import java.util.Random;
+
+/**
+ * Times {@link DataUsageAdapter#bindStats(NetworkStats)} for growing numbers
+ * of stats rows, spread over application and system UIDs with several sets
+ * and tags per UID.
+ */
+@LargeTest
+public class DataUsageAdapterPerformanceTest extends AndroidTestCase {
+    private static final String TAG = "DataUsageAdapterPerformanceTest";
+
+    private static final int[] ROW_COUNTS = { 1000, 10000, 50000 };
+    private static final int APP_UIDS = 2000;
+    private static final int SYSTEM_UIDS = 50;
+    private static final int ITERATIONS = 20;
+
+    private UidDetailProvider mProvider;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new UidDetailProvider(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.release();
+        super.tearDown();
+    }
+
+    private static NetworkStats buildStats(int rows) {
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), rows);
+        final Random random = new Random(rows);
+        for (int i = 0; i < rows; i++) {
+            final int uid = random.nextInt(10) == 0 ? random.nextInt(SYSTEM_UIDS)
+                    : android.os.Process.FIRST_APPLICATION_UID + random.nextInt(APP_UIDS);
+            final int set = random.nextBoolean() ? SET_DEFAULT : SET_FOREGROUND;
+            final int tag = random.nextInt(4) == 0 ? random.nextInt(16) + 1 : TAG_NONE;
+            stats.addValues(IFACE_ALL, uid, set, tag, random.nextInt(1024 * 1024), 0L,
+                    random.nextInt(1024 * 1024), 0L, 0L);
+        }
+        return stats;
+    }
+
+    public void testBindStats() {
+        final DataUsageAdapter adapter = new DataUsageAdapter(mProvider, 0);
+        for (int rows : ROW_COUNTS) {
+            final NetworkStats stats = buildStats(rows);
+
+            // first bind creates items, later binds reuse them
+            long start = System.nanoTime();
+            adapter.bindStats(stats);
+            final long firstTime = System.nanoTime() - start;
+
+            long total = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                start = System.nanoTime();
+                adapter.bindStats(stats);
+                total += System.nanoTime() - start;
+            }
+
+            // reaching the tail sorts the remaining items
+            start = System.nanoTime();
+            final int count = adapter.getCount();
+            adapter.getItem(count - 1);
+            final long tailTime = System.nanoTime() - start;
+
+            Log.i(TAG, rows + " rows into " + count + " items: first bind "
+                    + (firstTime / 1000) + "us, rebind " + (total / ITERATIONS / 1000)
+                    + "us, tail sort " + (tailTime / 1000) + "us");
+
+            long sum = 0;
+            long previous = Long.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                final AppUsageItem item = (AppUsageItem) adapter.getItem(i);
+                assertTrue(item.total <= previous);
+                previous = item.total;
+                sum += item.total;
+            }
+            assertEquals(sumStats(stats), sum);
+        }
+    }
+
+    private static long sumStats(NetworkStats stats) {
+        long sum = 0;
+        NetworkStats.Entry entry = null;
+        for (int i = 0; i < stats.size(); i++) {
+            entry = stats.getValues(i, entry);
+            sum += entry.rxBytes + entry.txBytes;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Compares sorting app entries by raw label against sorting by their cached
+ * collation keys, for growing numbers of entries.
+ */
+@LargeTest
+public class AppLabelSortPerformanceTest extends AndroidTestCase {
+    private static final String TAG = "AppLabelSortPerformanceTest";
+
+    private static final int[] ENTRY_COUNTS = { 100, 300, 1000, 3000 };
+    private static final int ITERATIONS = 10;
+
+    private ArrayList<AppEntry> makeEntries(int count) {
+        Random random = new Random(count);
+        ArrayList<AppEntry> entries = new ArrayList<AppEntry>(count);
+        for (int i=0; i<count; i++) {
+            ApplicationInfo info = new ApplicationInfo();
+            StringBuilder name = new StringBuilder();
+            int len = 4 + random.nextInt(12);
+            for (int j=0; j<len; j++) {
+                name.append((char)((j == 0 ? 'A' : 'a') + random.nextInt(26)));
+            }
+            info.packageName = name.toString();
+            // Not a real apk, so the package name is used as the label.
+            info.sourceDir = "/nonexistent/" + info.packageName + ".apk";
+            info.enabled = true;
+            entries.add(new AppEntry(getContext(), info, i));
+        }
+        return entries;
+    }
+
+    private long timeSort(ArrayList<AppEntry> entries, Comparator<AppEntry> comparator) {
+        long total = 0;
+        for (int i=0; i<ITERATIONS; i++) {
+            ArrayList<AppEntry> copy = new ArrayList<AppEntry>(entries);
+            Collections.shuffle(copy, new Random(i));
+            long start = SystemClock.elapsedRealtime();
+            Collections.sort(copy, comparator);
+            total += SystemClock.elapsedRealtime() - start;
+        }
+        return total / ITERATIONS;
+    }
+
+    public void testSortTimeAgainstEntryCount() {
+        final Collator collator = Collator.getInstance();
+        final Comparator<AppEntry> rawLabelComparator = new Comparator<AppEntry>() {
+            @Override
+            public int compare(AppEntry object1, AppEntry object2) {
+                return collator.compare(object1.label, object2.label);
+            }
+        };
+
+        for (int count : ENTRY_COUNTS) {
+            ArrayList<AppEntry> entries = makeEntries(count);
+            long raw = timeSort(entries, rawLabelComparator);
+            long keyed = timeSort(entries, ApplicationsState.ALPHA_COMPARATOR);
+            Log.i(TAG, count + " entries: label sort " + raw + "ms, collation key sort "
+                    + keyed + "ms");
+
+            ArrayList<AppEntry> expected = new ArrayList<AppEntry>(entries);
+            Collections.sort(expected, rawLabelComparator);
+            ArrayList<AppEntry> actual = new ArrayList<AppEntry>(entries);
+            Collections.sort(actual, ApplicationsState.ALPHA_COMPARATOR);
+            for (int i=0; i<count; i++) {
+                assertEquals(0, collator.compare(expected.get(i).label, actual.get(i).label));
+            }
+        }
+    }
+}
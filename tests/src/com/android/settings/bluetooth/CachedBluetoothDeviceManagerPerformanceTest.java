@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * Floods {@link CachedBluetoothDeviceManager} with synthetic discovery
+ * results, timing how many found events per second it resolves as the
+ * number of known devices grows.
+ */
+@LargeTest
+public class CachedBluetoothDeviceManagerPerformanceTest extends AndroidTestCase {
+    private static final String TAG = "CachedBluetoothDeviceManagerPerformanceTest";
+
+    private static final int[] DEVICE_COUNTS = { 10, 100, 500 };
+    private static final int EVENTS = 20000;
+
+    private LocalBluetoothManager mLocalManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLocalManager = LocalBluetoothManager.getInstance(getContext());
+    }
+
+    private static BluetoothDevice[] buildDevices(BluetoothAdapter adapter, int count) {
+        final BluetoothDevice[] devices = new BluetoothDevice[count];
+        for (int i = 0; i < count; i++) {
+            devices[i] = adapter.getRemoteDevice(String.format("02:00:00:%02X:%02X:%02X",
+                    (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff));
+        }
+        return devices;
+    }
+
+    public void testDiscoveryFlood() {
+        if (mLocalManager == null) {
+            Log.i(TAG, "No Bluetooth on this device, skipping");
+            return;
+        }
+        final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+
+        for (int count : DEVICE_COUNTS) {
+            final CachedBluetoothDeviceManager manager =
+                    new CachedBluetoothDeviceManager(getContext());
+            final BluetoothDevice[] devices = buildDevices(adapter, count);
+            for (BluetoothDevice device : devices) {
+                assertNull(manager.findDevice(device));
+                manager.addDevice(mLocalManager.getBluetoothAdapter(),
+                        mLocalManager.getProfileManager(), device);
+            }
+
+            // repeated found, name and class events for devices in range,
+            // looked up through fresh objects like the broadcasts carry
+            final BluetoothDevice[] events = buildDevices(adapter, count);
+            final Random random = new Random(count);
+            long start = System.nanoTime();
+            for (int i = 0; i < EVENTS; i++) {
+                final BluetoothDevice device = events[random.nextInt(count)];
+                assertEquals(device, manager.findDevice(device).getDevice());
+            }
+            final long lookupTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Collection<CachedBluetoothDevice> snapshot = null;
+            for (int i = 0; i < EVENTS; i++) {
+                snapshot = manager.getCachedDevicesCopy();
+            }
+            final long snapshotTime = System.nanoTime() - start;
+            assertEquals(count, snapshot.size());
+
+            Log.i(TAG, count + " devices: " + (EVENTS * 1000000000L / lookupTime)
+                    + " lookups/s, snapshot " + (snapshotTime / EVENTS) + "ns");
+        }
+    }
+}
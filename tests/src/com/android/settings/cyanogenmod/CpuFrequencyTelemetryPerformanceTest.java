@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2012 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.cyanogenmod;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Times one sample of every CPU by {@link CpuFrequencyTelemetry}, and checks
+ * that the time in state ring only accumulates time that has passed.
+ */
+@LargeTest
+public class CpuFrequencyTelemetryPerformanceTest extends AndroidTestCase {
+    private static final String TAG = "CpuFrequencyTelemetryPerformanceTest";
+
+    private static final int HISTORY = 20;
+    private static final int SAMPLES = 1000;
+
+    public void testSampleAllCpus() {
+        final CpuFrequencyTelemetry telemetry = new CpuFrequencyTelemetry(500, HISTORY);
+        assertTrue(telemetry.getCpuCount() > 0);
+        try {
+            // first sample opens the nodes and reads the time in state baseline
+            long start = System.nanoTime();
+            telemetry.sample();
+            final long firstTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            final long wallStart = System.currentTimeMillis();
+            for (int i = 0; i < SAMPLES; i++) {
+                telemetry.sample();
+            }
+            final long sampleTime = System.nanoTime() - start;
+            final long wallTime = System.currentTimeMillis() - wallStart;
+
+            final long[] frequencies = new long[64];
+            final long[] times = new long[64];
+            for (int cpu = 0; cpu < telemetry.getCpuCount(); cpu++) {
+                final int states = telemetry.getTimeInState(cpu, frequencies, times);
+                long total = 0;
+                for (int i = 0; i < states; i++) {
+                    assertTrue(times[i] >= 0);
+                    total += times[i];
+                }
+                // time_in_state counts in 10ms units, allow one unit per sample of rounding
+                assertTrue(total * 10 <= wallTime + 10 * (HISTORY + 1));
+            }
+
+            Log.i(TAG, telemetry.getCpuCount() + " cpus: first sample " + (firstTime / 1000)
+                    + "us, then " + (sampleTime / SAMPLES / 1000) + "us per sample");
+        } finally {
+            telemetry.stop();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2012 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.cyanogenmod;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.settings.Utils;
+
+/**
+ * Compares polling a procfs node through {@link SysfsNode} with opening it
+ * for every read through {@link Utils#fileReadOneLine(String)}.
+ */
+@LargeTest
+public class SysfsNodePerformanceTest extends AndroidTestCase {
+    private static final String TAG = "SysfsNodePerformanceTest";
+
+    // Readable on every device, and regenerated on each read like sysfs
+    private static final String NODE = "/proc/sys/kernel/pid_max";
+    private static final int READS = 10000;
+
+    public void testPollNode() {
+        final String expected = Utils.fileReadOneLine(NODE);
+        assertNotNull(expected);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            Utils.fileReadOneLine(NODE);
+        }
+        final long lineTime = System.nanoTime() - start;
+
+        final SysfsNode node = new SysfsNode(NODE);
+        try {
+            start = System.nanoTime();
+            long value = -1;
+            for (int i = 0; i < READS; i++) {
+                value = node.readLong(-1);
+            }
+            final long nodeTime = System.nanoTime() - start;
+
+            assertEquals(Long.parseLong(expected), value);
+            assertEquals(expected, node.getLine());
+            assertTrue(node.contentEquals(expected));
+
+            Log.i(TAG, "per read: fileReadOneLine " + (lineTime / READS) + "ns, SysfsNode "
+                    + (nodeTime / READS) + "ns");
+        } finally {
+            node.close();
+        }
+    }
+
+    public void testMissingNode() {
+        final SysfsNode node = new SysfsNode("/sys/nonexistent/node");
+        assertFalse(node.exists());
+        assertNull(node.readLine());
+        assertEquals(42, node.readInt(42));
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.mtp.MtpConstants;
+import android.os.SystemClock;
+import android.provider.MediaStore.Files.FileColumns;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Compares measuring the media categories by walking a synthetic tree of
+ * 100k files against the aggregate query {@link MediaSizeQuery} runs, over a
+ * files table holding the same tree.
+ */
+@LargeTest
+public class MediaSizeQueryPerformanceTest extends AndroidTestCase {
+    private static final String TAG = "MediaSizeQueryPerformanceTest";
+
+    private static final int FILE_COUNT = 100000;
+    private static final int FILES_PER_DIR = 500;
+    private static final int STORAGE_ID = 0x00010001;
+    private static final int ITERATIONS = 5;
+
+    private File mRoot;
+    private SQLiteDatabase mDb;
+    private String[][] mCategoryDirs;
+    private long[] mExpectedSizes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRoot = new File(getContext().getCacheDir(), "media_size_benchmark");
+        deleteTree(mRoot);
+        mCategoryDirs = MediaSizeQuery.getCategoryDirs(mRoot.getPath());
+        mExpectedSizes = new long[mCategoryDirs.length];
+
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE files (" + FileColumns._ID + " INTEGER PRIMARY KEY,"
+                + FileColumns.DATA + " TEXT," + FileColumns.SIZE + " INTEGER,"
+                + FileColumns.STORAGE_ID + " INTEGER," + FileColumns.FORMAT + " INTEGER)");
+        mDb.execSQL("CREATE INDEX path_index ON files(" + FileColumns.DATA + ")");
+        SQLiteStatement insert = mDb.compileStatement("INSERT INTO files ("
+                + FileColumns.DATA + "," + FileColumns.SIZE + "," + FileColumns.STORAGE_ID
+                + "," + FileColumns.FORMAT + ") VALUES (?,?,?,?)");
+
+        // Spread the files over every media directory, plus a directory no
+        // category covers.
+        Random random = new Random(FILE_COUNT);
+        mDb.beginTransaction();
+        try {
+            int created = 0;
+            int dirIndex = 0;
+            while (created < FILE_COUNT) {
+                final int category = dirIndex % (mCategoryDirs.length + 1);
+                final String parent;
+                if (category < mCategoryDirs.length) {
+                    final String[] dirs = mCategoryDirs[category];
+                    parent = dirs[(dirIndex / mCategoryDirs.length) % dirs.length];
+                } else {
+                    parent = new File(mRoot, "Other").getPath();
+                }
+                final File dir = new File(parent, "dir" + dirIndex++);
+                assertTrue(dir.mkdirs());
+                insertRow(insert, dir.getPath(), 0, MtpConstants.FORMAT_ASSOCIATION);
+                for (int i = 0; i < FILES_PER_DIR && created < FILE_COUNT; i++, created++) {
+                    final File file = new File(dir, "file" + i);
+                    final long size = 1 + random.nextInt(1024 * 1024);
+                    createFile(file, size);
+                    insertRow(insert, file.getPath(), size, MtpConstants.FORMAT_UNDEFINED);
+                    if (category < mCategoryDirs.length) {
+                        mExpectedSizes[category] += size;
+                    }
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            insert.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        deleteTree(mRoot);
+        super.tearDown();
+    }
+
+    private static void insertRow(SQLiteStatement insert, String path, long size, int format) {
+        insert.bindString(1, path);
+        insert.bindLong(2, size);
+        insert.bindLong(3, STORAGE_ID);
+        insert.bindLong(4, format);
+        insert.executeInsert();
+    }
+
+    private static void createFile(File file, long size) throws IOException {
+        // Sparse, so only the reported length matters.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static long walk(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += walk(child);
+            }
+        }
+        return size;
+    }
+
+    private long[] measureByWalk() {
+        final long[] sizes = new long[mCategoryDirs.length];
+        for (int i = 0; i < mCategoryDirs.length; i++) {
+            for (String dir : mCategoryDirs[i]) {
+                sizes[i] += walk(new File(dir));
+            }
+        }
+        return sizes;
+    }
+
+    private long[] measureByQuery() {
+        Cursor c = mDb.query("files", MediaSizeQuery.buildProjection(mCategoryDirs),
+                MediaSizeQuery.buildSelection(STORAGE_ID), null, null, null, null);
+        try {
+            return MediaSizeQuery.readSizes(c, mCategoryDirs.length);
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testQueryAgainstWalk() {
+        long walkTime = 0;
+        long queryTime = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            long[] walked = measureByWalk();
+            walkTime += SystemClock.elapsedRealtime() - start;
+
+            start = SystemClock.elapsedRealtime();
+            long[] queried = measureByQuery();
+            queryTime += SystemClock.elapsedRealtime() - start;
+
+            for (int c = 0; c < mCategoryDirs.length; c++) {
+                assertEquals(mExpectedSizes[c], walked[c]);
+                assertEquals(mExpectedSizes[c], queried[c]);
+            }
+        }
+        Log.i(TAG, FILE_COUNT + " files: directory walk " + (walkTime / ITERATIONS)
+                + "ms, aggregate query " + (queryTime / ITERATIONS) + "ms");
+    }
+}
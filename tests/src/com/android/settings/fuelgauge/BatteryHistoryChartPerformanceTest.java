@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+import android.os.Parcel;
+import android.os.ServiceManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.view.ContextThemeWrapper;
+import android.view.LayoutInflater;
+import android.view.View;
+
+import com.android.internal.app.IBatteryStats;
+import com.android.internal.os.BatteryStatsImpl;
+import com.android.settings.R;
+
+/**
+ * Times the first layout of {@link BatteryHistoryChart}, which builds its
+ * paths, over the recorded battery history extended with a long synthetic
+ * history, and the cost of binding the same stats again.
+ */
+@LargeTest
+public class BatteryHistoryChartPerformanceTest extends AndroidTestCase {
+    private static final String TAG = "BatteryHistoryChartPerformanceTest";
+
+    private static final int[] SYNTHETIC_RECORDS = { 0, 10000, 50000 };
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 400;
+    private static final int ITERATIONS = 10;
+
+    private byte[] mRecordedStats;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        IBatteryStats batteryInfo = IBatteryStats.Stub.asInterface(
+                ServiceManager.getService("batteryinfo"));
+        mRecordedStats = batteryInfo.getStatistics();
+    }
+
+    private BatteryStatsImpl parseRecordedStats() {
+        Parcel parcel = Parcel.obtain();
+        parcel.unmarshall(mRecordedStats, 0, mRecordedStats.length);
+        parcel.setDataPosition(0);
+        BatteryStatsImpl stats = BatteryStatsImpl.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+        return stats;
+    }
+
+    private BatteryHistoryChart newChart(BatteryStats stats, int syntheticRecords) {
+        final LayoutInflater inflater = LayoutInflater.from(new ContextThemeWrapper(
+                getContext(), android.R.style.Theme_Holo));
+        final BatteryHistoryChart chart = (BatteryHistoryChart) inflater.inflate(
+                R.layout.preference_batteryhistory, null);
+        chart.setStats(stats);
+
+        // Continue the history with a record every ten seconds, the level
+        // dropping slowly and the screen and wake lock toggling.
+        final HistoryItem rec = new HistoryItem();
+        long time = chart.mHistEnd;
+        for (int i = 0; i < syntheticRecords; i++) {
+            time += 10000;
+            rec.cmd = HistoryItem.CMD_UPDATE;
+            rec.time = time;
+            rec.batteryLevel = (byte) (100 - (i * 100L) / (syntheticRecords + 1));
+            rec.states = (i % 7 == 0 ? HistoryItem.STATE_SCREEN_ON_FLAG : 0)
+                    | (i % 3 == 0 ? HistoryItem.STATE_WAKE_LOCK_FLAG : 0);
+            chart.addRecord(rec);
+        }
+        return chart;
+    }
+
+    private static void layout(View view) {
+        view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, WIDTH, HEIGHT);
+    }
+
+    public void testFirstLayout() {
+        final BatteryStatsImpl stats = parseRecordedStats();
+        for (int synthetic : SYNTHETIC_RECORDS) {
+            long total = 0;
+            BatteryHistoryChart chart = null;
+            for (int i = 0; i < ITERATIONS; i++) {
+                chart = newChart(stats, synthetic);
+                long start = System.nanoTime();
+                layout(chart);
+                total += System.nanoTime() - start;
+            }
+            Log.i(TAG, chart.mNumRecords + " records in " + chart.mNumPix
+                    + " columns: first layout " + (total / ITERATIONS / 1000) + "us");
+
+            // At most one entry per column and break in the history.
+            assertTrue(chart.mNumPix <= chart.mNumHist);
+            if (synthetic > 0) {
+                assertFalse(chart.mBatLevelPath.isEmpty());
+                assertFalse(chart.mScreenOnPath.isEmpty());
+            }
+        }
+    }
+
+    public void testRebindSameStats() {
+        final BatteryStatsImpl stats = parseRecordedStats();
+        final BatteryHistoryChart chart = newChart(stats, 0);
+        layout(chart);
+        final int numPix = chart.mNumPix;
+        long total = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            chart.setStats(stats);
+            layout(chart);
+            total += System.nanoTime() - start;
+        }
+        Log.i(TAG, chart.mNumRecords + " records: rebind " + (total / ITERATIONS / 1000)
+                + "us");
+        assertEquals(numPix, chart.mNumPix);
+    }
+}
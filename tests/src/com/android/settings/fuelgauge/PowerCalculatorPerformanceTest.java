@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.Parcel;
+import android.os.ServiceManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.internal.app.IBatteryStats;
+import com.android.internal.os.BatteryStatsImpl;
+import com.android.internal.os.PowerProfile;
+
+import java.util.ArrayList;
+
+/**
+ * Times {@link PowerCalculator} over the statistics parcel recorded from the battery
+ * stats service, with warm-up rounds first, for different numbers of threads.
+ */
+@LargeTest
+public class PowerCalculatorPerformanceTest extends AndroidTestCase {
+    private static final String TAG = "PowerCalculatorPerformanceTest";
+
+    private static final int[] PARALLELISMS = { 1, 2, 4 };
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 20;
+
+    private byte[] mRecordedStats;
+    private PowerProfile mPowerProfile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        IBatteryStats batteryInfo = IBatteryStats.Stub.asInterface(
+                ServiceManager.getService("batteryinfo"));
+        mRecordedStats = batteryInfo.getStatistics();
+        mPowerProfile = new PowerProfile(getContext());
+    }
+
+    private BatteryStatsImpl parseRecordedStats() {
+        Parcel parcel = Parcel.obtain();
+        parcel.unmarshall(mRecordedStats, 0, mRecordedStats.length);
+        parcel.setDataPosition(0);
+        BatteryStatsImpl stats = BatteryStatsImpl.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+        stats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
+        return stats;
+    }
+
+    private PowerCalculator.Result compute(PowerCalculator calculator, BatteryStatsImpl stats) {
+        return calculator.compute(stats, BatteryStats.STATS_SINCE_CHARGED,
+                new ArrayList<BatterySipper>());
+    }
+
+    public void testComputeTimeAgainstParallelism() {
+        final BatteryStatsImpl stats = parseRecordedStats();
+        final PowerCalculator serial = new PowerCalculator(getContext(), mPowerProfile, 1);
+        if (!serial.isAvailable()) {
+            Log.i(TAG, "No power profile on this device, skipping");
+            return;
+        }
+        final PowerCalculator.Result expected = compute(serial, stats);
+
+        for (int parallelism : PARALLELISMS) {
+            final PowerCalculator calculator = new PowerCalculator(getContext(),
+                    mPowerProfile, parallelism);
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                compute(calculator, stats);
+            }
+            long total = 0;
+            PowerCalculator.Result result = null;
+            for (int i = 0; i < ITERATIONS; i++) {
+                long start = System.nanoTime();
+                result = compute(calculator, stats);
+                total += System.nanoTime() - start;
+            }
+            Log.i(TAG, stats.getUidStats().size() + " uids, " + parallelism + " threads: "
+                    + (total / ITERATIONS / 1000) + "us per computation");
+
+            // Time dependent values move a little between computations.
+            assertEquals(expected.totalPower, result.totalPower, expected.totalPower / 100);
+        }
+    }
+}
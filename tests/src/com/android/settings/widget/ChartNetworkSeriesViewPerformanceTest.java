@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.widget;
+
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Times frames of {@link ChartNetworkSeriesView} over a year of hourly
+ * history, while a sweep drag rescales the data axis and while the visible
+ * time range moves.
+ */
+@LargeTest
+public class ChartNetworkSeriesViewPerformanceTest extends AndroidTestCase {
+    private static final String TAG = "ChartNetworkSeriesViewPerformanceTest";
+
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 400;
+    private static final int BUCKETS = 24 * 365;
+    private static final int FRAMES = 200;
+
+    private NetworkStatsHistory mHistory;
+    private long mHistoryStart;
+    private ChartAxis mHoriz;
+    private ChartAxis mVert;
+    private ChartNetworkSeriesView mSeries;
+    private Canvas mCanvas;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHistoryStart = (System.currentTimeMillis() / HOUR_IN_MILLIS - BUCKETS) * HOUR_IN_MILLIS;
+        mHistory = new NetworkStatsHistory(HOUR_IN_MILLIS, BUCKETS);
+        final Random random = new Random(BUCKETS);
+        for (int i = 0; i < BUCKETS; i++) {
+            // leave some hours without traffic to exercise gaps
+            if (random.nextInt(10) == 0) continue;
+            final long start = mHistoryStart + i * HOUR_IN_MILLIS;
+            mHistory.recordData(start, start + HOUR_IN_MILLIS, new NetworkStats.Entry(
+                    random.nextInt(10 * 1024 * 1024), 0, random.nextInt(1024 * 1024), 0, 0));
+        }
+
+        mHoriz = new ChartDataUsageView.TimeAxis();
+        mVert = new InvertedChartAxis(new ChartDataUsageView.DataAxis());
+        mHoriz.setSize(WIDTH);
+        mVert.setSize(HEIGHT);
+        mVert.setBounds(0, 100 * 1024 * 1024L);
+
+        mSeries = new ChartNetworkSeriesView(getContext());
+        mSeries.init(mHoriz, mVert);
+        mSeries.layout(0, 0, WIDTH, HEIGHT);
+        mCanvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+    }
+
+    private void setVisibleRange(long start, long end) {
+        mHoriz.setBounds(start, end);
+        mSeries.setBounds(start, end);
+        mSeries.invalidatePath();
+    }
+
+    private long expectedTotal(long start, long end) {
+        long total = 0;
+        NetworkStatsHistory.Entry entry = null;
+        final int last = mHistory.getIndexAfter(end);
+        for (int i = mHistory.getIndexBefore(start); i <= last; i++) {
+            entry = mHistory.getValues(i, entry);
+            if (mHoriz.convertToPoint(entry.bucketStart + entry.bucketDuration) < 0) continue;
+            total += entry.rxBytes + entry.txBytes;
+        }
+        return total;
+    }
+
+    public void testSweepDragFrameTime() {
+        final long end = mHistoryStart + BUCKETS * HOUR_IN_MILLIS;
+        mSeries.bindNetworkStats(mHistory);
+        setVisibleRange(mHistoryStart, end);
+        mSeries.draw(mCanvas);
+        final long max = mSeries.getMaxVisible();
+        assertEquals(expectedTotal(mHistoryStart, end), max);
+
+        // dragging a limit sweep near the edge grows and shrinks the data axis
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            mVert.setBounds(0, (i % 2 == 0) ? max * 11 / 10 : max * 12 / 10);
+            mSeries.invalidatePath();
+            mSeries.draw(mCanvas);
+        }
+        final long dragTime = System.nanoTime() - start;
+        assertEquals(max, mSeries.getMaxVisible());
+
+        // moving the visible range resamples the buckets
+        start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            setVisibleRange(mHistoryStart + i * DAY_IN_MILLIS, end);
+            mSeries.draw(mCanvas);
+        }
+        final long rangeTime = System.nanoTime() - start;
+        assertEquals(expectedTotal(mHistoryStart + (FRAMES - 1) * DAY_IN_MILLIS, end),
+                mSeries.getMaxVisible());
+
+        Log.i(TAG, BUCKETS + " buckets: axis drag " + (dragTime / FRAMES / 1000)
+                + "us per frame, range change " + (rangeTime / FRAMES / 1000) + "us per frame");
+    }
+}